@@ -0,0 +1,87 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Many small reads spread over one 64MB file, one call each or as one batch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchReadBenchmark {
+    static final long FILE_SIZE = 64L << 20;
+    static final int READ_SIZE = 512;
+
+    @Param({"64", "4096"})
+    int reads;
+
+    private String image;
+    private Fs fs;
+    private int fd;
+    private long[] offsets;
+    private ByteBuffer[] buffers;
+    private List<Object> requests;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = Fixtures.image("batch-read", 2 * FILE_SIZE / 4096, 4096, 16, 1, FILE_SIZE, 42);
+        fs = new Fs(1024);
+        fs.mount(image);
+        fd = fs.open("f0");
+
+        Random random = new Random(7);
+        offsets = new long[reads];
+        buffers = new ByteBuffer[reads];
+        requests = new ArrayList<Object>();
+        for (int i = 0; i < reads; i++) {
+            offsets[i] = (long) random.nextInt((int) (FILE_SIZE / READ_SIZE)) * READ_SIZE;
+            buffers[i] = ByteBuffer.allocate(READ_SIZE);
+            requests.add(Fs.request(fd, offsets[i], buffers[i]));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fs.unmount();
+        Fixtures.delete(image);
+    }
+
+    @Benchmark
+    public long singleReads() {
+        long read = 0;
+        for (int i = 0; i < reads; i++) {
+            buffers[i].clear();
+            read += fs.read(fd, offsets[i], buffers[i]);
+        }
+        return read;
+    }
+
+    @Benchmark
+    public long batchedRead() {
+        for (ByteBuffer buffer : buffers)
+            buffer.clear();
+        return fs.readv(requests);
+    }
+}
@@ -0,0 +1,101 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Several clients sharing one mounted image, each working on one of FILES
+ * 16MB files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrentBenchmark {
+    static final int FILES = 8;
+    static final long FILE_SIZE = 16L << 20;
+
+    @Param({"4096", "65536"})
+    int ioSize;
+
+    private String image;
+    private Fs fs;
+
+    @State(Scope.Thread)
+    public static class Client {
+        int fd;
+        ByteBuffer buffer;
+        Random random;
+        int slots;
+
+        @Setup(Level.Trial)
+        public void setUp(ConcurrentBenchmark shared, ThreadParams thread) {
+            fd = shared.fs.open("f" + thread.getThreadIndex() % FILES);
+            buffer = Fixtures.data(shared.ioSize, thread.getThreadIndex());
+            random = new Random(thread.getThreadIndex());
+            slots = (int) (FILE_SIZE / shared.ioSize);
+        }
+
+        long nextOffset() {
+            return (long) random.nextInt(slots) * buffer.capacity();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = Fixtures.image("concurrent", 2 * FILES * FILE_SIZE / 4096, 4096, 16, FILES, FILE_SIZE, 42);
+        fs = new Fs(1024);
+        fs.mount(image);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fs.unmount();
+        Fixtures.delete(image);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int randomRead(Client client) {
+        client.buffer.clear();
+        return fs.read(client.fd, client.nextOffset(), client.buffer);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public int mixedRead(Client client) {
+        client.buffer.clear();
+        return fs.read(client.fd, client.nextOffset(), client.buffer);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public int mixedWrite(Client client) {
+        client.buffer.clear();
+        return fs.write(client.fd, client.nextOffset(), client.buffer);
+    }
+}
@@ -0,0 +1,74 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Generates the images benchmarks run against. The same arguments always
+ * produce the same image, so numbers from different runs are comparable.
+ */
+public final class Fixtures {
+    static final int NAME_MAX_LENGTH = 16;
+
+    private static final int CHUNK = 1 << 20;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Formats an image and fills files f0, f1... of fileSize bytes each with
+     * pseudo random data derived from seed.
+     *
+     * @return path of the image, under target/fixtures unless -Dfixtures.dir is set
+     */
+    public static String image(String name, long blocks, int blockSize, int inodeCount,
+                               int files, long fileSize, long seed) throws IOException {
+        File directory = new File(System.getProperty("fixtures.dir", "target/fixtures"));
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can not create " + directory);
+
+        String path = new File(directory, name + ".img").getPath();
+        if (!Fs.format(path, blocks, blockSize, inodeCount, NAME_MAX_LENGTH))
+            throw new IOException("Can not format " + path);
+
+        Fs fs = new Fs(1024);
+        if (!fs.mount(path)) throw new IOException("Can not mount " + path);
+        try {
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK);
+
+            for (int i = 0; i < files; i++) {
+                String file = "f" + i;
+                if (!fs.create(file) || !fs.truncate(file, fileSize))
+                    throw new IOException("Image " + path + " is too small");
+
+                Random random = new Random(seed + i);
+                int fd = fs.open(file);
+                for (long offset = 0; offset < fileSize; offset += CHUNK) {
+                    random.nextBytes(chunk.array());
+                    chunk.clear().limit((int) Math.min(CHUNK, fileSize - offset));
+                    fs.write(fd, offset, chunk);
+                }
+                fs.close(fd);
+            }
+        } finally {
+            fs.unmount();
+        }
+
+        return path;
+    }
+
+    public static void delete(String path) {
+        new File(path).delete();
+    }
+
+    /**
+     * @return size bytes of pseudo random data
+     */
+    public static ByteBuffer data(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+}
@@ -0,0 +1,199 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Handle on a FileSystem of the core module.
+ *
+ * The core classes live in the unnamed package, which named packages (and
+ * JMH requires one) can not import, so calls go through method handles.
+ * They are static final, which lets the JIT inline them like direct calls.
+ */
+public final class Fs {
+    private static final Class<?> TYPE;
+    private static final MethodHandle NEW;
+    private static final MethodHandle FORMAT;
+    private static final MethodHandle MOUNT;
+    private static final MethodHandle UNMOUNT;
+    private static final MethodHandle CREATE;
+    private static final MethodHandle OPEN;
+    private static final MethodHandle CLOSE;
+    private static final MethodHandle READ;
+    private static final MethodHandle WRITE;
+    private static final MethodHandle NEW_REQUEST;
+    private static final MethodHandle READV;
+    private static final MethodHandle WRITEV;
+    private static final MethodHandle TRUNCATE;
+    private static final MethodHandle UNLINK;
+    private static final MethodHandle LS;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            TYPE = Class.forName("FileSystem");
+
+            NEW = lookup.findConstructor(TYPE, MethodType.methodType(void.class, int.class))
+                    .asType(MethodType.methodType(Object.class, int.class));
+            FORMAT = lookup.findStatic(TYPE, "format", MethodType.methodType(boolean.class,
+                    String.class, long.class, int.class, int.class, int.class));
+            MOUNT = virtual(lookup, "mount", boolean.class, String.class);
+            UNMOUNT = virtual(lookup, "unmount", boolean.class);
+            CREATE = virtual(lookup, "create", boolean.class, String.class);
+            OPEN = virtual(lookup, "open", int.class, String.class);
+            CLOSE = virtual(lookup, "close", boolean.class, int.class);
+            READ = virtual(lookup, "read", int.class, int.class, long.class, ByteBuffer.class);
+            WRITE = virtual(lookup, "write", int.class, int.class, long.class, ByteBuffer.class);
+            NEW_REQUEST = lookup.findConstructor(Class.forName("IoRequest"),
+                    MethodType.methodType(void.class, int.class, long.class, ByteBuffer.class))
+                    .asType(MethodType.methodType(Object.class, int.class, long.class, ByteBuffer.class));
+            READV = virtual(lookup, "readv", long.class, List.class);
+            WRITEV = virtual(lookup, "writev", long.class, List.class);
+            TRUNCATE = virtual(lookup, "truncate", boolean.class, String.class, long.class);
+            UNLINK = virtual(lookup, "unlink", boolean.class, String.class);
+            LS = virtual(lookup, "ls", String.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object fs;
+
+    public Fs(int cacheBlocks) {
+        try {
+            fs = (Object) NEW.invokeExact(cacheBlocks);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public static boolean format(String path, long blocks, int blockSize, int inodeCount, int nameMaxLength) {
+        try {
+            return (boolean) FORMAT.invokeExact(path, blocks, blockSize, inodeCount, nameMaxLength);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public boolean mount(String path) {
+        try {
+            return (boolean) MOUNT.invokeExact(fs, path);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public boolean unmount() {
+        try {
+            return (boolean) UNMOUNT.invokeExact(fs);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public boolean create(String name) {
+        try {
+            return (boolean) CREATE.invokeExact(fs, name);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public int open(String name) {
+        try {
+            return (int) OPEN.invokeExact(fs, name);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public boolean close(int fd) {
+        try {
+            return (boolean) CLOSE.invokeExact(fs, fd);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public int read(int fd, long offset, ByteBuffer dst) {
+        try {
+            return (int) READ.invokeExact(fs, fd, offset, dst);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public int write(int fd, long offset, ByteBuffer src) {
+        try {
+            return (int) WRITE.invokeExact(fs, fd, offset, src);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * @return an IoRequest, for readv and writev
+     */
+    public static Object request(int fd, long offset, ByteBuffer buffer) {
+        try {
+            return (Object) NEW_REQUEST.invokeExact(fd, offset, buffer);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public long readv(List<Object> requests) {
+        try {
+            return (long) READV.invokeExact(fs, requests);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public long writev(List<Object> requests) {
+        try {
+            return (long) WRITEV.invokeExact(fs, requests);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public boolean truncate(String name, long size) {
+        try {
+            return (boolean) TRUNCATE.invokeExact(fs, name, size);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public boolean unlink(String name) {
+        try {
+            return (boolean) UNLINK.invokeExact(fs, name);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    public String ls() {
+        try {
+            return (String) LS.invokeExact(fs);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static MethodHandle virtual(MethodHandles.Lookup lookup, String name, Class<?> result,
+                                        Class<?>... parameters) throws ReflectiveOperationException {
+        MethodHandle handle = lookup.findVirtual(TYPE, name, MethodType.methodType(result, parameters));
+        return handle.asType(handle.type().changeParameterType(0, Object.class));
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) return (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        return new IllegalStateException(e);
+    }
+}
@@ -0,0 +1,57 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mounting and unmounting large images. The images are sparse, only their
+ * metadata takes disk space.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MountBenchmark {
+    // 1GB, 8GB and 64GB of 4KB blocks
+    @Param({"262144", "2097152", "16777216"})
+    long blocks;
+
+    @Param({"1000"})
+    int files;
+
+    private String image;
+    private Fs fs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = Fixtures.image("mount", blocks, 4096, files, files, 0, 1);
+        fs = new Fs(1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.delete(image);
+    }
+
+    @Benchmark
+    public boolean mountUnmount() {
+        fs.mount(image);
+        return fs.unmount();
+    }
+}
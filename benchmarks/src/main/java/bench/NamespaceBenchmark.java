@@ -0,0 +1,65 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * create/open/unlink churn and listing, with files other files already present.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NamespaceBenchmark {
+    @Param({"10", "1000"})
+    int files;
+
+    private String image;
+    private Fs fs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = Fixtures.image("namespace", 16384, 4096, files + 16, files, 0, 1);
+        fs = new Fs(1024);
+        fs.mount(image);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fs.unmount();
+        Fixtures.delete(image);
+    }
+
+    @Benchmark
+    public boolean createOpenUnlink() {
+        fs.create("churn");
+        fs.close(fs.open("churn"));
+        return fs.unlink("churn");
+    }
+
+    @Benchmark
+    public boolean openClose() {
+        return fs.close(fs.open("f0"));
+    }
+
+    @Benchmark
+    public String ls() {
+        return fs.ls();
+    }
+}
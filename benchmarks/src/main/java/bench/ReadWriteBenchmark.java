@@ -0,0 +1,97 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sequential and random reads and writes inside one 64MB file.
+ *
+ * Run with -prof gc to see the allocations per operation: reads and writes
+ * allocate nothing once warm, but for the read-ahead loads queued by
+ * sequential reads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadWriteBenchmark {
+    static final long FILE_SIZE = 64L << 20;
+
+    @Param({"4096", "65536", "1048576"})
+    int ioSize;
+
+    private String image;
+    private Fs fs;
+    private int fd;
+    private ByteBuffer buffer;
+    private Random random;
+    private long position;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = Fixtures.image("read-write", 2 * FILE_SIZE / 4096, 4096, 16, 1, FILE_SIZE, 42);
+        fs = new Fs(1024);
+        fs.mount(image);
+        fd = fs.open("f0");
+        buffer = Fixtures.data(ioSize, 7);
+        random = new Random(7);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fs.unmount();
+        Fixtures.delete(image);
+    }
+
+    @Benchmark
+    public int sequentialRead() {
+        buffer.clear();
+        return fs.read(fd, nextSequential(), buffer);
+    }
+
+    @Benchmark
+    public int randomRead() {
+        buffer.clear();
+        return fs.read(fd, nextRandom(), buffer);
+    }
+
+    @Benchmark
+    public int sequentialWrite() {
+        buffer.clear();
+        return fs.write(fd, nextSequential(), buffer);
+    }
+
+    @Benchmark
+    public int randomWrite() {
+        buffer.clear();
+        return fs.write(fd, nextRandom(), buffer);
+    }
+
+    private long nextSequential() {
+        long offset = position;
+        position = position + 2 * ioSize > FILE_SIZE ? 0 : position + ioSize;
+        return offset;
+    }
+
+    private long nextRandom() {
+        return (long) random.nextInt((int) (FILE_SIZE / ioSize)) * ioSize;
+    }
+}
@@ -0,0 +1,54 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Growing a file to size bytes and shrinking it back to zero.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TruncateBenchmark {
+    @Param({"4096", "1048576", "67108864"})
+    long size;
+
+    private String image;
+    private Fs fs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = Fixtures.image("truncate", 4 * size / 4096 + 1024, 4096, 16, 1, 0, 1);
+        fs = new Fs(1024);
+        fs.mount(image);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fs.unmount();
+        Fixtures.delete(image);
+    }
+
+    @Benchmark
+    public boolean growShrink() {
+        fs.truncate("f0", size);
+        return fs.truncate("f0", 0);
+    }
+}
@@ -0,0 +1,96 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AsyncFileSystemTest {
+    private static final int BLOCK = MemoryDevice.BLOCK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void callsOfAFileSeeTheWritesMadeBefore() throws Exception {
+        FileSystem fs = MemoryDevice.format(folder.getRoot(), 1024, 16).mount();
+        JournalTest.write(fs, "a", new byte[BLOCK]);
+        int fd = fs.open("a");
+        AsyncFileSystem async = new AsyncFileSystem(fs, 8);
+
+        List<CompletableFuture<Integer>> reads = new ArrayList<CompletableFuture<Integer>>();
+        List<ByteBuffer> values = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < 500; i++) {
+            ByteBuffer src = ByteBuffer.allocate(4);
+            src.putInt(0, i);
+            async.writeAsync(fd, 0, src);
+            // two reads between the writes, they may run together
+            for (int j = 0; j < 2; j++) {
+                ByteBuffer dst = ByteBuffer.allocate(4);
+                reads.add(async.readAsync(fd, 0, dst));
+                values.add(dst);
+            }
+        }
+        CompletableFuture<Boolean> truncated = async.truncateAsync("a", 2);
+        ByteBuffer tail = ByteBuffer.allocate(4);
+        CompletableFuture<Integer> read = async.readAsync(fd, 0, tail);
+
+        for (int i = 0; i < reads.size(); i++) {
+            assertEquals(4, (int) reads.get(i).get());
+            assertEquals(i / 2, values.get(i).getInt(0));
+        }
+        assertTrue(truncated.get());
+        assertEquals(2, (int) read.get());
+
+        async.close();
+        fs.close(fd);
+        fs.unmount();
+    }
+
+    @Test
+    public void waitingCallsAreBounded() throws Exception {
+        MemoryDevice device = MemoryDevice.format(folder.getRoot(), 1024, 16);
+        FileSystem fs = device.mount();
+        JournalTest.write(fs, "a", new byte[64 * BLOCK]);
+        fs.unmount();
+        fs = device.mount();
+        int fd = fs.open("a");
+        AsyncFileSystem async = new AsyncFileSystem(fs, 1, 4);
+
+        // the first call takes the only worker and waits for the device
+        device.hold(true);
+        List<CompletableFuture<Integer>> calls = new ArrayList<CompletableFuture<Integer>>();
+        for (int i = 0; i < 10; i++)
+            calls.add(async.readAsync(fd, (long) i * BLOCK, ByteBuffer.allocate(BLOCK)));
+
+        int rejected = 0;
+        for (CompletableFuture<Integer> call : calls) {
+            if (call.isCompletedExceptionally()) {
+                rejected++;
+                try {
+                    call.get();
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof RejectedExecutionException);
+                }
+            }
+        }
+        assertTrue("rejected " + rejected, rejected == 5 || rejected == 6);
+
+        device.hold(false);
+        for (CompletableFuture<Integer> call : calls) {
+            if (!call.isCompletedExceptionally()) assertEquals(BLOCK, (int) call.get());
+        }
+        assertEquals(BLOCK, (int) async.readAsync(fd, 0, ByteBuffer.allocate(BLOCK)).get());
+
+        async.close();
+        fs.close(fd);
+        fs.unmount();
+    }
+}
@@ -0,0 +1,98 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchIoTest {
+    private static final int BLOCK = MemoryDevice.BLOCK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void batchesAnswerAsSingleCalls() throws Exception {
+        MemoryDevice device = MemoryDevice.format(folder.getRoot(), 4096, 16);
+        FileSystem fs = device.mount();
+        Random random = new Random(1);
+        byte[][] contents = new byte[2][40 * BLOCK];
+        int[] fds = new int[2];
+        for (int i = 0; i < 2; i++) {
+            random.nextBytes(contents[i]);
+            assertTrue(fs.create("f" + i));
+            assertTrue(fs.truncate("f" + i, contents[i].length));
+            fds[i] = fs.open("f" + i);
+        }
+
+        // uneven ranges of both files, in random order, and a closed fd
+        List<IoRequest> writes = new ArrayList<IoRequest>();
+        for (int i = 0; i < 2; i++) {
+            for (int offset = 0; offset < contents[i].length; offset += 700)
+                writes.add(new IoRequest(fds[i], offset, ByteBuffer.wrap(contents[i], offset,
+                        Math.min(700, contents[i].length - offset)).slice()));
+        }
+        Collections.shuffle(writes, random);
+        writes.add(new IoRequest(99, 0, ByteBuffer.allocate(10)));
+        assertEquals(contents[0].length + contents[1].length, fs.writev(writes));
+        assertEquals(-1, writes.get(writes.size() - 1).getResult());
+        for (IoRequest request : writes.subList(0, writes.size() - 1))
+            assertEquals(request.getBuffer().capacity(), request.getResult());
+
+        List<IoRequest> reads = new ArrayList<IoRequest>();
+        for (IoRequest request : writes.subList(0, writes.size() - 1))
+            reads.add(new IoRequest(request.getFd(), request.getOffset(), ByteBuffer.allocate(request.getResult())));
+        // past the end, read like read(fd, offset, dst) does
+        reads.add(new IoRequest(fds[1], contents[1].length - 100, ByteBuffer.allocate(300)));
+        fs.readv(reads);
+        assertEquals(100, reads.get(reads.size() - 1).getResult());
+        for (IoRequest request : reads.subList(0, reads.size() - 1)) {
+            byte[] content = contents[request.getFd() == fds[0] ? 0 : 1];
+            int offset = (int) request.getOffset();
+            assertArrayEquals(Arrays.copyOfRange(content, offset, offset + request.getResult()),
+                    request.getBuffer().array());
+        }
+
+        for (int fd : fds)
+            fs.close(fd);
+        fs.unmount();
+    }
+
+    @Test
+    public void adjacentRangesAreReadTogether() throws Exception {
+        MemoryDevice device = MemoryDevice.format(folder.getRoot(), 4096, 16);
+        FileSystem fs = device.mount();
+        byte[] content = new byte[64 * BLOCK];
+        new Random(2).nextBytes(content);
+        JournalTest.write(fs, "a", content);
+        fs.unmount();
+
+        fs = device.mount();
+        fs.setReadAhead(false);
+        int fd = fs.open("a");
+        List<IoRequest> reads = new ArrayList<IoRequest>();
+        for (int i = 0; i < 64; i++)
+            reads.add(new IoRequest(fd, (long) i * BLOCK, ByteBuffer.allocate(BLOCK)));
+        Collections.shuffle(reads, new Random(3));
+
+        long before = fs.getMetrics().getDeviceReads();
+        assertEquals(content.length, fs.readv(reads));
+        long transfers = fs.getMetrics().getDeviceReads() - before;
+        assertTrue("device reads " + transfers, transfers < 8);
+        for (IoRequest request : reads) {
+            int offset = (int) request.getOffset();
+            assertArrayEquals(Arrays.copyOfRange(content, offset, offset + BLOCK), request.getBuffer().array());
+        }
+
+        fs.close(fd);
+        fs.unmount();
+    }
+}
@@ -0,0 +1,76 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CloneTest {
+    private static final int BLOCK = MemoryDevice.BLOCK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void clonesShareBlocksUntilWritten() throws Exception {
+        MemoryDevice device = MemoryDevice.format(folder.getRoot(), 4096, 16);
+        FileSystem fs = device.mount();
+        long free = getFreeBlocks(fs);
+
+        byte[] content = new byte[100 * BLOCK];
+        new Random(1).nextBytes(content);
+        JournalTest.write(fs, "a", content);
+        fs.sync();
+        long used = free - getFreeBlocks(fs);
+
+        assertTrue(fs.clone("a", "b"));
+        assertTrue(fs.clone("b", "c"));
+        fs.sync();
+        // data blocks are shared, each clone only has its map
+        assertTrue(free - getFreeBlocks(fs) < used + 10);
+        assertClean(fs);
+
+        // a write copies the blocks it touches
+        byte[] changed = content.clone();
+        Arrays.fill(changed, 10 * BLOCK, 12 * BLOCK, (byte) 7);
+        int fd = fs.open("b");
+        assertEquals(2 * BLOCK, fs.write(fd, 10 * BLOCK, Arrays.copyOfRange(changed, 10 * BLOCK, 12 * BLOCK)));
+        fs.close(fd);
+        fs.sync();
+        assertArrayEquals(content, JournalTest.read(fs, "a"));
+        assertArrayEquals(changed, JournalTest.read(fs, "b"));
+        assertArrayEquals(content, JournalTest.read(fs, "c"));
+        assertClean(fs);
+
+        // blocks are freed with their last owner
+        assertTrue(fs.unlink("a"));
+        fs.sync();
+        assertArrayEquals(content, JournalTest.read(fs, "c"));
+        assertClean(fs);
+
+        assertTrue(fs.unlink("c"));
+        fs.sync();
+        assertArrayEquals(changed, JournalTest.read(fs, "b"));
+        assertClean(fs);
+
+        assertTrue(fs.unlink("b"));
+        fs.unmount();
+        fs = device.mount();
+        assertEquals(free, getFreeBlocks(fs));
+        assertClean(fs);
+        fs.unmount();
+    }
+
+    private static long getFreeBlocks(FileSystem fs) {
+        return fs.getMetrics().getFreeBlocks() + fs.getMetrics().getHeldBlocks();
+    }
+
+    private static void assertClean(FileSystem fs) throws Exception {
+        FsckReport report = fs.fsck(false);
+        assertTrue(report.toString(), report.isClean());
+    }
+}
@@ -0,0 +1,78 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CompressionTest {
+    private static final int BLOCK = MemoryDevice.BLOCK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void compressedFilesReadBackWhatWasWritten() throws Exception {
+        MemoryDevice device = MemoryDevice.format(folder.getRoot(), 4096, 16);
+        FileSystem fs = device.mount();
+        Random random = new Random(1);
+
+        // text like content, and content that does not compress
+        byte[] text = new byte[300 * BLOCK + 123];
+        for (int i = 0; i < text.length; i++)
+            text[i] = (byte) ("abcdefgh".charAt(i % 8) + i / 4096 % 3);
+        byte[] noise = new byte[40 * BLOCK];
+        random.nextBytes(noise);
+
+        long free = fs.getMetrics().getFreeBlocks();
+        create(fs, "text", text);
+        fs.sync();
+        assertTrue(free - fs.getMetrics().getFreeBlocks() < 300 / 2);
+        create(fs, "noise", noise);
+        fs.sync();
+        assertArrayEquals(text, JournalTest.read(fs, "text"));
+        assertArrayEquals(noise, JournalTest.read(fs, "noise"));
+
+        // rewriting part of a cluster, and cutting one in two
+        byte[] part = new byte[3 * BLOCK];
+        random.nextBytes(part);
+        int fd = fs.open("text");
+        assertEquals(part.length, fs.write(fd, 17 * BLOCK + 100, part));
+        fs.close(fd);
+        System.arraycopy(part, 0, text, 17 * BLOCK + 100, part.length);
+        text = Arrays.copyOf(text, 150 * BLOCK + 77);
+        assertTrue(fs.truncate("text", text.length));
+        assertArrayEquals(text, JournalTest.read(fs, "text"));
+
+        fs.unmount();
+        fs = device.mount();
+        assertArrayEquals(text, JournalTest.read(fs, "text"));
+        assertArrayEquals(noise, JournalTest.read(fs, "noise"));
+        FsckReport report = fs.fsck(false);
+        assertTrue(report.toString(), report.isClean());
+        fs.unmount();
+    }
+
+    @Test
+    public void compressionIsSetOnEmptyFilesOnly() throws Exception {
+        FileSystem fs = MemoryDevice.format(folder.getRoot(), 1024, 16).mount();
+
+        JournalTest.write(fs, "a", new byte[BLOCK]);
+        assertFalse(fs.setCompression("a", true));
+        fs.unmount();
+    }
+
+    private static void create(FileSystem fs, String name, byte[] content) throws Exception {
+        assertTrue(fs.create(name));
+        assertTrue(fs.setCompression(name, true));
+        assertTrue(fs.truncate(name, content.length));
+        int fd = fs.open(name);
+        assertEquals(content.length, fs.write(fd, 0, content));
+        fs.close(fd);
+    }
+}
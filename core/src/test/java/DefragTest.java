@@ -0,0 +1,76 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DefragTest {
+    private static final int BLOCK = MemoryDevice.BLOCK_SIZE;
+    private static final int CHUNK = 8 * BLOCK;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void movesBlocksOfOpenFiles() throws Exception {
+        MemoryDevice device = MemoryDevice.format(folder.getRoot(), 4096, 16);
+        FileSystem fs = device.mount();
+        byte[] content = new byte[1024 * BLOCK];
+        new Random(1).nextBytes(content);
+
+        // a and b allocated a chunk at a time in turn, then b goes
+        assertTrue(fs.create("a") && fs.truncate("a", content.length));
+        assertTrue(fs.create("b") && fs.truncate("b", content.length));
+        int a = fs.open("a");
+        int b = fs.open("b");
+        for (int offset = 0; offset < content.length; offset += CHUNK) {
+            byte[] chunk = Arrays.copyOfRange(content, offset, offset + CHUNK);
+            assertEquals(CHUNK, fs.write(a, offset, chunk));
+            fs.sync();
+            assertEquals(CHUNK, fs.write(b, offset, chunk));
+            fs.sync();
+        }
+        fs.close(b);
+        assertTrue(fs.unlink("b"));
+        fs.sync();
+        long fragments = fs.getFragments("a");
+        assertTrue(fragments > 100);
+
+        // 4 steps a second, read all along through the descriptor opened before
+        assertTrue(fs.startDefragmentation(512 * 1024));
+        assertFalse(fs.startDefragmentation(0));
+        byte[] read = new byte[content.length];
+        int passes = 0;
+        while (fs.getDefragProgress().isRunning()) {
+            Arrays.fill(read, (byte) 0);
+            assertEquals(content.length, fs.read(a, 0, read));
+            assertArrayEquals(content, read);
+            passes++;
+        }
+        assertTrue(passes > 1);
+
+        DefragProgress progress = fs.getDefragProgress();
+        assertEquals(progress.toString(), 1, progress.getDefragmentedFiles());
+        assertTrue(progress.getMovedBlocks() > 0);
+        assertEquals(1, fs.getFragments("a"));
+        Arrays.fill(read, (byte) 0);
+        assertEquals(content.length, fs.read(a, 0, read));
+        assertArrayEquals(content, read);
+        fs.close(a);
+        FsckReport report = fs.fsck(false);
+        assertTrue(report.toString(), report.isClean());
+        fs.unmount();
+
+        fs = device.mount();
+        assertArrayEquals(content, JournalTest.read(fs, "a"));
+        report = fs.fsck(false);
+        assertTrue(report.toString(), report.isClean());
+        fs.unmount();
+    }
+}
@@ -0,0 +1,80 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DelayedAllocationTest {
+    private static final int BLOCK = MemoryDevice.BLOCK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void flushOfFullImageFindsItsMapBlocksReserved() throws Exception {
+        MemoryDevice image = MemoryDevice.format(folder.getRoot(), 3000, 16);
+
+        for (int round = 0; round < 4; round++) {
+            MemoryDevice device = image.copy();
+            FileSystem fs = device.mount();
+
+            int blocks = 1000 + round * 150;
+            assertTrue(fs.create("a"));
+            assertTrue(fs.truncate("a", (long) blocks * BLOCK));
+
+            // b takes every block left
+            assertTrue(fs.create("b"));
+            long size = fs.getMetrics().getFreeBlocks() - fs.getMetrics().getReservedBlocks();
+            while (!fs.truncate("b", size * BLOCK))
+                size--;
+            while (fs.truncate("b", (size + 1) * BLOCK))
+                size++;
+
+            // every other block: one extent each, the map grows nodes
+            byte[] expected = new byte[blocks * BLOCK];
+            Random random = new Random(round);
+            int fd = fs.open("a");
+            for (int i = round % 2; i < blocks; i += 2) {
+                byte[] block = new byte[BLOCK];
+                random.nextBytes(block);
+                assertEquals(BLOCK, fs.write(fd, (long) i * BLOCK, block));
+                System.arraycopy(block, 0, expected, i * BLOCK, BLOCK);
+            }
+            fs.close(fd);
+            fs.sync();
+            assertArrayEquals(expected, JournalTest.read(fs, "a"));
+            fs.unmount();
+
+            fs = device.mount();
+            assertArrayEquals(expected, JournalTest.read(fs, "a"));
+            FsckReport report = fs.fsck(false);
+            assertTrue(report.toString(), report.isClean());
+
+            assertTrue(fs.unlink("a"));
+            assertTrue(fs.unlink("b"));
+            assertEquals(0, fs.getMetrics().getReservedBlocks());
+            fs.unmount();
+        }
+    }
+
+    @Test
+    public void truncateFailsWhenBlocksAreAllReserved() throws Exception {
+        FileSystem fs = MemoryDevice.format(folder.getRoot(), 3000, 16).mount();
+
+        long free = fs.getMetrics().getFreeBlocks();
+        assertTrue(fs.create("a"));
+        assertTrue(fs.create("b"));
+        assertTrue(fs.truncate("a", (free - 200) * BLOCK));
+        assertFalse(fs.truncate("b", 200L * BLOCK));
+
+        // the reservation of a shrinking file goes back
+        assertTrue(fs.truncate("a", 0));
+        assertTrue(fs.truncate("b", 200L * BLOCK));
+        fs.unmount();
+    }
+}
@@ -0,0 +1,84 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DirectoryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void directoriesSplitBucketsAndSurviveRemount() throws Exception {
+        MemoryDevice device = MemoryDevice.format(folder.getRoot(), 4096, 512);
+        FileSystem fs = device.mount();
+
+        assertTrue(fs.mkdir("d"));
+        assertTrue(fs.mkdir("d/e"));
+        // many more entries than one bucket holds
+        for (int i = 0; i < 300; i++)
+            assertTrue(fs.create("d/e/f" + i));
+        assertFalse(fs.create("d/e/f7"));
+        assertFalse(fs.rmdir("d/e"));
+        for (int i = 0; i < 300; i += 2)
+            assertTrue(fs.unlink("d/e/f" + i));
+
+        assertEntries(fs);
+        fs.unmount();
+        fs = device.mount();
+        assertEntries(fs);
+        FsckReport report = fs.fsck(false);
+        assertTrue(report.toString(), report.isClean());
+        fs.unmount();
+    }
+
+    @Test
+    public void lookupsFollowUnlinkAndRmdir() throws Exception {
+        FileSystem fs = MemoryDevice.format(folder.getRoot(), 1024, 16).mount();
+
+        assertTrue(fs.mkdir("d"));
+        assertTrue(fs.create("d/a"));
+        int a = fs.getAttributes("d/a").getId();
+        assertTrue(fs.link("d/a", "b"));
+        assertEquals(a, fs.getAttributes("b").getId());
+
+        // cached entries go with the names
+        assertTrue(fs.unlink("d/a"));
+        assertNull(fs.getAttributes("d/a"));
+        assertEquals(-1, fs.open("d/a"));
+        assertEquals(a, fs.getAttributes("b").getId());
+        assertTrue(fs.unlink("b"));
+        assertEquals(-1, fs.open("b"));
+
+        assertTrue(fs.create("d/a"));
+        assertFalse(fs.rmdir("d"));
+        assertTrue(fs.unlink("d/a"));
+        assertTrue(fs.rmdir("d"));
+        assertNull(fs.getAttributes("d"));
+        assertNull(fs.list("d"));
+
+        assertTrue(fs.mkdir("d"));
+        assertTrue(fs.list("d").isEmpty());
+        assertEquals(-1, fs.open("d/a"));
+        fs.unmount();
+    }
+
+    private static void assertEntries(FileSystem fs) throws Exception {
+        Set<String> names = new HashSet<String>(fs.list("d/e"));
+        assertEquals(150, names.size());
+        for (int i = 0; i < 300; i++) {
+            String name = "f" + i;
+            assertEquals(name, i % 2 == 1, names.contains(name));
+            int fd = fs.open("d/e/" + name);
+            assertEquals(name, i % 2 == 1, fd != -1);
+            if (fd != -1) fs.close(fd);
+        }
+        assertTrue(fs.getAttributes("d/e").isDirectory());
+    }
+}
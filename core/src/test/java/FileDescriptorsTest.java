@@ -0,0 +1,96 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class FileDescriptorsTest {
+    @Test
+    public void rebuildsKeepOpenedDescriptors() {
+        FileDescriptors descriptors = new FileDescriptors();
+        Map<Integer, Integer> opened = new HashMap<Integer, Integer>();
+        Map<Integer, ReadAhead> states = new HashMap<Integer, ReadAhead>();
+
+        // the table fills with closed slots and grows, many times over
+        for (int i = 0; i < 10000; i++) {
+            int fd = descriptors.open(i);
+            assertFalse(opened.containsKey(fd));
+            if (i % 10 == 0) {
+                opened.put(fd, i);
+                states.put(fd, descriptors.getReadAhead(fd));
+            } else {
+                assertTrue(descriptors.close(fd));
+                assertFalse(descriptors.close(fd));
+                assertEquals(-1, descriptors.getId(fd));
+            }
+        }
+
+        for (Map.Entry<Integer, Integer> entry : opened.entrySet()) {
+            int fd = entry.getKey();
+            assertTrue(descriptors.isOpen(fd));
+            assertEquals((int) entry.getValue(), descriptors.getId(fd));
+            assertSame(states.get(fd), descriptors.getReadAhead(fd));
+            assertTrue(descriptors.close(fd));
+        }
+        for (int fd : opened.keySet()) {
+            assertFalse(descriptors.isOpen(fd));
+            assertNull(descriptors.getReadAhead(fd));
+        }
+    }
+
+    @Test
+    public void descriptorsWrapSkippingOpenedOnes() {
+        FileDescriptors descriptors = new FileDescriptors();
+        assertEquals(1, descriptors.open(1));
+        assertEquals(2, descriptors.open(2));
+        assertEquals(3, descriptors.open(3));
+        assertTrue(descriptors.close(2));
+
+        descriptors.setLastFd(Integer.MAX_VALUE - 2);
+        int last = descriptors.open(4);
+        assertEquals(Integer.MAX_VALUE - 1, last);
+        assertEquals(Integer.MAX_VALUE, descriptors.open(5));
+        assertTrue(descriptors.close(last));
+
+        // past Integer.MAX_VALUE, around 1 and 3 still opened
+        assertEquals(2, descriptors.open(6));
+        assertEquals(4, descriptors.open(7));
+        assertEquals(1, descriptors.getId(1));
+        assertEquals(6, descriptors.getId(2));
+        assertEquals(3, descriptors.getId(3));
+        assertEquals(5, descriptors.getId(Integer.MAX_VALUE));
+        assertEquals(-1, descriptors.getId(last));
+    }
+
+    @Test
+    public void byteArraysReuseTheirBuffer() {
+        FileDescriptors descriptors = new FileDescriptors();
+        int fd = descriptors.open(1);
+        byte[] array = new byte[100];
+
+        ByteBuffer buffer = descriptors.wrap(fd, array, 10, 20);
+        assertEquals(10, buffer.position());
+        assertEquals(30, buffer.limit());
+        // taken by a call, another one wraps its own
+        assertNotSame(buffer, descriptors.wrap(fd, array, 0, 100));
+        buffer.position(30);
+        descriptors.release(fd, buffer);
+
+        assertSame(buffer, descriptors.wrap(fd, array, 50, 50));
+        assertEquals(50, buffer.position());
+        assertEquals(100, buffer.limit());
+        descriptors.release(fd, buffer);
+        assertNotSame(buffer, descriptors.wrap(fd, new byte[100], 0, 100));
+
+        descriptors.close(fd);
+        descriptors.release(fd, buffer);
+        assertNotSame(buffer, descriptors.wrap(fd, array, 0, 100));
+    }
+}
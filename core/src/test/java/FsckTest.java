@@ -0,0 +1,117 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FsckTest {
+    private static final int BLOCK = MemoryDevice.BLOCK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void repairsCorruptedImage() throws Exception {
+        MemoryDevice device = MemoryDevice.format(folder.getRoot(), 4096, 16);
+        FileSystem fs = device.mount();
+
+        byte[] content = new byte[20 * BLOCK];
+        new Random(1).nextBytes(content);
+        JournalTest.write(fs, "a", content);
+        assertTrue(fs.mkdir("d"));
+        JournalTest.write(fs, "d/x", content);
+        int a = fs.getAttributes("a").getId();
+        assertTrue(fs.fsck(false).isClean());
+        fs.unmount();
+
+        Superblock superblock = Superblock.read(device);
+        long inode = superblock.getFirstInodePointer() + (long) Superblock.INODE_SIZE * (a - 1);
+        long bitmask = superblock.getBitmaskPointer();
+        long last = superblock.getBlockCount() - 1;
+        long used = last;
+        while (!isUsed(device, bitmask, used))
+            used--;
+
+        device.putShort(inode + 2, (short) 5);
+        setUsed(device, bitmask, last, true);
+        setUsed(device, bitmask, used, false);
+
+        fs = device.mount();
+        FsckReport report = fs.fsck(false);
+        assertFalse(report.isClean());
+        assertEquals(report.toString(), 1, report.getCount(FsckReport.Problem.wrongLinks));
+        assertEquals(report.toString(), 1, report.getCount(FsckReport.Problem.leakedBlock));
+        assertEquals(report.toString(), 1, report.getCount(FsckReport.Problem.freeBlockInUse));
+
+        report = fs.fsck(true);
+        assertTrue(report.isRepaired());
+        report = fs.fsck(false);
+        assertTrue(report.toString(), report.isClean());
+        assertTrue(fs.filestat("" + a).contains("Links count : 1"));
+        fs.unmount();
+
+        fs = device.mount();
+        report = fs.fsck(false);
+        assertTrue(report.toString(), report.isClean());
+        assertArrayEquals(content, JournalTest.read(fs, "a"));
+        assertArrayEquals(content, JournalTest.read(fs, "d/x"));
+        fs.unmount();
+    }
+
+    @Test
+    public void crashedImagesAreClean() throws Exception {
+        MemoryDevice image = MemoryDevice.format(folder.getRoot(), 4096, 64);
+
+        for (int round = 0; round < 20; round++) {
+            Random random = new Random(round);
+            MemoryDevice device = image.copy();
+            FileSystem fs = device.mount();
+            assertTrue(fs.mkdir("d"));
+
+            for (int i = 0; i < 150; i++) {
+                String name = (random.nextBoolean() ? "d/" : "") + "f" + random.nextInt(12);
+                int op = random.nextInt(8);
+                if (op < 2) {
+                    if (fs.create(name) && random.nextInt(3) == 0) fs.setCompression(name, true);
+                } else if (op < 5) {
+                    byte[] content = new byte[1 + random.nextInt(5000)];
+                    random.nextBytes(content);
+                    int offset = random.nextInt(20000);
+                    int fd = fs.open(name);
+                    if (fd != -1 && fs.truncate(name, offset + content.length)) fs.write(fd, offset, content);
+                    if (fd != -1) fs.close(fd);
+                } else if (op < 6) {
+                    fs.unlink(name);
+                } else if (op < 7) {
+                    fs.clone(name, "c" + random.nextInt(4));
+                } else {
+                    fs.sync();
+                }
+            }
+            FsckReport report = fs.fsck(false);
+            assertTrue("round " + round + "\n" + report, report.isClean());
+
+            MemoryDevice crashed = device.crash(random);
+            fs.unmount();
+            fs = crashed.mount();
+            report = fs.fsck(false);
+            assertTrue("crash round " + round + "\n" + report, report.isClean());
+            fs.unmount();
+        }
+    }
+
+    private static boolean isUsed(MemoryDevice device, long bitmask, long block) {
+        return (device.get(bitmask + block / 8) & 1 << block % 8) != 0;
+    }
+
+    private static void setUsed(MemoryDevice device, long bitmask, long block, boolean used) {
+        byte bits = device.get(bitmask + block / 8);
+        int bit = 1 << block % 8;
+        device.put(bitmask + block / 8, (byte) (used ? bits | bit : bits & ~bit));
+    }
+}
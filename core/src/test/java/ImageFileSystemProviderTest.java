@@ -0,0 +1,152 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImageFileSystemProviderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void copiesAndMoves() throws Exception {
+        ImageFileSystem images = open("one", true);
+        ImageFileSystem others = open("two", true);
+        byte[] content = new byte[100 * 1024];
+        new Random(1).nextBytes(content);
+
+        Path a = images.getPath("/a");
+        Files.write(a, content);
+        Files.createDirectory(images.getPath("/d"));
+        Path b = images.getPath("/d/b");
+        Files.copy(a, b);
+        assertArrayEquals(content, Files.readAllBytes(b));
+        assertFalse(id(a) == id(b));
+        try {
+            Files.copy(a, b);
+            fail();
+        } catch (FileAlreadyExistsException expected) {
+            // not replaced
+        }
+        Files.write(a, Arrays.copyOf(content, 10));
+        Files.copy(a, b, StandardCopyOption.REPLACE_EXISTING);
+        assertArrayEquals(Arrays.copyOf(content, 10), Files.readAllBytes(b));
+
+        // a rename keeps the file
+        int moved = id(b);
+        Path c = images.getPath("/c");
+        Files.move(b, c);
+        assertFalse(Files.exists(b));
+        assertEquals(moved, id(c));
+        assertEquals(1, Files.getAttribute(c, "image:links"));
+
+        try {
+            Files.move(images.getPath("/d"), images.getPath("/e"));
+            Files.createFile(images.getPath("/e/x"));
+            Files.move(images.getPath("/e"), images.getPath("/f"));
+            fail();
+        } catch (DirectoryNotEmptyException expected) {
+            // only empty directories move
+        }
+        assertTrue(Files.isDirectory(images.getPath("/e")));
+        assertFalse(Files.exists(images.getPath("/d")));
+
+        // to another image, by copy and delete
+        Files.write(a, content);
+        Path other = others.getPath("/a");
+        Files.move(a, other);
+        assertFalse(Files.exists(a));
+        assertArrayEquals(content, Files.readAllBytes(other));
+
+        images.close();
+        others.close();
+        images = open("one", true);
+        assertArrayEquals(Arrays.copyOf(content, 10), Files.readAllBytes(images.getPath("/c")));
+        assertTrue(Files.exists(images.getPath("/e/x")));
+        FsckReport report = images.getFileSystem().fsck(false);
+        assertTrue(report.toString(), report.isClean());
+        images.close();
+    }
+
+    @Test
+    public void transfersGoAroundTheCache() throws Exception {
+        byte[] content = new byte[3 << 20];
+        new Random(2).nextBytes(content);
+        File host = folder.newFile("host");
+        Files.write(host.toPath(), content);
+
+        for (boolean mapped : new boolean[] {false, true}) {
+            ImageFileSystem images = open(mapped ? "mapped" : "channel", mapped);
+            Metrics metrics = images.getFileSystem().getMetrics();
+            Path a = images.getPath("/a");
+
+            // a new file grows through the file system
+            FileChannel src = FileChannel.open(host.toPath());
+            FileChannel dst = FileChannel.open(a, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.READ);
+            assertEquals(content.length, dst.transferFrom(src, 0, content.length));
+            dst.force(true);
+
+            // cached blocks of the file must see the overwrite
+            ByteBuffer cached = ByteBuffer.allocate(100);
+            dst.read(cached, 1000);
+            byte[] changed = content.clone();
+            for (int i = 0; i < changed.length; i++)
+                changed[i] ^= 0x5A;
+            Files.write(host.toPath(), changed);
+            src.position(0);
+            long written = metrics.getDeviceBytesWritten();
+            assertEquals(content.length, dst.transferFrom(src, 0, content.length));
+            if (!mapped) assertTrue(metrics.getDeviceBytesWritten() - written < content.length / 8);
+            cached.clear();
+            dst.read(cached, 1000);
+            assertArrayEquals(Arrays.copyOfRange(changed, 1000, 1100), cached.array());
+            src.close();
+
+            File back = folder.newFile("back" + mapped);
+            FileChannel out = FileChannel.open(back.toPath(), StandardOpenOption.WRITE);
+            long read = metrics.getDeviceBytesRead();
+            assertEquals(content.length, dst.transferTo(0, content.length + 100, out));
+            if (!mapped) assertTrue(metrics.getDeviceBytesRead() - read < content.length / 8);
+            out.close();
+            dst.close();
+            assertArrayEquals(changed, Files.readAllBytes(back.toPath()));
+            assertArrayEquals(changed, Files.readAllBytes(a));
+            images.close();
+        }
+    }
+
+    private ImageFileSystem open(String name, boolean mapped) throws Exception {
+        File image = new File(folder.getRoot(), name);
+        if (!image.exists()) assertTrue(FileSystem.format(image.getPath(), 16384, 512, 64, 32));
+
+        Map<String, Object> env = new HashMap<String, Object>();
+        env.put("mapped", mapped);
+        URI uri = URI.create(ImageFileSystemProvider.SCHEME + ":" + image.toURI());
+        return (ImageFileSystem) FileSystems.newFileSystem(uri, env);
+    }
+
+    private static int id(Path path) throws Exception {
+        return (Integer) Files.getAttribute(path, "image:id");
+    }
+}
@@ -0,0 +1,135 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JournalTest {
+    private static final int BLOCK = MemoryDevice.BLOCK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void syncedFilesSurviveCrash() throws Exception {
+        MemoryDevice image = MemoryDevice.format(folder.getRoot(), 4096, 32);
+
+        for (int round = 0; round < 20; round++) {
+            Random random = new Random(round);
+            MemoryDevice device = image.copy();
+            FileSystem fs = device.mount();
+
+            Map<String, byte[]> synced = new HashMap<String, byte[]>();
+            for (int i = 0; i < 8; i++) {
+                byte[] content = new byte[1 + random.nextInt(20 * BLOCK)];
+                random.nextBytes(content);
+                write(fs, "s" + i, content);
+                synced.put("s" + i, content);
+            }
+            fs.sync();
+
+            // changes after the sync may or may not survive
+            for (int i = 0; i < 8; i++)
+                write(fs, "u" + i, new byte[1 + random.nextInt(20 * BLOCK)]);
+            fs.unlink("s0");
+            synced.remove("s0");
+
+            MemoryDevice crashed = device.crash(random);
+            fs.unmount();
+
+            FileSystem replayed = crashed.mount();
+            for (Map.Entry<String, byte[]> file : synced.entrySet())
+                assertArrayEquals("round " + round + " " + file.getKey(), file.getValue(), read(replayed, file.getKey()));
+            FsckReport report = replayed.fsck(false);
+            assertTrue("round " + round + "\n" + report, report.isClean());
+            replayed.unmount();
+        }
+    }
+
+    @Test
+    public void committedMapsNeverShowFreedData() throws Exception {
+        MemoryDevice image = MemoryDevice.format(folder.getRoot(), 4096, 16);
+
+        for (int round = 0; round < 10; round++) {
+            Random random = new Random(round);
+            MemoryDevice device = image.copy();
+            FileSystem fs = device.mount(64);
+
+            // fills the image, so that the next file reuses its blocks
+            byte[] old = new byte[(int) (fs.getMetrics().getFreeBlocks() - 300) * BLOCK];
+            Arrays.fill(old, (byte) 0xAA);
+            write(fs, "old", old);
+            fs.sync();
+            fs.unlink("old");
+            fs.sync();
+            fs.fsck(false);
+
+            // single block runs, committed in the background only
+            fs.create("new");
+            fs.truncate("new", 1500 * BLOCK);
+            int fd = fs.open("new");
+            byte[] block = new byte[BLOCK];
+            Arrays.fill(block, (byte) 0x55);
+            for (int i = 0; i < 1500; i += 2)
+                fs.write(fd, (long) i * BLOCK, block);
+            fs.close(fd);
+            Thread.sleep(300);
+
+            MemoryDevice crashed = device.crash(random);
+            fs.unmount();
+
+            FileSystem replayed = crashed.mount(64);
+            for (byte b : read(replayed, "new"))
+                assertTrue("round " + round, b == 0 || b == 0x55);
+            replayed.unmount();
+        }
+    }
+
+    @Test
+    public void unmountCommitSurvivesCrashBeforeCheckpoint() throws Exception {
+        MemoryDevice device = MemoryDevice.format(folder.getRoot(), 4096, 16);
+        FileSystem fs = device.mount();
+
+        // delayed data, mapped by the transaction unmount commits
+        byte[] content = new byte[30 * BLOCK];
+        new Random(1).nextBytes(content);
+        write(fs, "a", content);
+        assertTrue(fs.getMetrics().getReservedBlocks() > 0);
+
+        // the superblock is written home by the checkpoint only
+        device.watch(0);
+        assertTrue(fs.unmount());
+        MemoryDevice crashed = device.getWatched();
+        assertNotNull(crashed);
+
+        FileSystem replayed = crashed.mount();
+        assertArrayEquals(content, read(replayed, "a"));
+        FsckReport report = replayed.fsck(false);
+        assertTrue(report.toString(), report.isClean());
+        replayed.unmount();
+    }
+
+    static void write(FileSystem fs, String name, byte[] content) throws Exception {
+        assertTrue(fs.create(name));
+        assertTrue(fs.truncate(name, content.length));
+        int fd = fs.open(name);
+        assertEquals(content.length, fs.write(fd, 0, content));
+        fs.close(fd);
+    }
+
+    static byte[] read(FileSystem fs, String name) throws Exception {
+        int fd = fs.open(name);
+        byte[] content = new byte[(int) fs.size(fd)];
+        assertEquals(content.length, fs.read(fd, 0, content));
+        fs.close(fd);
+        return content;
+    }
+}
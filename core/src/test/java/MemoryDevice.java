@@ -0,0 +1,218 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Block device in memory that can crash: writes are durable once forced,
+ * and a crash keeps a random subset of the ones since the last force.
+ */
+public class MemoryDevice implements BlockDevice {
+    public static final int BLOCK_SIZE = 512;
+
+    private final ByteBuffer content;
+    private byte[] durable;
+    // position, bytes of every write since the last force
+    private final List<Long> positions = new ArrayList<Long>();
+    private final List<byte[]> writes = new ArrayList<byte[]>();
+    // crash image taken before the first write to watched
+    private long watched = -1;
+    private byte[] watchedImage;
+    // reads wait while held
+    private boolean held;
+
+    private MemoryDevice(byte[] image) {
+        content = ByteBuffer.wrap(image.clone()).order(ByteOrder.LITTLE_ENDIAN);
+        durable = image.clone();
+    }
+
+    /**
+     * @return device holding an image of BLOCK_SIZE blocks formatted by
+     *         FileSystem.format into dir
+     */
+    public static MemoryDevice format(File dir, long blocksCount, int inodeCount) throws IOException {
+        File image = new File(dir, "image");
+        if (!FileSystem.format(image.getPath(), blocksCount, BLOCK_SIZE, inodeCount, 8))
+            throw new IOException("Not formatted");
+        return new MemoryDevice(Files.readAllBytes(image.toPath()));
+    }
+
+    /**
+     * @return file system with a cache of 16 blocks mounted on this device
+     */
+    public FileSystem mount() throws IOException {
+        return mount(16);
+    }
+
+    public FileSystem mount(int cacheBlocks) throws IOException {
+        FileSystem fs = new FileSystem(cacheBlocks);
+        if (!fs.mount(this)) throw new IOException("Not mounted");
+        return fs;
+    }
+
+    /**
+     * @return device holding what this one holds now
+     */
+    public synchronized MemoryDevice copy() {
+        return new MemoryDevice(content.array());
+    }
+
+    /**
+     * Remembers what a crash right before the next write to position
+     * would leave.
+     */
+    public synchronized void watch(long position) {
+        watched = position;
+        watchedImage = null;
+    }
+
+    /**
+     * @return device crashed before the watched write, or null if there was none
+     */
+    public synchronized MemoryDevice getWatched() {
+        return watchedImage == null ? null : new MemoryDevice(watchedImage);
+    }
+
+    /**
+     * Makes reads wait until released.
+     */
+    public synchronized void hold(boolean held) {
+        this.held = held;
+        notifyAll();
+    }
+
+    /**
+     * @return device holding what survives a crash now
+     */
+    public synchronized MemoryDevice crash(Random random) {
+        byte[] image = durable.clone();
+        for (int i = 0; i < writes.size(); i++) {
+            byte[] write = writes.get(i);
+            if (random.nextBoolean())
+                System.arraycopy(write, 0, image, (int) (long) positions.get(i), write.length);
+        }
+        return new MemoryDevice(image);
+    }
+
+    @Override
+    public long size() {
+        return content.capacity();
+    }
+
+    @Override
+    public void ensureSize(long size) throws IOException {
+        if (size > content.capacity()) throw new IOException("Device is too small");
+    }
+
+    @Override
+    public synchronized void read(long position, ByteBuffer dst) throws IOException {
+        while (held) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+        }
+
+        ByteBuffer source = content.duplicate();
+        source.limit((int) position + dst.remaining()).position((int) position);
+        dst.put(source);
+    }
+
+    @Override
+    public synchronized void write(long position, ByteBuffer src) {
+        int length = src.remaining();
+        ByteBuffer target = content.duplicate();
+        target.position((int) position);
+        target.put(src);
+        logWrite(position, length);
+    }
+
+    @Override
+    public synchronized void read(long position, ByteBuffer[] dsts) throws IOException {
+        for (ByteBuffer dst : dsts) {
+            int length = dst.remaining();
+            read(position, dst);
+            position += length;
+        }
+    }
+
+    @Override
+    public synchronized void write(long position, ByteBuffer[] srcs) {
+        for (ByteBuffer src : srcs) {
+            int length = src.remaining();
+            write(position, src);
+            position += length;
+        }
+    }
+
+    @Override
+    public synchronized byte get(long position) {
+        return content.get((int) position);
+    }
+
+    @Override
+    public synchronized void put(long position, byte value) {
+        content.put((int) position, value);
+        logWrite(position, 1);
+    }
+
+    @Override
+    public synchronized short getShort(long position) {
+        return content.getShort((int) position);
+    }
+
+    @Override
+    public synchronized void putShort(long position, short value) {
+        content.putShort((int) position, value);
+        logWrite(position, 2);
+    }
+
+    @Override
+    public synchronized int getInt(long position) {
+        return content.getInt((int) position);
+    }
+
+    @Override
+    public synchronized void putInt(long position, int value) {
+        content.putInt((int) position, value);
+        logWrite(position, 4);
+    }
+
+    @Override
+    public synchronized long getLong(long position) {
+        return content.getLong((int) position);
+    }
+
+    @Override
+    public synchronized void putLong(long position, long value) {
+        content.putLong((int) position, value);
+        logWrite(position, 8);
+    }
+
+    @Override
+    public synchronized void force() {
+        durable = content.array().clone();
+        positions.clear();
+        writes.clear();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void logWrite(long position, int length) {
+        if (watchedImage == null && watched >= position && watched < position + length)
+            watchedImage = durable.clone();
+
+        byte[] write = new byte[length];
+        for (int i = 0; i < length; i++)
+            write[i] = content.get((int) position + i);
+        positions.add(position);
+        writes.add(write);
+    }
+}
@@ -0,0 +1,106 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MountTest {
+    private static final int BLOCK = MemoryDevice.BLOCK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void cleanImagesMountLazily() throws Exception {
+        MemoryDevice device = MemoryDevice.format(folder.getRoot(), 65536, 1024);
+        FileSystem fs = device.mount();
+        byte[] content = new byte[40 * BLOCK];
+        new Random(1).nextBytes(content);
+        for (int i = 0; i < 50; i++)
+            JournalTest.write(fs, "f" + i, content);
+        fs.unmount();
+
+        Superblock superblock = Superblock.read(device);
+        assertTrue(superblock.isClean());
+        long free = superblock.getFreeBlocks();
+        assertEquals(countFree(device, superblock), free);
+
+        MemoryDevice crashed = device.copy();
+        clearClean(crashed);
+
+        // the stored count is trusted, the bitmask and indexes are read when needed
+        FileSystem lazy = mountCold(device);
+        long lazyRead = lazy.getMetrics().getDeviceBytesRead();
+        assertEquals(free, lazy.getMetrics().getFreeBlocks());
+        assertFalse(Superblock.read(device).isClean());
+
+        FileSystem full = mountCold(crashed);
+        assertEquals(free, full.getMetrics().getFreeBlocks());
+        assertTrue(lazyRead < full.getMetrics().getDeviceBytesRead());
+        full.unmount();
+
+        assertArrayEquals(content, JournalTest.read(lazy, "f49"));
+        JournalTest.write(lazy, "g", content);
+        lazy.sync();
+        assertEquals(free - 40, lazy.getMetrics().getFreeBlocks() + lazy.getMetrics().getHeldBlocks());
+        lazy.unmount();
+
+        FileSystem remounted = device.mount();
+        assertArrayEquals(content, JournalTest.read(remounted, "g"));
+        FsckReport report = remounted.fsck(false);
+        assertTrue(report.toString(), report.isClean());
+        remounted.unmount();
+    }
+
+    @Test
+    public void crashedImagesRecountFreeBlocks() throws Exception {
+        MemoryDevice device = MemoryDevice.format(folder.getRoot(), 4096, 64);
+        FileSystem fs = device.mount();
+        Random random = new Random(2);
+        for (int i = 0; i < 20; i++)
+            JournalTest.write(fs, "f" + i, new byte[random.nextInt(30 * BLOCK)]);
+        fs.sync();
+        for (int i = 0; i < 20; i += 3)
+            fs.unlink("f" + i);
+
+        MemoryDevice crashed = device.crash(random);
+        fs.unmount();
+        assertFalse(Superblock.read(crashed).isClean());
+
+        FileSystem replayed = crashed.mount();
+        // held blocks are free in the bitmask
+        Superblock superblock = Superblock.read(crashed);
+        assertEquals(countFree(crashed, superblock),
+                replayed.getMetrics().getFreeBlocks() + replayed.getMetrics().getHeldBlocks());
+        FsckReport report = replayed.fsck(false);
+        assertTrue(report.toString(), report.isClean());
+        replayed.unmount();
+    }
+
+    private static FileSystem mountCold(MemoryDevice device) {
+        FileSystem fs = new FileSystem(16);
+        fs.setWarmUp(false);
+        assertTrue(fs.mount(device));
+        return fs;
+    }
+
+    private static void clearClean(MemoryDevice device) throws Exception {
+        Superblock superblock = Superblock.read(device);
+        superblock.setClean(false, 0);
+        superblock.write(device);
+    }
+
+    private static long countFree(MemoryDevice device, Superblock superblock) {
+        long free = 0;
+        for (long block = 0; block < superblock.getBlockCount(); block++) {
+            if ((device.get(superblock.getBitmaskPointer() + block / 8) & 1 << block % 8) == 0)
+                free++;
+        }
+        return free;
+    }
+}
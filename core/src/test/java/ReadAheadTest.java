@@ -0,0 +1,107 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReadAheadTest {
+    private static final int BLOCK = MemoryDevice.BLOCK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void windowGrowsBacksOffAndResets() {
+        ReadAhead ahead = new ReadAhead();
+
+        assertWindow(ahead, 8, 24, 0, 8 * BLOCK);
+        assertWindow(ahead, 24, 48, 8 * BLOCK, 8 * BLOCK);
+        // far enough ahead already
+        assertFalse(ahead.record(16 * BLOCK, 8 * BLOCK, BLOCK, 1000));
+
+        // a random read starts over
+        assertFalse(ahead.record(500 * BLOCK, 10, BLOCK, 1000));
+        assertWindow(ahead, 501, 505, 500 * BLOCK + 10, 10);
+
+        // runs added while a load is pending go with it
+        assertTrue(ahead.addRun(7, 4));
+        assertTrue(ahead.startLoad(1));
+        assertTrue(ahead.addRun(20, 2));
+        assertFalse(ahead.startLoad(1));
+        assertTrue(ahead.nextRun());
+        assertEquals(7, ahead.getRunBlock());
+        assertTrue(ahead.addRun(30, 1));
+        assertTrue(ahead.nextRun());
+        assertEquals(20, ahead.getRunBlock());
+        assertEquals(2, ahead.getRunLength());
+        assertTrue(ahead.nextRun());
+        assertEquals(30, ahead.getRunBlock());
+        assertFalse(ahead.nextRun());
+        assertFalse(ahead.startLoad(1));
+        assertTrue(ahead.addRun(40, 1));
+        assertTrue(ahead.startLoad(1));
+
+        // an abandoned load drops its runs
+        ahead.endLoad();
+        assertFalse(ahead.nextRun());
+        for (int i = 0; i < 512; i++)
+            assertTrue(ahead.addRun(i, 1));
+        assertFalse(ahead.addRun(512, 1));
+
+        // the window stops growing, and at the end of the file
+        long offset = 0;
+        long end = 0;
+        ahead = new ReadAhead();
+        for (int i = 0; i < 200; i++) {
+            boolean window = ahead.record(offset, 8 * BLOCK, BLOCK, 1000);
+            offset += 8 * BLOCK;
+            if (!window) continue;
+            assertTrue(ahead.getTo() - ahead.getFrom() <= 256);
+            assertEquals(Math.max(end, offset / BLOCK), ahead.getFrom());
+            end = ahead.getTo();
+        }
+        assertEquals(1000, end);
+    }
+
+    @Test
+    public void sequentialReadsPrefetch() throws Exception {
+        MemoryDevice device = MemoryDevice.format(folder.getRoot(), 4096, 16);
+        FileSystem fs = device.mount(512);
+        byte[] content = new byte[1000 * BLOCK];
+        new Random(1).nextBytes(content);
+        JournalTest.write(fs, "a", content);
+        fs.unmount();
+
+        // random reads load nothing ahead
+        fs = device.mount(512);
+        int fd = fs.open("a");
+        Random random = new Random(2);
+        byte[] dst = new byte[BLOCK];
+        for (int i = 0; i < 50; i++)
+            fs.read(fd, (long) random.nextInt(1000) * BLOCK, dst);
+        Thread.sleep(100);
+        assertEquals(0, fs.getMetrics().getCachePrefetches());
+
+        for (long offset = 0; offset < 100 * BLOCK; offset += 4 * BLOCK) {
+            byte[] part = new byte[4 * BLOCK];
+            assertEquals(part.length, fs.read(fd, offset, part));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fs.getMetrics().getCachePrefetches() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(fs.getMetrics().getCachePrefetches() > 0);
+
+        fs.close(fd);
+        fs.unmount();
+    }
+
+    private static void assertWindow(ReadAhead ahead, long from, long to, long offset, int length) {
+        assertTrue(ahead.record(offset, length, BLOCK, 1000));
+        assertEquals(from, ahead.getFrom());
+        assertEquals(to, ahead.getTo());
+    }
+}
@@ -0,0 +1,114 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StreamTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void streamsAppendAndReadBack() throws Exception {
+        FileSystem fs = MemoryDevice.format(folder.getRoot(), 4096, 16).mount();
+        byte[] head = new byte[1000];
+        byte[] tail = new byte[200 * 1024];
+        Random random = new Random(1);
+        random.nextBytes(head);
+        random.nextBytes(tail);
+        JournalTest.write(fs, "a", head);
+
+        int fd = fs.open("a");
+        OutputStream out = fs.newOutputStream(fd);
+        out.write(tail[0]);
+        out.write(tail, 1, 99);
+        // past the stream buffer
+        out.write(tail, 100, tail.length - 100);
+        out.close();
+        assertEquals(-1, fs.size(fd));
+
+        byte[] expected = Arrays.copyOf(head, head.length + tail.length);
+        System.arraycopy(tail, 0, expected, head.length, tail.length);
+        assertArrayEquals(expected, JournalTest.read(fs, "a"));
+
+        InputStream in = fs.newInputStream(fs.open("a"));
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        read.write(in.read());
+        assertEquals(10, in.skip(10));
+        read.write(new byte[10]);
+        byte[] chunk = new byte[3000];
+        int length;
+        while ((length = in.read(chunk)) != -1)
+            read.write(chunk, 0, length);
+        assertEquals(-1, in.read());
+        in.close();
+        Arrays.fill(expected, 1, 11, (byte) 0);
+        assertArrayEquals(expected, read.toByteArray());
+
+        assertNull(fs.newInputStream(fd));
+        fs.unmount();
+    }
+
+    @Test
+    public void channelSeeksGrowsAndTruncates() throws Exception {
+        FileSystem fs = MemoryDevice.format(folder.getRoot(), 4096, 16).mount();
+        byte[] content = new byte[5000];
+        new Random(2).nextBytes(content);
+        JournalTest.write(fs, "a", content);
+
+        int fd = fs.open("a");
+        SeekableByteChannel channel = fs.newByteChannel(fd);
+        ByteBuffer dst = ByteBuffer.allocate(100);
+        assertEquals(100, channel.read(dst));
+        assertArrayEquals(Arrays.copyOf(content, 100), dst.array());
+
+        // a write drops what was read ahead
+        channel.position(50);
+        assertEquals(4, channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4})));
+        channel.position(48);
+        dst = ByteBuffer.allocate(8);
+        channel.read(dst);
+        assertArrayEquals(new byte[] {content[48], content[49], 1, 2, 3, 4, content[54], content[55]}, dst.array());
+
+        // writing past the end grows the file, with a hole
+        channel.position(8000);
+        channel.write(ByteBuffer.wrap(new byte[] {9}));
+        assertEquals(8001, channel.size());
+        channel.position(7000);
+        dst = ByteBuffer.allocate(1001);
+        assertEquals(1001, channel.read(dst));
+        assertEquals(0, dst.get(0));
+        assertEquals(9, dst.get(1000));
+        assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+
+        channel.truncate(3000);
+        assertEquals(3000, channel.size());
+        assertEquals(3000, channel.position());
+        channel.truncate(5000);
+        assertEquals(3000, channel.size());
+
+        channel.close();
+        assertFalse(channel.isOpen());
+        assertEquals(-1, fs.size(fd));
+        try {
+            channel.position();
+            fail();
+        } catch (ClosedChannelException expected) {
+            // closed
+        }
+        fs.unmount();
+    }
+}
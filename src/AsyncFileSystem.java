@@ -0,0 +1,331 @@
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking facade of a FileSystem: every call runs on a worker thread
+ * and completes a CompletableFuture with what the FileSystem call returned,
+ * or exceptionally with its IOException.
+ *
+ * Workers are virtual threads when the JVM has them, else a pool of
+ * maxInFlight daemon threads.
+ *
+ * Calls of the same file run in the order they were made, as far as they
+ * can see each other: a write or truncate waits for every earlier call of
+ * the file, a read or open waits for the earlier writes and truncates only,
+ * so reads between two writes run together. Files are told apart by inode
+ * id, so a truncate or open resolves its path when it is made. Calls on
+ * different files run concurrently.
+ *
+ * At most maxInFlight calls run at once. Calls made past that wait in a
+ * queue; the caller never does. At most maxQueued calls may wait: past
+ * that, calls complete at once with a RejectedExecutionException.
+ */
+public class AsyncFileSystem {
+    private static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    private static final int DEFAULT_MAX_QUEUED = 4096;
+    // lane of calls needing no order
+    private static final int NO_LANE = -1;
+
+    private final FileSystem fs;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final int maxQueued;
+
+    // calls ready to run once fewer than maxInFlight do, guards running
+    private final Queue<Runnable> waiting = new ArrayDeque<Runnable>();
+    private int running;
+    // calls made and not started yet
+    private final AtomicInteger queued = new AtomicInteger();
+
+    // inode id -> calls of the file running or waiting for earlier ones
+    private final Map<Integer, Lane> lanes = new HashMap<Integer, Lane>();
+
+    public AsyncFileSystem(FileSystem fs) {
+        this(fs, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_QUEUED);
+    }
+
+    public AsyncFileSystem(FileSystem fs, int maxInFlight) {
+        this(fs, maxInFlight, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * @param maxInFlight how many calls run at once
+     * @param maxQueued how many calls may wait to run
+     */
+    public AsyncFileSystem(FileSystem fs, int maxInFlight, int maxQueued) {
+        if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be positive");
+        if (maxQueued < 0) throw new IllegalArgumentException("maxQueued must not be negative");
+
+        this.fs = fs;
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.executor = createExecutor(maxInFlight);
+    }
+
+    public CompletableFuture<Integer> openAsync(final String path) {
+        int id;
+        try {
+            id = fs.resolveFileId(path);
+        } catch (IOException e) {
+            return failed(e);
+        }
+
+        return submit(id, false, new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                return fs.open(path);
+            }
+        });
+    }
+
+    /**
+     * @see FileSystem#read(int, long, ByteBuffer)
+     */
+    public CompletableFuture<Integer> readAsync(final int fd, final long offset, final ByteBuffer dst) {
+        return submit(fs.getOpenedFileId(fd), false, new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                return fs.read(fd, offset, dst);
+            }
+        });
+    }
+
+    /**
+     * @see FileSystem#write(int, long, ByteBuffer)
+     */
+    public CompletableFuture<Integer> writeAsync(final int fd, final long offset, final ByteBuffer src) {
+        return submit(fs.getOpenedFileId(fd), true, new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                return fs.write(fd, offset, src);
+            }
+        });
+    }
+
+    public CompletableFuture<Boolean> truncateAsync(final String path, final long size) {
+        int id;
+        try {
+            id = fs.resolveFileId(path);
+        } catch (IOException e) {
+            return failed(e);
+        }
+
+        return submit(id, true, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                return fs.truncate(path, size);
+            }
+        });
+    }
+
+    public FileSystem getFileSystem() {
+        return fs;
+    }
+
+    /**
+     * Waits for the calls made so far and stops the workers.
+     */
+    public void close() throws InterruptedException {
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+            // calls still running
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable failure) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    /**
+     * @param lane inode id the call is ordered on, or NO_LANE
+     * @param write whether the call changes the file
+     */
+    private <T> CompletableFuture<T> submit(final int lane, final boolean write, final Callable<T> call) {
+        if (executor.isShutdown()) return failed(new RejectedExecutionException("Closed"));
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return failed(new RejectedExecutionException("Too many calls waiting"));
+        }
+
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                queued.decrementAndGet();
+                T result = null;
+                Throwable failure = null;
+                try {
+                    result = call.call();
+                } catch (Throwable e) {
+                    failure = e;
+                }
+
+                // handed on first, dependent stages run here and may make calls
+                finished(lane, write);
+                if (failure != null) future.completeExceptionally(failure);
+                else future.complete(result);
+            }
+        };
+
+        if (lane == NO_LANE) {
+            dispatch(task);
+            return future;
+        }
+
+        synchronized (lanes) {
+            Lane queue = lanes.get(lane);
+            if (queue == null) {
+                queue = new Lane();
+                lanes.put(lane, queue);
+            }
+            if (!queue.enter(task, write)) return future;
+        }
+        dispatch(task);
+        return future;
+    }
+
+    /**
+     * Runs task once fewer than maxInFlight calls run.
+     */
+    private void dispatch(Runnable task) {
+        synchronized (waiting) {
+            if (running == maxInFlight) {
+                waiting.add(task);
+                return;
+            }
+            running++;
+        }
+        execute(task);
+    }
+
+    /**
+     * Hands the worker's slot to a waiting call, and makes the calls of
+     * lane that no longer wait for earlier ones ready.
+     */
+    private void finished(int lane, boolean write) {
+        List<Runnable> next = null;
+        if (lane != NO_LANE) {
+            synchronized (lanes) {
+                Lane queue = lanes.get(lane);
+                next = queue.leave(write);
+                if (queue.isIdle()) lanes.remove(lane);
+            }
+        }
+
+        Runnable waited;
+        synchronized (waiting) {
+            waited = waiting.poll();
+            if (waited == null) running--;
+        }
+        if (waited != null) execute(waited);
+
+        if (next != null) {
+            for (Runnable task : next)
+                dispatch(task);
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // closing, the calls made before are finished on this worker
+            task.run();
+        }
+    }
+
+    private static ExecutorService createExecutor(int threads) {
+        // Java 21 API, looked up to keep running on older JVMs
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // no virtual threads
+        }
+
+        final AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "async-fs-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Calls of one file: reads run together, a write runs alone, and none
+     * passes an earlier call it must wait for. Guarded by lanes.
+     */
+    private static class Lane {
+        private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+        private final Queue<Boolean> writes = new ArrayDeque<Boolean>();
+        private int readers;
+        private boolean writer;
+
+        /**
+         * @return whether task may run now, else it waits in the lane
+         */
+        boolean enter(Runnable task, boolean write) {
+            if (tasks.isEmpty() && canStart(write)) {
+                start(write);
+                return true;
+            }
+            tasks.add(task);
+            writes.add(write);
+            return false;
+        }
+
+        /**
+         * @return tasks that may run now
+         */
+        List<Runnable> leave(boolean write) {
+            if (write) writer = false;
+            else readers--;
+
+            List<Runnable> ready = null;
+            while (!tasks.isEmpty() && canStart(writes.peek())) {
+                if (ready == null) ready = new ArrayList<Runnable>();
+                start(writes.poll());
+                ready.add(tasks.poll());
+            }
+            return ready;
+        }
+
+        boolean isIdle() {
+            return !writer && readers == 0 && tasks.isEmpty();
+        }
+
+        private boolean canStart(boolean write) {
+            return !writer && (!write || readers == 0);
+        }
+
+        private void start(boolean write) {
+            if (write) writer = true;
+            else readers++;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory copy of the free block bitmask.
+ *
+ * Bits are scanned a 64-bit word at a time, allocation continues from where
+ * the previous one ended (next-fit) and prefers runs long enough to hold the
+ * whole request. Changed words are written back to the image on flush.
+ *
+ * Every method locks the allocator itself, independently of any file lock.
+ *
+ * On journaled images freed blocks are held: the bitmask written to the image
+ * shows them free, but they are not reused until releaseSealed, after the
+ * journal has stopped referring to them.
+ *
+ * When the free count is known (after a clean unmount) the bitmask is read
+ * a chunk at a time, when a scan first reaches it.
+ *
+ * Blocks can be reserved for allocations to come: plain allocations leave
+ * that many free blocks alone, allocateReserved uses them.
+ *
+ * With BlockRefs set, freeing a shared block drops one of its references
+ * instead; it is freed with the last one.
+ */
+public class BlockAllocator {
+    // words written back together, one 4KB bitmask block
+    private static final int CHUNK_WORDS = 512;
+
+    private final BlockDevice device;
+    private final long bitmaskPointer;
+    private final long blockCount;
+
+    private final long[] words;
+    private final boolean[] dirtyChunks;
+    private final boolean[] loadedChunks;
+    private int unloadedChunks;
+    private long freeCount;
+    private long reservedCount;
+    private long cursor;
+
+    // held blocks as word index -> bits: freed by the running transaction,
+    // and by committed ones
+    private final Map<Integer, Long> held = new HashMap<Integer, Long>();
+    private final Map<Integer, Long> sealed = new HashMap<Integer, Long>();
+    private boolean holdFreed;
+    private long heldCount;
+
+    private BlockRefs refs;
+
+    public BlockAllocator(BlockDevice device, long bitmaskPointer, long blockCount) {
+        this.device = device;
+        this.bitmaskPointer = bitmaskPointer;
+        this.blockCount = blockCount;
+
+        words = new long[(int) ((blockCount + 63) / 64)];
+        dirtyChunks = new boolean[(words.length + CHUNK_WORDS - 1) / CHUNK_WORDS];
+        loadedChunks = new boolean[dirtyChunks.length];
+        unloadedChunks = loadedChunks.length;
+    }
+
+    /**
+     * Reads the whole bitmask and counts the free blocks.
+     */
+    public synchronized void load() throws IOException {
+        long used = 0;
+
+        for (int chunk = 0; chunk < loadedChunks.length; chunk++)
+            loadChunk(chunk);
+
+        for (long word : words)
+            used += Long.bitCount(word);
+
+        freeCount = words.length * 64L - used;
+        cursor = 0;
+    }
+
+    /**
+     * Starts with nothing read, trusting freeCount.
+     */
+    public synchronized void loadLazily(long freeCount) {
+        this.freeCount = freeCount;
+        cursor = 0;
+    }
+
+    /**
+     * Reads the next chunk nothing has needed yet.
+     *
+     * @return false if the whole bitmask is read
+     */
+    public synchronized boolean loadNext() throws IOException {
+        for (int chunk = 0; chunk < loadedChunks.length; chunk++) {
+            if (!loadedChunks[chunk]) {
+                loadChunk(chunk);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void flush() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_WORDS * 8).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int chunk = 0; chunk < dirtyChunks.length; chunk++) {
+            if (!dirtyChunks[chunk]) continue;
+
+            int first = chunk * CHUNK_WORDS;
+            int count = Math.min(CHUNK_WORDS, words.length - first);
+
+            buffer.clear();
+            buffer.asLongBuffer().put(words, first, count);
+            if (heldCount > 0) {
+                for (int i = first; i < first + count; i++)
+                    buffer.putLong((i - first) * 8, words[i] & ~(getBits(held, i) | getBits(sealed, i)));
+            }
+            buffer.limit(count * 8);
+            device.write(bitmaskPointer + first * 8L, buffer);
+            dirtyChunks[chunk] = false;
+        }
+    }
+
+    public synchronized long getFreeCount() {
+        return freeCount;
+    }
+
+    public synchronized long getReservedCount() {
+        return reservedCount;
+    }
+
+    /**
+     * Sets count free blocks aside, without choosing them.
+     *
+     * @return false if there are not that many free blocks left
+     */
+    public synchronized boolean reserve(long count) {
+        if (freeCount - reservedCount < count) return false;
+
+        reservedCount += count;
+        return true;
+    }
+
+    public synchronized void unreserve(long count) {
+        reservedCount -= count;
+    }
+
+    /**
+     * @return freed blocks not yet released for reuse
+     */
+    public synchronized long getHeldCount() {
+        return heldCount;
+    }
+
+    public synchronized void setHoldFreed(boolean holdFreed) {
+        this.holdFreed = holdFreed;
+    }
+
+    /**
+     * @return the whole bitmask as it is written to the image, held blocks free
+     */
+    public synchronized long[] copyBitmask() throws IOException {
+        long[] copy = new long[words.length];
+        for (int i = 0; i < words.length; i++) {
+            copy[i] = getWord(i);
+            if (heldCount > 0) copy[i] &= ~(getBits(held, i) | getBits(sealed, i));
+        }
+        return copy;
+    }
+
+    public synchronized boolean isUsed(long block) throws IOException {
+        return (getWord((int) (block >>> 6)) & (1L << block)) != 0;
+    }
+
+    /**
+     * @return a free block, or -1 if the device is full
+     */
+    public synchronized long allocate() throws IOException {
+        Extent extent = allocate(1, -1);
+        return extent == null ? -1 : extent.getStart();
+    }
+
+    /**
+     * Allocates up to count contiguous blocks. The first free run of count
+     * blocks at or after goal (or after the previous allocation when goal is -1)
+     * is taken; if there is none, the longest free run is. Reserved blocks
+     * are left alone.
+     *
+     * @return allocated run, or null if the device is full
+     */
+    public synchronized Extent allocate(int count, long goal) throws IOException {
+        long available = freeCount - reservedCount;
+        if (available <= 0 || count <= 0) return null;
+        count = (int) Math.min(count, available);
+
+        long start = goal >= 0 && goal < blockCount ? goal : cursor;
+        long bestStart = -1;
+        long bestLength = 0;
+        long position = start;
+        boolean wrapped = false;
+
+        while (true) {
+            long runStart = findFree(position, wrapped ? start : blockCount);
+            if (runStart == -1) {
+                if (wrapped || start == 0) break;
+                wrapped = true;
+                position = 0;
+                continue;
+            }
+
+            long runEnd = findUsed(runStart, Math.min(blockCount, runStart + count));
+            if (runEnd - runStart >= count) {
+                bestStart = runStart;
+                bestLength = count;
+                break;
+            }
+            if (runEnd - runStart > bestLength) {
+                bestStart = runStart;
+                bestLength = runEnd - runStart;
+            }
+            position = runEnd;
+        }
+
+        if (bestStart == -1) return null;
+
+        setRange(bestStart, bestLength, true);
+        freeCount -= bestLength;
+        cursor = bestStart + bestLength < blockCount ? bestStart + bestLength : 0;
+
+        return new Extent(bestStart, (int) bestLength);
+    }
+
+    /**
+     * @return start of the first free run of count blocks at or after goal,
+     * or -1 if there is none. Nothing is allocated.
+     */
+    public synchronized long findFreeRun(long count, long goal) throws IOException {
+        long position = Math.max(goal, 0);
+        while (position < blockCount) {
+            long runStart = findFree(position, blockCount);
+            if (runStart == -1) return -1;
+
+            long runEnd = findUsed(runStart, Math.min(blockCount, runStart + count));
+            if (runEnd - runStart >= count) return runStart;
+            position = runEnd;
+        }
+        return -1;
+    }
+
+    /**
+     * Allocates like allocate, out of count reserved blocks. The reservation
+     * of the blocks not allocated is kept.
+     */
+    public synchronized Extent allocateReserved(int count, long goal) throws IOException {
+        reservedCount -= count;
+        Extent extent = allocate(count, goal);
+        reservedCount += count - (extent == null ? 0 : extent.getLength());
+
+        return extent;
+    }
+
+    /**
+     * Gives back extent, allocated by allocateReserved and not used since,
+     * together with its reservation.
+     */
+    public synchronized void unallocateReserved(Extent extent) throws IOException {
+        setRange(extent.getStart(), extent.getLength(), false);
+        freeCount += extent.getLength();
+        reservedCount += extent.getLength();
+    }
+
+    public synchronized void setRefs(BlockRefs refs) {
+        this.refs = refs;
+    }
+
+    public synchronized void free(long start, int length) throws IOException {
+        if (refs == null || !refs.isShared(start, length)) {
+            release(start, length);
+            return;
+        }
+
+        long run = start;
+        for (long block = start; block < start + length; block++) {
+            if (!refs.drop(block)) continue;
+
+            // still referenced elsewhere
+            if (block > run) release(run, (int) (block - run));
+            run = block + 1;
+        }
+        if (run < start + length) release(run, (int) (start + length - run));
+    }
+
+    private void release(long start, int length) throws IOException {
+        if (!holdFreed) {
+            setRange(start, length, false);
+            freeCount += length;
+            return;
+        }
+
+        long end = start + length;
+        while (start < end) {
+            int i = (int) (start >>> 6);
+            int bits = (int) Math.min(64 - (start & 63), end - start);
+
+            // flush writes the whole chunk
+            getWord(i);
+            held.put(i, getBits(held, i) | getMask(start, bits));
+            dirtyChunks[i / CHUNK_WORDS] = true;
+            start += bits;
+        }
+        heldCount += length;
+    }
+
+    /**
+     * Moves the blocks held by the running transaction to the committed ones.
+     */
+    public synchronized void sealHeld() {
+        for (Map.Entry<Integer, Long> entry : held.entrySet())
+            sealed.put(entry.getKey(), getBits(sealed, entry.getKey()) | entry.getValue());
+        held.clear();
+    }
+
+    /**
+     * Makes the blocks held by committed transactions allocatable again.
+     */
+    public synchronized void releaseSealed() {
+        for (Map.Entry<Integer, Long> entry : sealed.entrySet()) {
+            int i = entry.getKey();
+            long bits = entry.getValue();
+
+            words[i] &= ~bits;
+            freeCount += Long.bitCount(bits);
+            heldCount -= Long.bitCount(bits);
+        }
+        sealed.clear();
+    }
+
+    public synchronized void markUsed(long start, int length) throws IOException {
+        setRange(start, length, true);
+        freeCount -= length;
+    }
+
+    /**
+     * @return first free block in [from, to), or -1
+     */
+    private long findFree(long from, long to) throws IOException {
+        for (int i = (int) (from >>> 6); i < words.length && (long) i << 6 < to; i++) {
+            long free = ~getWord(i);
+            if (i == (int) (from >>> 6))
+                free &= -1L << from;
+            if (free != 0) {
+                long block = ((long) i << 6) + Long.numberOfTrailingZeros(free);
+                return block < to ? block : -1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return first used block in [from, to), or to
+     */
+    private long findUsed(long from, long to) throws IOException {
+        for (int i = (int) (from >>> 6); i < words.length && (long) i << 6 < to; i++) {
+            long used = getWord(i);
+            if (i == (int) (from >>> 6))
+                used &= -1L << from;
+            if (used != 0)
+                return Math.min(to, ((long) i << 6) + Long.numberOfTrailingZeros(used));
+        }
+
+        return to;
+    }
+
+    private void setRange(long start, long length, boolean used) throws IOException {
+        long end = start + length;
+
+        while (start < end) {
+            int i = (int) (start >>> 6);
+            int bits = (int) Math.min(64 - (start & 63), end - start);
+            long mask = getMask(start, bits);
+
+            words[i] = used ? getWord(i) | mask : getWord(i) & ~mask;
+            dirtyChunks[i / CHUNK_WORDS] = true;
+            start += bits;
+        }
+    }
+
+    private long getWord(int i) throws IOException {
+        if (unloadedChunks > 0 && !loadedChunks[i / CHUNK_WORDS])
+            loadChunk(i / CHUNK_WORDS);
+        return words[i];
+    }
+
+    private void loadChunk(int chunk) throws IOException {
+        if (loadedChunks[chunk]) return;
+
+        int first = chunk * CHUNK_WORDS;
+        int count = Math.min(CHUNK_WORDS, words.length - first);
+        ByteBuffer buffer = ByteBuffer.allocate(count * 8).order(ByteOrder.LITTLE_ENDIAN);
+
+        device.read(bitmaskPointer + first * 8L, buffer);
+        buffer.flip();
+        buffer.asLongBuffer().get(words, first, count);
+
+        // bits past the last block never get allocated
+        if (first + count == words.length && blockCount % 64 != 0)
+            words[words.length - 1] |= -1L << (blockCount % 64);
+
+        loadedChunks[chunk] = true;
+        unloadedChunks--;
+    }
+
+    // mask of bits blocks from start on, all inside the word of start
+    private static long getMask(long start, int bits) {
+        return (bits == 64 ? -1L : ((1L << bits) - 1)) << start;
+    }
+
+    private static long getBits(Map<Integer, Long> map, int i) {
+        Long bits = map.get(i);
+        return bits == null ? 0 : bits;
+    }
+}
@@ -0,0 +1,604 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Bounded write-back cache of device blocks with CLOCK eviction.
+ *
+ * Small accesses (metadata, partial blocks) are served from cached frames.
+ * Transfers of at least bypassBlocks whole blocks go straight to the device,
+ * keeping cached copies of the touched blocks coherent.
+ *
+ * Frames are guarded by the cache lock; bypassing transfers only take it to
+ * keep the frames coherent and do their device I/O outside of it.
+ *
+ * A journal pins the blocks of a transaction until it commits: pinned blocks
+ * are never written back, and when every frame is pinned the cache grows
+ * past its capacity instead of evicting.
+ *
+ * Blocks can be prefetched ahead of reads. They come in unreferenced, so
+ * they are the first to go unless a read gets to them, and a bypassing read
+ * finding all its blocks cached is served from the frames.
+ *
+ * Transfers of file data between the image channel and other channels go
+ * around the cache and its device: prepareDirect writes their blocks back
+ * before, reload reads the cached ones again after writing.
+ *
+ * Frames are off the heap, slices of direct buffers of SLAB_FRAMES frames
+ * allocated as the cache fills, and are looked up through a LongIntMap:
+ * cached accesses allocate nothing.
+ */
+public class BlockCache implements BlockDevice {
+    private final BlockDevice device;
+    private final int blockSize;
+    private final int bypassBlocks;
+    // blocks prefetched under one hold of the lock
+    private static final int PREFETCH_RUN = 32;
+    private static final int SLAB_FRAMES = 64;
+
+    // frames
+    private final int capacity;
+    private ByteBuffer[] frames;
+    private long[] frameBlocks;
+    private boolean[] dirty;
+    private boolean[] referenced;
+    // transaction that last changed the frame, pinned while not committed
+    private long[] frameTids;
+    private long committedTid;
+    // block -> its frame
+    private final LongIntMap index;
+    // device reads of prefetch go through it, under the lock
+    private ByteBuffer prefetchBuffer;
+    private int used = 0;
+    private int hand = 0;
+
+    // statistics
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writebacks;
+    private long prefetches;
+
+    public BlockCache(BlockDevice device, int blockSize, int capacity) {
+        this(device, blockSize, capacity, 8);
+    }
+
+    public BlockCache(BlockDevice device, int blockSize, int capacity, int bypassBlocks) {
+        if (capacity < 1) throw new IllegalArgumentException("Cache capacity must be positive");
+
+        this.device = device;
+        this.blockSize = blockSize;
+        this.bypassBlocks = bypassBlocks;
+        this.capacity = capacity;
+
+        frames = new ByteBuffer[capacity];
+        frameBlocks = new long[capacity];
+        dirty = new boolean[capacity];
+        referenced = new boolean[capacity];
+        frameTids = new long[capacity];
+        index = new LongIntMap(capacity);
+    }
+
+    @Override
+    public long size() {
+        return device.size();
+    }
+
+    @Override
+    public void ensureSize(long size) throws IOException {
+        device.ensureSize(size);
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        if (dst.remaining() >= bypassBlocks * blockSize && !isCached(position, dst.remaining())
+                && prepareBypass(position, dst.remaining())) {
+            device.read(position, dst);
+            return;
+        }
+
+        readCached(position, dst);
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        // a dirty copy written back later would overwrite this write
+        if (src.remaining() >= bypassBlocks * blockSize && prepareBypass(position, src.remaining())) {
+            int start = src.position();
+            device.write(position, src);
+            src.position(start);
+            synchronized (this) {
+                updateCached(position, src);
+            }
+            return;
+        }
+
+        writeCached(position, src);
+    }
+
+    /**
+     * Gathers into one device transfer when the dsts bypass the cache together.
+     */
+    @Override
+    public void read(long position, ByteBuffer[] dsts) throws IOException {
+        long length = remaining(dsts);
+        if (length >= bypassBlocks * blockSize && prepareBypass(position, length)) {
+            device.read(position, dsts);
+            return;
+        }
+
+        for (ByteBuffer dst : dsts) {
+            int dstLength = dst.remaining();
+            readCached(position, dst);
+            position += dstLength;
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer[] srcs) throws IOException {
+        long length = remaining(srcs);
+        if (length >= bypassBlocks * blockSize && prepareBypass(position, length)) {
+            int[] starts = new int[srcs.length];
+            for (int i = 0; i < srcs.length; i++)
+                starts[i] = srcs[i].position();
+
+            device.write(position, srcs);
+            synchronized (this) {
+                for (int i = 0; i < srcs.length; i++) {
+                    srcs[i].position(starts[i]);
+                    int srcLength = srcs[i].remaining();
+                    updateCached(position, srcs[i]);
+                    position += srcLength;
+                }
+            }
+            return;
+        }
+
+        for (ByteBuffer src : srcs) {
+            int srcLength = src.remaining();
+            writeCached(position, src);
+            position += srcLength;
+        }
+    }
+
+    @Override
+    public synchronized byte get(long position) throws IOException {
+        return getFrame(position / blockSize).get((int) (position % blockSize));
+    }
+
+    @Override
+    public synchronized void put(long position, byte value) throws IOException {
+        int frameIndex = frameOf(position / blockSize);
+        frames[frameIndex].put((int) (position % blockSize), value);
+        dirty[frameIndex] = true;
+    }
+
+    @Override
+    public synchronized short getShort(long position) throws IOException {
+        if (crossesBlock(position, 2))
+            return (short) readSplit(position, 2);
+        return getFrame(position / blockSize).getShort((int) (position % blockSize));
+    }
+
+    @Override
+    public synchronized void putShort(long position, short value) throws IOException {
+        if (crossesBlock(position, 2)) {
+            writeSplit(position, value, 2);
+        } else {
+            int frameIndex = frameOf(position / blockSize);
+            frames[frameIndex].putShort((int) (position % blockSize), value);
+            dirty[frameIndex] = true;
+        }
+    }
+
+    @Override
+    public synchronized int getInt(long position) throws IOException {
+        if (crossesBlock(position, 4))
+            return (int) readSplit(position, 4);
+        return getFrame(position / blockSize).getInt((int) (position % blockSize));
+    }
+
+    @Override
+    public synchronized void putInt(long position, int value) throws IOException {
+        if (crossesBlock(position, 4)) {
+            writeSplit(position, value, 4);
+        } else {
+            int frameIndex = frameOf(position / blockSize);
+            frames[frameIndex].putInt((int) (position % blockSize), value);
+            dirty[frameIndex] = true;
+        }
+    }
+
+    @Override
+    public synchronized long getLong(long position) throws IOException {
+        if (crossesBlock(position, 8))
+            return readSplit(position, 8);
+        return getFrame(position / blockSize).getLong((int) (position % blockSize));
+    }
+
+    @Override
+    public synchronized void putLong(long position, long value) throws IOException {
+        if (crossesBlock(position, 8)) {
+            writeSplit(position, value, 8);
+        } else {
+            int frameIndex = frameOf(position / blockSize);
+            frames[frameIndex].putLong((int) (position % blockSize), value);
+            dirty[frameIndex] = true;
+        }
+    }
+
+    /**
+     * Writes every dirty block that is not pinned back, then forces the device.
+     */
+    @Override
+    public synchronized void force() throws IOException {
+        for (int i = 0; i < used; i++)
+            writeBack(i);
+        device.force();
+    }
+
+    /**
+     * Writes the dirty blocks of [position, position + length) that are not
+     * pinned back, without forcing the device.
+     */
+    public synchronized void writeBack(long position, long length) throws IOException {
+        for (long block = position / blockSize; block * blockSize < position + length; block++) {
+            int cached = index.get(block);
+            if (cached != -1) writeBack(cached);
+        }
+    }
+
+    /**
+     * Prepares [position, position + length) for a transfer around the
+     * cache and its device: writes its dirty blocks back.
+     *
+     * @return false if one of them is pinned and the transfer must go through the frames
+     */
+    public boolean prepareDirect(long position, long length) throws IOException {
+        return prepareBypass(position, length);
+    }
+
+    /**
+     * Reads the cached blocks of [position, position + length) again, after
+     * a transfer around the cache wrote them.
+     */
+    public synchronized void reload(long position, long length) throws IOException {
+        for (long block = position / blockSize; block * blockSize < position + length; block++) {
+            int cached = index.get(block);
+            if (cached == -1) continue;
+
+            ByteBuffer frame = frames[cached];
+            frame.clear();
+            device.read(block * blockSize, frame);
+            frame.clear();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            for (int i = 0; i < used; i++)
+                writeBack(i);
+        } finally {
+            index.clear();
+            used = 0;
+            device.close();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getWritebacks() {
+        return writebacks;
+    }
+
+    /**
+     * @return blocks loaded by prefetch
+     */
+    public synchronized long getPrefetches() {
+        return prefetches;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Loads the blocks [block, block + count) that are not cached, a device
+     * read per run of them. At most half of the frames are filled at once.
+     */
+    public void prefetch(long block, int count) throws IOException {
+        long end = block + Math.min(count, Math.max(1, capacity / 2));
+
+        // the lock is let go between runs, for the reads waiting on it
+        while (block < end)
+            block = prefetchRun(block, (int) Math.min(end - block, PREFETCH_RUN));
+    }
+
+    /**
+     * Loads block and keeps it from being written back until transaction
+     * tid commits.
+     */
+    public synchronized void pin(long block, long tid) throws IOException {
+        int frameIndex = frameOf(block);
+        frameTids[frameIndex] = tid;
+    }
+
+    /**
+     * Lets the blocks of transactions up to tid be written back.
+     */
+    public synchronized void setCommitted(long tid) {
+        committedTid = tid;
+    }
+
+    /**
+     * Copies the cached content of block into dst.
+     */
+    public synchronized void copyBlock(long block, ByteBuffer dst) throws IOException {
+        ByteBuffer frame = getFrame(block);
+        dst.put(frame);
+        frame.clear();
+    }
+
+    private synchronized void readCached(long position, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            ByteBuffer frame = getFrame(position / blockSize);
+            int inBlock = (int) (position % blockSize);
+            int length = Math.min(dst.remaining(), blockSize - inBlock);
+
+            frame.limit(inBlock + length).position(inBlock);
+            dst.put(frame);
+            frame.clear();
+            position += length;
+        }
+    }
+
+    private synchronized void writeCached(long position, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            int frameIndex = frameOf(position / blockSize);
+            ByteBuffer frame = frames[frameIndex];
+            int inBlock = (int) (position % blockSize);
+            int length = Math.min(src.remaining(), blockSize - inBlock);
+            int limit = src.limit();
+
+            src.limit(src.position() + length);
+            frame.position(inBlock);
+            frame.put(src);
+            frame.clear();
+            src.limit(limit);
+            dirty[frameIndex] = true;
+            position += length;
+        }
+    }
+
+    /**
+     * Loads the uncached blocks among [block, block + count).
+     *
+     * @return block after the last one looked at
+     */
+    private synchronized long prefetchRun(long block, int count) throws IOException {
+        long end = block + count;
+        while (block < end && index.containsKey(block))
+            block++;
+        if (block == end) return end;
+
+        long runEnd = block + 1;
+        while (runEnd < end && !index.containsKey(runEnd))
+            runEnd++;
+
+        int length = (int) (runEnd - block);
+        if (prefetchBuffer == null) prefetchBuffer = ByteBuffer.allocateDirect(PREFETCH_RUN * blockSize);
+        ByteBuffer run = prefetchBuffer;
+        run.clear().limit(length * blockSize);
+        device.read(block * blockSize, run);
+
+        for (int i = 0; i < length; i++) {
+            int frameIndex = used < frames.length ? used++ : evict();
+            if (frames[frameIndex] == null) allocateFrames(frameIndex);
+
+            run.limit((i + 1) * blockSize).position(i * blockSize);
+            frames[frameIndex].clear();
+            frames[frameIndex].put(run);
+            frames[frameIndex].clear();
+
+            frameBlocks[frameIndex] = block + i;
+            frameTids[frameIndex] = 0;
+            dirty[frameIndex] = false;
+            referenced[frameIndex] = false;
+            index.put(block + i, frameIndex);
+        }
+        prefetches += length;
+
+        return runEnd;
+    }
+
+    private synchronized boolean isCached(long position, int length) {
+        for (long block = position / blockSize; block * blockSize < position + length; block++) {
+            if (!index.containsKey(block)) return false;
+        }
+        return true;
+    }
+
+    // frameOf may replace the arrays, so it runs before they are read
+    private ByteBuffer getFrame(long block) throws IOException {
+        int frameIndex = frameOf(block);
+        return frames[frameIndex];
+    }
+
+    /**
+     * @return frame holding block, loading it (and evicting another one) if needed
+     */
+    private int frameOf(long block) throws IOException {
+        int cached = index.get(block);
+        if (cached != -1) {
+            hits++;
+            referenced[cached] = true;
+            return cached;
+        }
+
+        misses++;
+        int frameIndex = used < frames.length ? used++ : evict();
+        if (frames[frameIndex] == null) allocateFrames(frameIndex);
+
+        ByteBuffer frame = frames[frameIndex];
+        frame.clear();
+        device.read(block * blockSize, frame);
+        frame.clear();
+
+        frameBlocks[frameIndex] = block;
+        frameTids[frameIndex] = 0;
+        dirty[frameIndex] = false;
+        referenced[frameIndex] = true;
+        index.put(block, frameIndex);
+
+        return frameIndex;
+    }
+
+    /**
+     * Allocates frames from frameIndex on, the first one not allocated: they
+     * are taken in order.
+     */
+    private void allocateFrames(int frameIndex) {
+        int count = Math.min(SLAB_FRAMES, frames.length - frameIndex);
+        ByteBuffer slab = ByteBuffer.allocateDirect(count * blockSize);
+
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * blockSize).position(i * blockSize);
+            frames[frameIndex + i] = slab.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * CLOCK: sweeps the frames, giving referenced ones a second chance.
+     */
+    private int evict() throws IOException {
+        for (int steps = 0; referenced[hand] || isPinned(hand); steps++) {
+            if (steps == 2 * frames.length) return grow();
+
+            referenced[hand] = false;
+            hand = (hand + 1) % frames.length;
+        }
+
+        int victim = hand;
+        hand = (hand + 1) % frames.length;
+
+        writeBack(victim);
+        index.remove(frameBlocks[victim]);
+        evictions++;
+
+        return victim;
+    }
+
+    /**
+     * Adds capacity frames, for when all of them are pinned.
+     */
+    private int grow() {
+        int length = frames.length + capacity;
+
+        frames = Arrays.copyOf(frames, length);
+        frameBlocks = Arrays.copyOf(frameBlocks, length);
+        dirty = Arrays.copyOf(dirty, length);
+        referenced = Arrays.copyOf(referenced, length);
+        frameTids = Arrays.copyOf(frameTids, length);
+
+        return used++;
+    }
+
+    private boolean isPinned(int frameIndex) {
+        return frameTids[frameIndex] > committedTid;
+    }
+
+    private void writeBack(int frameIndex) throws IOException {
+        if (!dirty[frameIndex] || isPinned(frameIndex)) return;
+
+        ByteBuffer frame = frames[frameIndex];
+        frame.clear();
+        device.write(frameBlocks[frameIndex] * blockSize, frame);
+        frame.clear();
+
+        dirty[frameIndex] = false;
+        writebacks++;
+    }
+
+    /**
+     * Writes the cached blocks of a bypassing transfer back.
+     *
+     * @return false if one of them is pinned and the transfer must go through the frames
+     */
+    private synchronized boolean prepareBypass(long position, long length) throws IOException {
+        long first = position / blockSize;
+        long end = (position + length + blockSize - 1) / blockSize;
+
+        for (long block = first; block < end; block++) {
+            int cached = index.get(block);
+            if (cached != -1 && isPinned(cached)) return false;
+        }
+        for (long block = first; block < end; block++) {
+            int cached = index.get(block);
+            if (cached != -1) writeBack(cached);
+        }
+
+        return true;
+    }
+
+    /**
+     * Copies data written around the cache into the cached copies of its blocks.
+     */
+    private void updateCached(long position, ByteBuffer src) {
+        int start = src.position();
+        int limit = src.limit();
+
+        for (long block = position / blockSize; block * blockSize < position + limit - start; block++) {
+            int cached = index.get(block);
+            if (cached == -1) continue;
+
+            long from = Math.max(position, block * blockSize);
+            long to = Math.min(position + limit - start, (block + 1) * blockSize);
+            src.limit(start + (int) (to - position)).position(start + (int) (from - position));
+
+            ByteBuffer frame = frames[cached];
+            frame.position((int) (from - block * blockSize));
+            frame.put(src);
+            frame.clear();
+            src.limit(limit);
+        }
+        src.position(limit);
+    }
+
+    private static long remaining(ByteBuffer[] buffers) {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers)
+            remaining += buffer.remaining();
+        return remaining;
+    }
+
+    private boolean crossesBlock(long position, int length) {
+        return position % blockSize + length > blockSize;
+    }
+
+    // little-endian value split over two blocks, assembled byte by byte
+    private long readSplit(long position, int length) throws IOException {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--)
+            value = (value << 8) | (get(position + i) & 0xFF);
+        return value;
+    }
+
+    private void writeSplit(long position, long value, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            put(position + i, (byte) value);
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Random access storage the file system image lives on.
+ * All positions are absolute byte offsets from the start of the image,
+ * multi-byte values are little-endian.
+ */
+public interface BlockDevice {
+    long size();
+
+    /**
+     * Grows the device so that it holds at least size bytes.
+     */
+    void ensureSize(long size) throws IOException;
+
+    /**
+     * Fills dst.remaining() bytes starting at position.
+     */
+    void read(long position, ByteBuffer dst) throws IOException;
+
+    /**
+     * Stores src.remaining() bytes starting at position.
+     */
+    void write(long position, ByteBuffer src) throws IOException;
+
+    /**
+     * Fills the dsts one after the other with the bytes starting at position.
+     */
+    void read(long position, ByteBuffer[] dsts) throws IOException;
+
+    /**
+     * Stores the srcs one after the other starting at position.
+     */
+    void write(long position, ByteBuffer[] srcs) throws IOException;
+
+    byte get(long position) throws IOException;
+
+    void put(long position, byte value) throws IOException;
+
+    short getShort(long position) throws IOException;
+
+    void putShort(long position, short value) throws IOException;
+
+    int getInt(long position) throws IOException;
+
+    void putInt(long position, int value) throws IOException;
+
+    long getLong(long position) throws IOException;
+
+    void putLong(long position, long value) throws IOException;
+
+    /**
+     * Flushes every pending write to the underlying storage.
+     */
+    void force() throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,64 @@
+import java.io.IOException;
+
+/**
+ * Maps the blocks of a file to device blocks. Maps are stored inside the
+ * inode (and in blocks it points to), so every method takes the position of
+ * the inode on the device. Unmapped file blocks are holes and map to 0.
+ *
+ * Lookups may run concurrently; map, unmap and truncate lock the map, and the
+ * caller keeps each file from being looked up while it is being changed.
+ */
+public interface BlockMap {
+    interface BlockVisitor {
+        /**
+         * @return false to skip the blocks these point to, if any
+         */
+        boolean visit(long block, long length) throws IOException;
+    }
+
+    /**
+     * @return device block holding file block i, or 0 for a hole
+     */
+    long get(long inode, long i) throws IOException;
+
+    /**
+     * @return how many file blocks starting at i (at most max) are either
+     * mapped to consecutive device blocks or are all holes, at least 1
+     */
+    long getRunLength(long inode, long i, long max) throws IOException;
+
+    /**
+     * Maps file blocks [i, i + length) to device blocks [block, block + length).
+     * The file blocks must be holes. Map blocks the change needs come out of
+     * the caller's reservation in the allocator, up to reserved of them, then
+     * out of free blocks; when those run short nothing is mapped.
+     *
+     * @return map blocks taken out of the caller's reservation
+     */
+    long map(long inode, long i, long block, long length, long reserved) throws IOException;
+
+    /**
+     * Turns file blocks [from, to) into holes, freeing their device blocks.
+     * When splitting an extent takes a map block there is none free for,
+     * nothing is changed.
+     */
+    void unmap(long inode, long from, long to) throws IOException;
+
+    /**
+     * Unmaps every file block from on and frees the map blocks that are no
+     * longer needed. fileBlocks is the current length of the file in blocks.
+     */
+    void truncate(long inode, long from, long fileBlocks) throws IOException;
+
+    /**
+     * @return upper bound of the map blocks needed by a file of blocks blocks
+     */
+    long getIndexBlocksCount(long blocks);
+
+    /**
+     * Passes every map block of the file (index or tree node, not data) to visitor.
+     */
+    void visitMapBlocks(long inode, BlockVisitor visitor) throws IOException;
+
+    long getMaxBlocks();
+}
@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reference counts of the data blocks shared by several files, by clones
+ * and snapshots. Each block has a 16-bit count of its references beyond the
+ * first, so blocks owned by a single file - every block of an image never
+ * cloned - count 0.
+ *
+ * Counts are metadata, written through the journal when the image has one.
+ */
+public class BlockRefs {
+    static final int MAX_REFS = 0xFFFF;
+
+    private final BlockDevice device;
+    private final long pointer;
+
+    public BlockRefs(BlockDevice device, long pointer) {
+        this.device = device;
+        this.pointer = pointer;
+    }
+
+    /**
+     * @return references to block beyond the first
+     */
+    public synchronized int get(long block) throws IOException {
+        return device.getShort(pointer + block * Superblock.REFCOUNT_SIZE) & MAX_REFS;
+    }
+
+    /**
+     * @return references to each of the blocks [start, start + count) beyond
+     * the first, read at once
+     */
+    public synchronized int[] get(long start, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count * Superblock.REFCOUNT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        device.read(pointer + start * Superblock.REFCOUNT_SIZE, buffer);
+
+        int[] refs = new int[count];
+        for (int i = 0; i < count; i++)
+            refs[i] = buffer.getShort(i * Superblock.REFCOUNT_SIZE) & MAX_REFS;
+        return refs;
+    }
+
+    /**
+     * @return whether any of the blocks [start, start + length) is shared
+     */
+    public synchronized boolean isShared(long start, long length) throws IOException {
+        for (long block = start; block < start + length; block++) {
+            if (get(block) != 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds a reference to each of the blocks [start, start + length).
+     *
+     * @return false, changing nothing, if one of them has MAX_REFS already
+     */
+    public synchronized boolean share(long start, long length) throws IOException {
+        for (long block = start; block < start + length; block++) {
+            if (get(block) == MAX_REFS) return false;
+        }
+        for (long block = start; block < start + length; block++)
+            set(block, get(block) + 1);
+        return true;
+    }
+
+    /**
+     * Drops a reference to block if it is shared.
+     *
+     * @return false if it was not, and the caller's reference was the last one
+     */
+    public synchronized boolean drop(long block) throws IOException {
+        int refs = get(block);
+        if (refs == 0) return false;
+
+        set(block, refs - 1);
+        return true;
+    }
+
+    /**
+     * Sets the references to block beyond the first, for repairs.
+     */
+    public synchronized void set(long block, int refs) throws IOException {
+        device.putShort(pointer + block * Superblock.REFCOUNT_SIZE, (short) refs);
+    }
+}
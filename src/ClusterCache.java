@@ -0,0 +1,67 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decompressed clusters of compressed files, so that reads hitting the same
+ * cluster decompress it once. Bounded by a count of clusters, the least
+ * recently used one is dropped first. Entries are never changed: a cluster
+ * written again is removed first.
+ */
+public class ClusterCache {
+    private final int capacity;
+    // inode id << 32 | cluster -> its content
+    private final LinkedHashMap<Long, byte[]> clusters;
+    private long hits;
+    private long misses;
+
+    public ClusterCache(int capacity) {
+        this.capacity = capacity;
+        this.clusters = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > ClusterCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return content of cluster of inode id, or null if it is not cached
+     */
+    public synchronized byte[] get(int id, long cluster) {
+        byte[] content = clusters.get(key(id, cluster));
+        if (content == null) misses++;
+        else hits++;
+        return content;
+    }
+
+    public synchronized void put(int id, long cluster, byte[] content) {
+        if (capacity > 0) clusters.put(key(id, cluster), content);
+    }
+
+    public synchronized void remove(int id, long cluster) {
+        clusters.remove(key(id, cluster));
+    }
+
+    /**
+     * Removes every cluster of inode id.
+     */
+    public synchronized void removeFile(int id) {
+        Iterator<Long> keys = clusters.keySet().iterator();
+        while (keys.hasNext()) {
+            if ((int) (keys.next() >>> 32) == id) keys.remove();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private static long key(int id, long cluster) {
+        return (long) id << 32 | cluster;
+    }
+}
@@ -4,6 +4,8 @@
 public enum Commands {
     mount,
     unmount,
+    format,
+    convert,
     filestat,
     ls,
     create,
@@ -14,15 +16,26 @@ public enum Commands {
     link,
     unlink,
     truncate,
+    mkdir,
+    rmdir,
+    clone,
+    snapshot,
+    rmsnapshot,
+    compress,
+    fsck,
+    defrag,
+    sync,
+    stats,
     commandNotFound,
     q;
 
 
-    public static Commands commandOf(String s) {
-        String[] args = s.split(" ");
-
+    /**
+     * @param name first word of a command line
+     */
+    public static Commands commandOf(String name) {
         for (Commands c : values()) {
-            if (c.name().equals(args[0])) {
+            if (c.name().equals(name)) {
                 return c;
             }
         }
@@ -0,0 +1,114 @@
+/**
+ * Progress of a defragmentation pass of a FileSystem. The pass updates it
+ * from its own thread; anyone may read it, or stop the pass.
+ */
+public class DefragProgress {
+    private final int inodeCount;
+    private final long bytesPerSecond;
+
+    private volatile int scannedInodes;
+    private volatile int fragmentedFiles;
+    private volatile int defragmentedFiles;
+    private volatile int skippedFiles;
+    private volatile long fragmentsBefore;
+    private volatile long fragmentsAfter;
+    private volatile long movedBlocks;
+    private volatile boolean stopped;
+    private volatile boolean finished;
+
+    public DefragProgress(int inodeCount, long bytesPerSecond) {
+        this.inodeCount = inodeCount;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    void setScannedInodes(int count) {
+        scannedInodes = count;
+    }
+
+    /**
+     * A file of fragments runs is about to be moved.
+     */
+    void addFragmented(long fragments) {
+        fragmentedFiles++;
+        fragmentsBefore += fragments;
+    }
+
+    /**
+     * A file moved is now in fragments runs.
+     */
+    void addDefragmented(long fragments) {
+        defragmentedFiles++;
+        fragmentsAfter += fragments;
+    }
+
+    /**
+     * A fragmented file was left alone, shared or without room for it.
+     */
+    void addSkipped() {
+        skippedFiles++;
+    }
+
+    void addMovedBlocks(long count) {
+        movedBlocks += count;
+    }
+
+    void finish() {
+        finished = true;
+    }
+
+    /**
+     * Makes the pass end after the step it is in.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    public boolean isRunning() {
+        return !finished;
+    }
+
+    public int getInodeCount() {
+        return inodeCount;
+    }
+
+    /**
+     * @return most bytes copied a second, 0 for no limit
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public int getScannedInodes() {
+        return scannedInodes;
+    }
+
+    public int getFragmentedFiles() {
+        return fragmentedFiles;
+    }
+
+    public int getDefragmentedFiles() {
+        return defragmentedFiles;
+    }
+
+    public int getSkippedFiles() {
+        return skippedFiles;
+    }
+
+    public long getMovedBlocks() {
+        return movedBlocks;
+    }
+
+    @Override
+    public String toString() {
+        String state = isRunning() ? (stopped ? "stopping" : "running") : (stopped ? "stopped" : "done");
+        return "Inodes : " + scannedInodes + " of " + inodeCount + ", " + state + '\n'
+                + "Fragmented files : " + fragmentedFiles + ", defragmented : " + defragmentedFiles
+                + ", skipped : " + skippedFiles + '\n'
+                + "Fragments : " + fragmentsBefore + " -> " + fragmentsAfter
+                + ", blocks moved : " + movedBlocks;
+    }
+}
@@ -0,0 +1,158 @@
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Data written to the holes of files, kept in memory until it is flushed
+ * to blocks allocated for it together (delayed allocation), and the blocks
+ * reserved for the files in the allocator: data blocks, and map blocks
+ * mapping them may add.
+ *
+ * A file's blocks and reservation are guarded by the caller's lock of that
+ * file, the counters are shared.
+ */
+public class DelayedBlocks {
+    private static final SortedMap<Long, ByteBuffer> NO_BLOCKS =
+            Collections.unmodifiableSortedMap(new TreeMap<Long, ByteBuffer>());
+
+    private final int blockSize;
+    private final ConcurrentMap<Integer, FileBlocks> files = new ConcurrentHashMap<Integer, FileBlocks>();
+    private final AtomicLong count = new AtomicLong();
+
+    private static class FileBlocks {
+        // file block -> its content
+        final SortedMap<Long, ByteBuffer> blocks = new TreeMap<Long, ByteBuffer>();
+        long reserved;
+        long indexReserved;
+    }
+
+    public DelayedBlocks(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return content of file block i of inode id, or null if it has none
+     */
+    public ByteBuffer get(int id, long i) {
+        FileBlocks file = find(id);
+        return file == null ? null : file.blocks.get(i);
+    }
+
+    /**
+     * @return content of file block i of inode id, zeros if it had none
+     */
+    public ByteBuffer getOrCreate(int id, long i) {
+        FileBlocks file = getFile(id);
+        ByteBuffer block = file.blocks.get(i);
+        if (block == null) {
+            block = ByteBuffer.allocate(blockSize);
+            file.blocks.put(i, block);
+            count.incrementAndGet();
+        }
+        return block;
+    }
+
+    /**
+     * @return file blocks of inode id with content, in order; removing one
+     * must go through remove
+     */
+    public SortedMap<Long, ByteBuffer> getBlocks(int id) {
+        FileBlocks file = find(id);
+        return file == null ? NO_BLOCKS : file.blocks;
+    }
+
+    /**
+     * Drops the content of file blocks [from, to) of inode id.
+     *
+     * @return how many blocks had content
+     */
+    public int remove(int id, long from, long to) {
+        FileBlocks file = files.get(id);
+        if (file == null) return 0;
+
+        SortedMap<Long, ByteBuffer> range = file.blocks.subMap(from, to);
+        int removed = range.size();
+        range.clear();
+        count.addAndGet(-removed);
+
+        return removed;
+    }
+
+    public long getReserved(int id) {
+        FileBlocks file = find(id);
+        return file == null ? 0 : file.reserved;
+    }
+
+    public void addReserved(int id, long blocks) {
+        getFile(id).reserved += blocks;
+    }
+
+    public long getIndexReserved(int id) {
+        FileBlocks file = find(id);
+        return file == null ? 0 : file.indexReserved;
+    }
+
+    public void addIndexReserved(int id, long blocks) {
+        getFile(id).indexReserved += blocks;
+    }
+
+    /**
+     * Drops the blocks and the reservations of inode id.
+     *
+     * @return blocks that were reserved for it
+     */
+    public long removeFile(int id) {
+        FileBlocks file = files.remove(id);
+        if (file == null) return 0;
+
+        count.addAndGet(-file.blocks.size());
+        return file.reserved + file.indexReserved;
+    }
+
+    /**
+     * Forgets inode id once it has no blocks nor reservation left.
+     */
+    public void release(int id) {
+        FileBlocks file = files.get(id);
+        if (file != null && file.blocks.isEmpty() && file.reserved == 0 && file.indexReserved == 0)
+            files.remove(id);
+    }
+
+    /**
+     * @return inodes with blocks or a reservation
+     */
+    public Integer[] getFiles() {
+        return files.keySet().toArray(new Integer[0]);
+    }
+
+    /**
+     * @return blocks with content, of every file
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    public void clear() {
+        files.clear();
+        count.set(0);
+    }
+
+    // files is usually empty, which is told without boxing id
+    private FileBlocks find(int id) {
+        return files.isEmpty() ? null : files.get(id);
+    }
+
+    private FileBlocks getFile(int id) {
+        FileBlocks file = files.get(id);
+        if (file == null) {
+            file = new FileBlocks();
+            FileBlocks raced = files.putIfAbsent(id, file);
+            if (raced != null) file = raced;
+        }
+        return file;
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of directory entries, keyed by directory and name.
+ * Whoever changes a directory keeps its cached entries in step.
+ */
+public class DentryCache {
+    private final Map<Key, Integer> entries;
+
+    public DentryCache(final int capacity) {
+        entries = new LinkedHashMap<Key, Integer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Integer> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return inode id of name in directory dir, or null if it is not cached
+     */
+    public synchronized Integer get(int dir, String name) {
+        return entries.get(new Key(dir, name));
+    }
+
+    public synchronized void put(int dir, String name, int id) {
+        entries.put(new Key(dir, name), id);
+    }
+
+    public synchronized void remove(int dir, String name) {
+        entries.remove(new Key(dir, name));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private static class Key {
+        private final int dir;
+        private final String name;
+
+        Key(int dir, String name) {
+            this.dir = dir;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return dir == key.dir && name.equals(key.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * dir + name.hashCode();
+        }
+    }
+}
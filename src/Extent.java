@@ -0,0 +1,29 @@
+/**
+ * Run of physically contiguous blocks.
+ */
+public class Extent {
+    private final long start;
+    private final int length;
+
+    public Extent(long start, int length) {
+        this.start = start;
+        this.length = length;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public long getEnd() {
+        return start + length;
+    }
+
+    @Override
+    public String toString() {
+        return start + "+" + length;
+    }
+}
@@ -0,0 +1,466 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Block map describing a file as extents: runs of file blocks stored in
+ * consecutive device blocks.
+ *
+ * Extents are kept in a B+ tree whose root lives in the inode. Every node
+ * starts with a header - entries count (short), depth (short), padding - and
+ * is followed by 12-byte entries sorted by first file block:
+ * leaf (depth 0) - first file block (int), length (int), first device block (int)
+ * index - lowest file block of the subtree (int), child node block (int), padding
+ *
+ * When the root fills up its entries move to a new node block and the root
+ * becomes an index one level higher.
+ */
+public class ExtentBlockMap implements BlockMap {
+    private static final int ROOT = IndirectBlockMap.INODE_BLOCKS;
+    private static final int HEADER = 8;
+    private static final int ENTRY = 12;
+    private static final long MAX_LENGTH = Integer.MAX_VALUE;
+
+    private final BlockDevice device;
+    private final BlockAllocator allocator;
+    private final int blockSize;
+    private final int rootMax;
+    private final int blockMax;
+
+    // entries being moved between nodes
+    private final ByteBuffer moved;
+    // first file block of the node created by the last split
+    private long splitKey;
+    // reserved nodes left to the change in progress
+    private long spare;
+
+    public ExtentBlockMap(BlockDevice device, BlockAllocator allocator, int blockSize) {
+        this.device = device;
+        this.allocator = allocator;
+        this.blockSize = blockSize;
+        this.rootMax = (Superblock.INODE_SIZE - ROOT - HEADER) / ENTRY;
+        this.blockMax = (blockSize - HEADER) / ENTRY;
+        this.moved = ByteBuffer.allocate(blockSize);
+    }
+
+    @Override
+    public long get(long inode, long i) throws IOException {
+        long node = inode + ROOT;
+
+        while (getDepth(node) > 0) {
+            int k = search(node, i);
+            if (k < 0) return 0;
+            node = getChild(node, k) * blockSize;
+        }
+
+        int k = search(node, i);
+        if (k < 0) return 0;
+
+        long offset = i - getLogical(node, k);
+        return offset < getLength(node, k) ? getPhysical(node, k) + offset : 0;
+    }
+
+    @Override
+    public long getRunLength(long inode, long i, long max) throws IOException {
+        long node = inode + ROOT;
+        long bound = Long.MAX_VALUE;
+
+        while (getDepth(node) > 0) {
+            int k = search(node, i);
+            if (k < 0)
+                return Math.max(1, Math.min(max, getLogical(node, 0) - i));
+            if (k + 1 < getEntries(node))
+                bound = Math.min(bound, getLogical(node, k + 1));
+            node = getChild(node, k) * blockSize;
+        }
+
+        int k = search(node, i);
+        if (k >= 0 && i < getLogical(node, k) + getLength(node, k))
+            return Math.min(max, getLogical(node, k) + getLength(node, k) - i);
+
+        long next = k + 1 < getEntries(node) ? getLogical(node, k + 1) : bound;
+        return Math.max(1, Math.min(max, next - i));
+    }
+
+    @Override
+    public synchronized long map(long inode, long i, long block, long length, long reserved) throws IOException {
+        long taken = 0;
+
+        while (length > 0) {
+            long run = Math.min(length, MAX_LENGTH);
+            long nodes = getSplitNodes(inode, i);
+            long own = Math.min(nodes, reserved - taken);
+
+            reserveNodes(nodes, own);
+            try {
+                addExtent(inode, i, block, run);
+            } finally {
+                taken += releaseNodes(nodes, own);
+            }
+
+            i += run;
+            block += run;
+            length -= run;
+        }
+
+        return taken;
+    }
+
+    @Override
+    public synchronized void unmap(long inode, long from, long to) throws IOException {
+        long i = from;
+
+        while (i < to) {
+            // leaf holding the first extent that ends after i
+            long node = inode + ROOT;
+            long bound = Long.MAX_VALUE;
+            while (getDepth(node) > 0) {
+                int k = Math.max(0, search(node, i));
+                if (k + 1 < getEntries(node))
+                    bound = Math.min(bound, getLogical(node, k + 1));
+                node = getChild(node, k) * blockSize;
+            }
+
+            int k = search(node, i);
+            if (k < 0 || getLogical(node, k) + getLength(node, k) <= i)
+                k++;
+            if (k >= getEntries(node)) {
+                if (bound == Long.MAX_VALUE) break;
+                i = bound;
+                continue;
+            }
+
+            long logical = getLogical(node, k);
+            long length = getLength(node, k);
+            long physical = getPhysical(node, k);
+            if (logical >= to) break;
+
+            long start = Math.max(i, logical);
+            long end = Math.min(to, logical + length);
+            // cutting the middle out inserts the tail as an extent of its own
+            long nodes = start > logical && end < logical + length ? getSplitNodes(inode, end) : 0;
+            reserveNodes(nodes, 0);
+            allocator.free(physical + start - logical, (int) (end - start));
+
+            if (start == logical && end == logical + length) {
+                remove(inode, inode + ROOT, logical);
+            } else if (start == logical) {
+                setEntry(node, k, end, length - (end - logical), physical + (end - logical));
+            } else {
+                setEntry(node, k, logical, start - logical, physical);
+                if (end < logical + length) {
+                    try {
+                        insert(inode, inode + ROOT, end, logical + length - end, physical + (end - logical));
+                    } finally {
+                        releaseNodes(nodes, 0);
+                    }
+                }
+            }
+
+            i = end;
+        }
+    }
+
+    @Override
+    public synchronized void truncate(long inode, long from, long fileBlocks) throws IOException {
+        unmap(inode, from, Long.MAX_VALUE);
+    }
+
+    @Override
+    public long getIndexBlocksCount(long blocks) {
+        // one extent per block, nodes left half full by splits
+        long count = 0;
+        long half = Math.max(1, blockMax / 2);
+
+        for (long level = blocks; level > rootMax; ) {
+            level = (level + half - 1) / half;
+            count += level;
+        }
+
+        return count;
+    }
+
+    @Override
+    public long getMaxBlocks() {
+        return 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void visitMapBlocks(long inode, BlockVisitor visitor) throws IOException {
+        visitNodes(inode + ROOT, visitor);
+    }
+
+    private void visitNodes(long node, BlockVisitor visitor) throws IOException {
+        if (getDepth(node) == 0) return;
+
+        for (int k = 0; k < getEntries(node); k++) {
+            long child = getChild(node, k);
+            if (visitor.visit(child, 1)) visitNodes(child * blockSize, visitor);
+        }
+    }
+
+    /**
+     * Adds the extent, merging it with its neighbours when they are contiguous.
+     */
+    private void addExtent(long inode, long logical, long physical, long length) throws IOException {
+        long node = inode + ROOT;
+        while (getDepth(node) > 0) {
+            int k = search(node, logical);
+            if (k < 0) {
+                setLogical(node, 0, logical);
+                k = 0;
+            }
+            node = getChild(node, k) * blockSize;
+        }
+
+        int k = search(node, logical);
+        int n = getEntries(node);
+
+        if (k >= 0 && getLogical(node, k) + getLength(node, k) == logical
+                && getPhysical(node, k) + getLength(node, k) == physical
+                && getLength(node, k) + length <= MAX_LENGTH) {
+            long merged = getLength(node, k) + length;
+
+            if (k + 1 < n && getLogical(node, k + 1) == logical + length
+                    && getPhysical(node, k + 1) == physical + length
+                    && merged + getLength(node, k + 1) <= MAX_LENGTH) {
+                long next = getLogical(node, k + 1);
+                merged += getLength(node, k + 1);
+                remove(inode, inode + ROOT, next);
+            }
+
+            setLength(node, k, merged);
+            return;
+        }
+
+        if (k + 1 < n && getLogical(node, k + 1) == logical + length
+                && getPhysical(node, k + 1) == physical + length
+                && getLength(node, k + 1) + length <= MAX_LENGTH) {
+            setEntry(node, k + 1, logical, getLength(node, k + 1) + length, physical);
+            return;
+        }
+
+        insert(inode, inode + ROOT, logical, length, physical);
+    }
+
+    /**
+     * Inserts an entry below node.
+     *
+     * @return block of the new right sibling of node if it had to split, else 0
+     */
+    private long insert(long inode, long node, long logical, long a, long b) throws IOException {
+        int k = search(node, logical);
+        if (getDepth(node) == 0)
+            return insertAt(inode, node, k + 1, logical, a, b);
+
+        if (k < 0) {
+            setLogical(node, 0, logical);
+            k = 0;
+        }
+
+        long sibling = insert(inode, getChild(node, k) * blockSize, logical, a, b);
+        if (sibling == 0) return 0;
+
+        return insertAt(inode, node, k + 1, splitKey, sibling, 0);
+    }
+
+    private long insertAt(long inode, long node, int k, long logical, long a, long b) throws IOException {
+        int n = getEntries(node);
+        int max = node == inode + ROOT ? rootMax : blockMax;
+
+        if (n < max) {
+            moveEntries(node, k, node, k + 1, n - k);
+            setEntry(node, k, logical, a, b);
+            setEntries(node, n + 1);
+            return 0;
+        }
+
+        long block = allocateNode(getDepth(node));
+        long right = block * blockSize;
+
+        if (node == inode + ROOT) {
+            // the root can not split: its entries move one level down
+            moveEntries(node, 0, right, 0, n);
+            setEntries(right, n);
+            setDepth(node, getDepth(node) + 1);
+            setEntries(node, 1);
+            setEntry(node, 0, Math.min(logical, getLogical(right, 0)), block, 0);
+
+            long sibling = insertAt(inode, right, k, logical, a, b);
+            if (sibling != 0)
+                insertAt(inode, node, 1, splitKey, sibling, 0);
+            return 0;
+        }
+
+        int half = n / 2;
+        moveEntries(node, half, right, 0, n - half);
+        setEntries(node, half);
+        setEntries(right, n - half);
+
+        if (k <= half)
+            insertAt(inode, node, k, logical, a, b);
+        else
+            insertAt(inode, right, k - half, logical, a, b);
+
+        splitKey = getLogical(right, 0);
+        return block;
+    }
+
+    /**
+     * Removes the leaf entry starting at logical, freeing nodes left empty.
+     *
+     * @return true if node became empty
+     */
+    private boolean remove(long inode, long node, long logical) throws IOException {
+        int k = search(node, logical);
+
+        if (getDepth(node) > 0) {
+            long child = getChild(node, k);
+            if (!remove(inode, child * blockSize, logical)) return false;
+            allocator.free(child, 1);
+        }
+
+        int n = getEntries(node);
+        moveEntries(node, k + 1, node, k, n - k - 1);
+        setEntries(node, n - 1);
+
+        if (n == 1 && node == inode + ROOT)
+            setDepth(node, 0);
+
+        return n == 1;
+    }
+
+    /**
+     * @return nodes inserting an entry at logical may allocate: one per full
+     * node on its path, counting up from the leaf
+     */
+    private long getSplitNodes(long inode, long logical) throws IOException {
+        long node = inode + ROOT;
+        long nodes = 0;
+
+        while (true) {
+            int max = node == inode + ROOT ? rootMax : blockMax;
+            nodes = getEntries(node) < max ? 0 : nodes + 1;
+            if (getDepth(node) == 0) return nodes;
+
+            node = getChild(node, Math.max(0, search(node, logical))) * blockSize;
+        }
+    }
+
+    /**
+     * Sets aside the nodes a change may allocate before anything is changed,
+     * own of them out of the caller's reservation, so that a split never
+     * stops half way.
+     */
+    private void reserveNodes(long nodes, long own) throws IOException {
+        if (nodes > own && !allocator.reserve(nodes - own)) throw new IOException("No free blocks");
+        spare = nodes;
+    }
+
+    /**
+     * Unreserves the nodes set aside and left unused. Nodes come out of the
+     * blocks reserved by reserveNodes first.
+     *
+     * @return nodes taken out of the caller's reservation
+     */
+    private long releaseNodes(long nodes, long own) {
+        long used = nodes - spare;
+        long fresh = nodes - own;
+        spare = 0;
+
+        if (used >= fresh) return used - fresh;
+        allocator.unreserve(fresh - used);
+        return 0;
+    }
+
+    private long allocateNode(int depth) throws IOException {
+        Extent extent = spare > 0 ? allocator.allocateReserved(1, -1) : null;
+        if (extent != null) spare--;
+
+        long block = extent != null ? extent.getStart() : allocator.allocate();
+        if (block == -1) throw new IOException("No free blocks");
+
+        setEntries(block * blockSize, 0);
+        setDepth(block * blockSize, depth);
+        device.putInt(block * blockSize + 4, 0);
+
+        return block;
+    }
+
+    /**
+     * @return last entry of node starting at or before i, -1 if there is none
+     */
+    private int search(long node, long i) throws IOException {
+        int low = 0;
+        int high = getEntries(node) - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getLogical(node, mid) <= i)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+
+        return high;
+    }
+
+    private void moveEntries(long from, int fromIndex, long to, int toIndex, int count) throws IOException {
+        if (count <= 0) return;
+
+        moved.clear().limit(count * ENTRY);
+        device.read(getEntry(from, fromIndex), moved);
+        moved.flip();
+        device.write(getEntry(to, toIndex), moved);
+    }
+
+    private long getEntry(long node, int k) {
+        return node + HEADER + (long) k * ENTRY;
+    }
+
+    private int getEntries(long node) throws IOException {
+        return device.getShort(node) & 0xFFFF;
+    }
+
+    private void setEntries(long node, int entries) throws IOException {
+        device.putShort(node, (short) entries);
+    }
+
+    private int getDepth(long node) throws IOException {
+        return device.getShort(node + 2);
+    }
+
+    private void setDepth(long node, int depth) throws IOException {
+        device.putShort(node + 2, (short) depth);
+    }
+
+    private long getLogical(long node, int k) throws IOException {
+        return device.getInt(getEntry(node, k)) & 0xFFFFFFFFL;
+    }
+
+    private void setLogical(long node, int k, long logical) throws IOException {
+        device.putInt(getEntry(node, k), (int) logical);
+    }
+
+    private long getLength(long node, int k) throws IOException {
+        return device.getInt(getEntry(node, k) + 4) & 0xFFFFFFFFL;
+    }
+
+    private void setLength(long node, int k, long length) throws IOException {
+        device.putInt(getEntry(node, k) + 4, (int) length);
+    }
+
+    private long getChild(long node, int k) throws IOException {
+        return device.getInt(getEntry(node, k) + 4) & 0xFFFFFFFFL;
+    }
+
+    private long getPhysical(long node, int k) throws IOException {
+        return device.getInt(getEntry(node, k) + 8) & 0xFFFFFFFFL;
+    }
+
+    private void setEntry(long node, int k, long logical, long a, long b) throws IOException {
+        long entry = getEntry(node, k);
+        device.putInt(entry, (int) logical);
+        device.putInt(entry + 4, (int) a);
+        device.putInt(entry + 8, (int) b);
+    }
+}
@@ -0,0 +1,189 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Block device doing positional FileChannel reads and writes. There is no
+ * shared file pointer, so any number of threads can use it at once.
+ *
+ * Scattering and gathering transfers have no positional form: they move the
+ * channel position, which only they use, one at a time.
+ */
+public class FileChannelBlockDevice implements BlockDevice {
+    private final FileChannel channel;
+    private volatile long size;
+    private final Object positionLock = new Object();
+
+    // scratch buffer for primitive values
+    private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    };
+
+    private FileChannelBlockDevice(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    public static FileChannelBlockDevice open(String path) throws IOException {
+        return new FileChannelBlockDevice(FileChannel.open(Paths.get(path),
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    /**
+     * @return channel of the image, for transfers to and from other channels
+     */
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void ensureSize(long newSize) throws IOException {
+        if (newSize <= size) return;
+
+        // extends the file with zeros
+        ByteBuffer last = ByteBuffer.allocate(1);
+        channel.write(last, newSize - 1);
+        size = newSize;
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        checkBounds(position, dst.remaining());
+
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read == -1) throw new EOFException("Unexpected end of image at " + position);
+            position += read;
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        checkBounds(position, src.remaining());
+
+        while (src.hasRemaining())
+            position += channel.write(src, position);
+    }
+
+    @Override
+    public void read(long position, ByteBuffer[] dsts) throws IOException {
+        checkBounds(position, remaining(dsts));
+
+        synchronized (positionLock) {
+            channel.position(position);
+            for (int first = 0; first < dsts.length; ) {
+                if (!dsts[first].hasRemaining()) {
+                    first++;
+                } else if (channel.read(dsts, first, dsts.length - first) == -1) {
+                    throw new EOFException("Unexpected end of image at " + channel.position());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer[] srcs) throws IOException {
+        checkBounds(position, remaining(srcs));
+
+        synchronized (positionLock) {
+            channel.position(position);
+            for (int first = 0; first < srcs.length; ) {
+                if (!srcs[first].hasRemaining()) first++;
+                else channel.write(srcs, first, srcs.length - first);
+            }
+        }
+    }
+
+    @Override
+    public byte get(long position) throws IOException {
+        return read(position, 1).get(0);
+    }
+
+    @Override
+    public void put(long position, byte value) throws IOException {
+        ByteBuffer buffer = scratch.get();
+        buffer.clear();
+        buffer.put(value).flip();
+        write(position, buffer);
+    }
+
+    @Override
+    public short getShort(long position) throws IOException {
+        return read(position, 2).getShort(0);
+    }
+
+    @Override
+    public void putShort(long position, short value) throws IOException {
+        ByteBuffer buffer = scratch.get();
+        buffer.clear();
+        buffer.putShort(value).flip();
+        write(position, buffer);
+    }
+
+    @Override
+    public int getInt(long position) throws IOException {
+        return read(position, 4).getInt(0);
+    }
+
+    @Override
+    public void putInt(long position, int value) throws IOException {
+        ByteBuffer buffer = scratch.get();
+        buffer.clear();
+        buffer.putInt(value).flip();
+        write(position, buffer);
+    }
+
+    @Override
+    public long getLong(long position) throws IOException {
+        return read(position, 8).getLong(0);
+    }
+
+    @Override
+    public void putLong(long position, long value) throws IOException {
+        ByteBuffer buffer = scratch.get();
+        buffer.clear();
+        buffer.putLong(value).flip();
+        write(position, buffer);
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = scratch.get();
+        buffer.clear().limit(length);
+        read(position, buffer);
+        return buffer;
+    }
+
+    private void checkBounds(long position, long length) throws IOException {
+        if (position < 0 || position + length > size)
+            throw new IOException("Access out of device bounds : " + position);
+    }
+
+    private static long remaining(ByteBuffer[] buffers) {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers)
+            remaining += buffer.remaining();
+        return remaining;
+    }
+}
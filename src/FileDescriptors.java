@@ -0,0 +1,185 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Files opened in a FileSystem: descriptor -> inode id and the state of its
+ * sequential reads.
+ *
+ * An open-addressing table changed in place under the lock. Lookups take
+ * no lock and box nothing: a slot's id and read-ahead are written before
+ * its descriptor is published, and a closed slot is only marked CLOSED,
+ * never reused, until the table is rebuilt. Rebuilding - when free slots
+ * run short - swaps in a new table through the volatile field.
+ *
+ * A slot also keeps the buffer the last byte[] read or write of its
+ * descriptor wrapped, taken out while a call uses it.
+ */
+public class FileDescriptors {
+    private static final int FREE = 0;
+    private static final int CLOSED = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private static class Table {
+        // linear probing
+        final AtomicIntegerArray fds;
+        final int[] ids;
+        final ReadAhead[] readAheads;
+        final AtomicReferenceArray<ByteBuffer> wrappers;
+        final int mask;
+
+        Table(int capacity) {
+            fds = new AtomicIntegerArray(capacity);
+            ids = new int[capacity];
+            readAheads = new ReadAhead[capacity];
+            wrappers = new AtomicReferenceArray<ByteBuffer>(capacity);
+            mask = capacity - 1;
+        }
+
+        int indexOf(int fd) {
+            if (fd <= FREE) return -1;
+            for (int i = hash(fd) & mask; ; i = (i + 1) & mask) {
+                int slot = fds.get(i);
+                if (slot == fd) return i;
+                if (slot == FREE) return -1;
+            }
+        }
+
+        void add(int fd, int id, ReadAhead readAhead, ByteBuffer wrapper) {
+            int i = hash(fd) & mask;
+            while (fds.get(i) != FREE)
+                i = (i + 1) & mask;
+            ids[i] = id;
+            readAheads[i] = readAhead;
+            wrappers.set(i, wrapper);
+            fds.set(i, fd);
+        }
+    }
+
+    private volatile Table table = new Table(MIN_CAPACITY);
+    // guarded by this
+    private int opened;
+    // slots not FREE, closed ones included
+    private int used;
+    private int lastFd;
+
+    /**
+     * @return new descriptor of inode id
+     */
+    public synchronized int open(int id) {
+        // at most half of the slots used
+        if (2 * (used + 1) > table.fds.length()) rebuild();
+
+        int fd = nextFd();
+        table.add(fd, id, new ReadAhead(), null);
+        opened++;
+        used++;
+
+        return fd;
+    }
+
+    /**
+     * @return false if fd was not opened
+     */
+    public synchronized boolean close(int fd) {
+        int i = table.indexOf(fd);
+        if (i == -1) return false;
+
+        table.fds.set(i, CLOSED);
+        table.wrappers.set(i, null);
+        opened--;
+
+        return true;
+    }
+
+    /**
+     * @return inode id opened as fd, or -1
+     */
+    public int getId(int fd) {
+        Table current = table;
+        int i = current.indexOf(fd);
+        return i == -1 ? -1 : current.ids[i];
+    }
+
+    /**
+     * @return sequential reads of fd, or null if it is not opened
+     */
+    public ReadAhead getReadAhead(int fd) {
+        Table current = table;
+        int i = current.indexOf(fd);
+        return i == -1 ? null : current.readAheads[i];
+    }
+
+    public boolean isOpen(int fd) {
+        return table.indexOf(fd) != -1;
+    }
+
+    /**
+     * @return array[off, off + len) as a buffer for a call on fd: the one
+     * kept for fd if it wraps array and no other call has it, else a new
+     * one. Given back with release.
+     */
+    public ByteBuffer wrap(int fd, byte[] array, int off, int len) {
+        if (off < 0 || len < 0 || off > array.length - len) throw new IndexOutOfBoundsException();
+
+        Table current = table;
+        int i = current.indexOf(fd);
+        ByteBuffer buffer = i == -1 ? null : current.wrappers.getAndSet(i, null);
+        if (buffer == null || buffer.array() != array) return ByteBuffer.wrap(array, off, len);
+
+        buffer.clear();
+        buffer.limit(off + len).position(off);
+        return buffer;
+    }
+
+    /**
+     * Keeps buffer, from wrap, for the next call on fd if it is still opened.
+     */
+    public void release(int fd, ByteBuffer buffer) {
+        Table current = table;
+        int i = current.indexOf(fd);
+        if (i != -1) current.wrappers.set(i, buffer);
+    }
+
+    /**
+     * Makes the next open return the descriptor after lastFd, or the first
+     * one after it not opened.
+     */
+    synchronized void setLastFd(int lastFd) {
+        this.lastFd = lastFd;
+    }
+
+    /**
+     * @return the descriptor after the last one, wrapping past Integer.MAX_VALUE
+     * and skipping descriptors still opened
+     */
+    private int nextFd() {
+        do {
+            lastFd = lastFd == Integer.MAX_VALUE ? 1 : lastFd + 1;
+        } while (table.indexOf(lastFd) != -1);
+        return lastFd;
+    }
+
+    /**
+     * Copies the opened descriptors into a table at most a quarter full,
+     * dropping the closed slots.
+     */
+    private void rebuild() {
+        Table old = table;
+        int capacity = MIN_CAPACITY;
+        while (4 * (opened + 1) > capacity)
+            capacity *= 2;
+
+        Table copy = new Table(capacity);
+        for (int i = 0; i < old.fds.length(); i++) {
+            int fd = old.fds.get(i);
+            if (fd > FREE) copy.add(fd, old.ids[i], old.readAheads[i], old.wrappers.get(i));
+        }
+        table = copy;
+        used = opened;
+    }
+
+    private static int hash(int fd) {
+        return fd * -1640531535;
+    }
+}
@@ -1,511 +1,3425 @@
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Created by Evgeniy Baranuk on 24.05.14.
  */
 public class FileSystem {
     /**
-     * Disk capacity - 16 bytes
-     * Bitmask - diskCapacity bytes
-     * File Descriptors - FILES_MAX_COUNT * (FILE_NAME_MAX_LENGTH + 1) (1 - id)
-     * IndexNodes -
+     * Image layout is described by Superblock.
      *
+     * File Descriptor - inode id (int), name length (short), padding (short), name (UTF-8)
+     * IndexNode - type (short), links count (short), flags (int), size (long), block map
+     *
+     * The block map is an ExtentBlockMap for inodes flagged with FLAG_EXTENTS
+     * and an IndirectBlockMap for the older ones.
+     * Block ids are absolute, so 0 (the superblock) means "no block".
+     *
+     * The descriptor table is the root directory. Other directories keep their
+     * entries in their data blocks, see HashedDirectory. Paths are names
+     * separated by '/'; a name without one is in the root directory.
+     *
+     * Metadata is written through device: the Journal when the image has one,
+     * else the block cache. File data goes to the cache directly. Calls
+     * changing metadata run as journal operations.
+     *
+     * Locking: the namespace lock guards the descriptor table and the mount
+     * state. Calls touching a single file share it and then lock the file's
+     * inode stripe - read for lookups, write for changes. Journal operations
+     * begin after those locks are taken. The allocator, the block maps and the
+     * block cache lock themselves, in that order. Batched transfers lock the
+     * stripes of all their files at once, in stripe order.
+     *
+     * Public operations time themselves into metrics around a private body.
+     *
+     * Growing a file only reserves blocks for it. Data written to its holes
+     * stays in memory, see DelayedBlocks, until the file has FLUSH_BLOCKS of
+     * it (or all files MAX_DELAYED_BLOCKS), sync or unmount; blocks are then
+     * allocated for it a run at a time. Holes read as zeros. Reservations
+     * end with the mount: holes of a remounted image reserve when written.
+     *
+     * Mounting reads the superblock only. Descriptors and inodes are indexed
+     * a page at a time when a lookup first needs them (and by a background
+     * warm-up thread), the bitmask a chunk at a time. Calls sharing the
+     * namespace lock index under indexLock until every page is indexed; from
+     * then on the index only changes under the namespace write lock.
+     *
+     * Channels of files moving data to and from other FileChannels do it
+     * from and to the image channel directly when the image is on a
+     * FileChannelBlockDevice, see transferTo and transferFrom.
+     *
+     * Sequential reads of a descriptor load the blocks following them into
+     * the cache in the background, see ReadAhead. Loads that would queue
+     * behind too many others are dropped.
+     *
+     * The byte[] forms of read and write wrap the array in a buffer kept
+     * with the descriptor, see FileDescriptors.wrap, instead of a new one
+     * per call.
+     *
+     * A clone maps the blocks of its source instead of copying them, see
+     * BlockRefs. Writing a shared block moves the writer to a block of its
+     * own first (copy on write). A snapshot is a directory of clones of
+     * every file, flagged FLAG_READ_ONLY with everything in it.
+     *
+     * Files flagged FLAG_COMPRESSED store their data in clusters of
+     * CLUSTER_SIZE bytes, compressed with Lz4Codec when it saves a block:
+     * a cluster of n blocks maps its first k. None is a hole, n a cluster
+     * stored as is, fewer one starting with its compressed length (int,
+     * little-endian) and then the compressed data. Clusters are compressed
+     * when their delayed blocks are flushed; writing one decompresses it back
+     * into delayed blocks and frees its blocks. Reads decompress through a
+     * ClusterCache.
+     *
+     * fsck checks an image under the namespace write lock, scanning the
+     * directories, the inodes and the bitmask on the common ForkJoinPool;
+     * see Checker.
+     *
+     * A background pass moves fragmented files into contiguous runs while
+     * the image stays mounted, see defragment and DefragProgress.
+     */
+    private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+    // of read(int, int, int)
+    private static final Charset TEXT_CHARSET = Charset.forName("ISO-8859-1");
+
+    private static final int DESCRIPTOR_INODE = 0;
+    private static final int DESCRIPTOR_NAME_LENGTH = 4;
+    private static final int DESCRIPTOR_NAME = 8;
+
+    private static final int INODE_TYPE = 0;
+    private static final int INODE_LINKS = 2;
+    private static final int INODE_FLAGS = 4;
+    private static final int INODE_FILE_SIZE = 8;
+
+    private static final int FLAG_EXTENTS = 1;
+    // snapshot files and directories, changed only by deleteSnapshot
+    private static final int FLAG_READ_ONLY = 2;
+    // data stored in compressed clusters, set on empty files only
+    private static final int FLAG_COMPRESSED = 4;
+
+    private static final int DEFAULT_CACHE_BLOCKS = 1024;
+    // zero filling is done in runs of this many blocks, which bypass the cache
+    private static final int ZERO_BLOCKS = 16;
+    // inodes sharing a read/write lock
+    private static final int LOCK_STRIPES = 64;
+
+    private static final short TYPE_FREE = 0;
+    private static final short TYPE_FILE = 1;
+    private static final short TYPE_DIRECTORY = 2;
+
+    // directory the descriptor table holds, never an inode id
+    private static final int ROOT = 0;
+    private static final int DENTRY_CACHE_SIZE = 16384;
+    // descriptors or inodes indexed at once
+    private static final int INDEX_PAGE = 256;
+    // delayed blocks kept in memory for one file, and for all of them
+    private static final int FLUSH_BLOCKS = 256;
+    private static final int MAX_DELAYED_BLOCKS = 4096;
+    // buffered by stream and channel views
+    private static final int VIEW_BUFFER_SIZE = 64 * 1024;
+    // read-ahead loads waiting for the loader thread
+    private static final int READ_AHEAD_QUEUE = 64;
+    // bytes of a compressed cluster, a block at least
+    private static final int CLUSTER_SIZE = 64 * 1024;
+    private static final int CLUSTER_HEADER = 4;
+    // decompressed clusters kept in memory
+    private static final int CLUSTER_CACHE_SIZE = 64;
+    // file blocks a defragmentation step moves at most
+    private static final int DEFRAG_STEP_BLOCKS = 256;
+
+    private final int cacheBlocks;
+    private BlockDevice device;
+    private BlockCache cache;
+    // channel of a FileChannelBlockDevice image, for transfers around the cache
+    private FileChannel imageChannel;
+    private Superblock superblock;
+    private int blockSize;
+    private int clusterBlocks;
+    private int fileNameMaxLength;
+    private int filesMaxCount;
+    private long deviceCapacity = -1; // blocks count
+    private volatile boolean mounted = false;
+    private BitSet fileIndexes = new BitSet();
+    private BitSet usedInodes = new BitSet();
+    // file name -> descriptor index of the indexed descriptors
+    private Map<String, Integer> nameIndex = new HashMap<String, Integer>();
+    private final Object indexLock = new Object();
+    private volatile int indexedDescriptors;
+    private volatile int indexedInodes;
+    private volatile boolean warmUp = true;
+    private volatile boolean readAhead = true;
+    private int mounts;
+
+    // pointers
+    private long bitmaskPointer;
+    private long descriptorsPointer;
+    private long firstIndodePointer;
+    private int descriptorSize;
+
+    private Journal journal;
+    private BlockAllocator allocator;
+    private BlockMap indirectMap;
+    private BlockMap extentMap;
+    private HashedDirectory directories;
+    private DelayedBlocks delayed;
+    private BlockRefs refs;
+    private ClusterCache clusters;
+    private final DentryCache dentries = new DentryCache(DENTRY_CACHE_SIZE);
+
+    // never written, shared through duplicates
+    private ByteBuffer zeros;
+
+    private final ReadWriteLock namespaceLock = new ReentrantReadWriteLock();
+    private final ReadWriteLock[] inodeLocks = new ReadWriteLock[LOCK_STRIPES];
+
+    // opened files
+    private final FileDescriptors descriptors = new FileDescriptors();
+    private final ThreadPoolExecutor readAheadLoader = createReadAheadLoader();
+
+    private final Metrics metrics = new Metrics();
+    private volatile DefragProgress defrag;
+
+    public FileSystem() {
+        this(DEFAULT_CACHE_BLOCKS);
+    }
+
+    /**
+     * @param cacheBlocks how many blocks of the mounted image are kept in memory
+     */
+    public FileSystem(int cacheBlocks) {
+        this.cacheBlocks = cacheBlocks;
+
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            inodeLocks[i] = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Creates an empty image of blocksCount blocks with the default limits.
+     */
+    public static boolean format(String path, long blocksCount) {
+        return format(path, blocksCount, Superblock.DEFAULT_BLOCK_SIZE,
+                Superblock.DEFAULT_INODE_COUNT, Superblock.DEFAULT_NAME_MAX_LENGTH);
+    }
+
+    /**
+     * Creates an empty image of blocksCount blocks.
+     *
+     * @param blockSize power of two, at least Superblock.MIN_BLOCK_SIZE
+     * @param inodeCount how many files (and names) the image can hold
+     * @param nameMaxLength longest file name in UTF-8 bytes
+     */
+    public static boolean format(String path, long blocksCount, int blockSize, int inodeCount, int nameMaxLength) {
+        if (blockSize < Superblock.MIN_BLOCK_SIZE || Integer.bitCount(blockSize) != 1) {
+            System.out.println("Block size must be a power of two, at least " + Superblock.MIN_BLOCK_SIZE);
+            return false;
+        }
+        if (inodeCount < 1 || nameMaxLength < 1 || nameMaxLength > Superblock.NAME_MAX_LENGTH_LIMIT) {
+            System.out.println("Wrong files count or name length");
+            return false;
+        }
+        if (blocksCount > 0xFFFFFFFFL) {
+            System.out.println("Disk is too big");
+            return false;
+        }
+
+        Superblock sb = Superblock.create(blocksCount, blockSize, inodeCount, nameMaxLength);
+        if (sb.getFirstDataBlock() >= blocksCount) {
+            System.out.println("Disk is too small");
+            return false;
+        }
+
+        try {
+            BlockDevice device = MappedBlockDevice.create(path, sb.getDeviceSize());
+            try {
+                // a fresh file is zero filled: every descriptor and inode is free
+                sb.write(device);
+                BlockAllocator allocator = new BlockAllocator(device, sb.getBitmaskPointer(), blocksCount);
+                allocator.load();
+                allocator.markUsed(0, (int) sb.getFirstDataBlock());
+                allocator.flush();
+                device.force();
+            } finally {
+                device.close();
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public boolean mount(String path) {
+        return mount(path, true);
+    }
+
+    /**
+     * @param mapped map the image into memory, or access it with positional
+     *               FileChannel reads and writes
+     */
+    public boolean mount(String path, boolean mapped) {
+        try {
+            return mount(mapped ? MappedBlockDevice.open(path) : FileChannelBlockDevice.open(path));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public boolean mount(BlockDevice device) {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+
+        namespaceLock.writeLock().lock();
+        try {
+            if (mounted) unmount();
+            imageChannel = device instanceof FileChannelBlockDevice ? ((FileChannelBlockDevice) device).getChannel() : null;
+            return succeeded = mountDevice(new MeteredBlockDevice(device, metrics));
+        } finally {
+            namespaceLock.writeLock().unlock();
+            metrics.record(Metrics.Operation.mount, start, succeeded);
+        }
+    }
+
+    private boolean mountDevice(BlockDevice device) {
+        try {
+            this.device = device;
+
+            int version = Superblock.detectVersion(device);
+            if (version == Superblock.LEGACY_VERSION) {
+                System.out.println("Disk uses the old format, convert it first");
+                closeDevice();
+                return false;
+            }
+
+            superblock = Superblock.read(device);
+            blockSize = superblock.getBlockSize();
+            device.ensureSize(superblock.getDeviceSize());
+            cache = new BlockCache(device, blockSize, cacheBlocks);
+            this.device = cache;
+            if (superblock.getJournalBlocks() > 0) {
+                journal = new Journal(device, cache, blockSize,
+                        superblock.getJournalStart(), superblock.getJournalBlocks());
+                journal.recover();
+                this.device = journal;
+                // the superblock is journaled too, unmount commits it clean
+                superblock = Superblock.read(device);
+            }
+
+            boolean clean = superblock.isClean();
+            long freeBlocks = superblock.getFreeBlocks();
+            if (clean) {
+                // the free count is stale as soon as anything changes, the cache holds no block yet
+                superblock.setClean(false, 0);
+                superblock.write(device);
+                device.force();
+            }
+
+            fileNameMaxLength = superblock.getNameMaxLength();
+            filesMaxCount = superblock.getInodeCount();
+            deviceCapacity = superblock.getBlockCount();
+
+            bitmaskPointer = superblock.getBitmaskPointer();
+            descriptorsPointer = superblock.getDescriptorsPointer();
+            firstIndodePointer = superblock.getFirstInodePointer();
+            descriptorSize = superblock.getDescriptorSize();
+
+            allocator = new BlockAllocator(this.device, bitmaskPointer, deviceCapacity);
+            if (clean) allocator.loadLazily(freeBlocks);
+            else allocator.load();
+            indirectMap = new IndirectBlockMap(this.device, allocator, blockSize);
+            extentMap = new ExtentBlockMap(this.device, allocator, blockSize);
+            if (superblock.getRefcountsPointer() != 0) {
+                refs = new BlockRefs(this.device, superblock.getRefcountsPointer());
+                allocator.setRefs(refs);
+            }
+            directories = new HashedDirectory(this.device, extentMap, blockSize);
+            if (journal != null) journal.start(allocator);
+
+            zeros = ByteBuffer.allocate(blockSize * ZERO_BLOCKS);
+            delayed = new DelayedBlocks(blockSize);
+            clusterBlocks = Math.max(1, CLUSTER_SIZE / blockSize);
+            clusters = new ClusterCache(CLUSTER_CACHE_SIZE);
+            fileIndexes.clear();
+            usedInodes.clear();
+            nameIndex.clear();
+            indexedDescriptors = 0;
+            indexedInodes = 0;
+
+            metrics.attach(allocator, cache, clusters, deviceCapacity);
+            mounted = true;
+            mounts++;
+            if (warmUp) startWarmUp(mounts);
+            return true;
+        } catch (IOException e) {
+            closeDevice();
+            return false;
+        }
+    }
+
+    public boolean unmount() {
+        namespaceLock.writeLock().lock();
+        try {
+            boolean flushed = true;
+            stopDefragmentation();
+
+            try {
+                if (allocator != null) {
+                    flushAllDelayed();
+                    beginOperation();
+                    try {
+                        allocator.flush();
+                        // blocks held by the journal are free in the flushed bitmask
+                        superblock.setClean(true, allocator.getFreeCount() + allocator.getHeldCount());
+                        superblock.write(device);
+                    } finally {
+                        endOperation();
+                    }
+                }
+                if (device != null) device.force();
+            } catch (IOException e) {
+                flushed = false;
+            }
+            closeDevice();
+
+            mounted = false;
+            deviceCapacity = -1;
+            return flushed;
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
+
+    private void closeDevice() {
+        metrics.detach();
+        try {
+            if (device != null) device.close();
+        } catch (IOException ignored) {
+        }
+        device = null;
+        cache = null;
+        imageChannel = null;
+        journal = null;
+        allocator = null;
+        indirectMap = null;
+        extentMap = null;
+        directories = null;
+        delayed = null;
+        refs = null;
+        clusters = null;
+        dentries.clear();
+    }
+
+    public String ls() throws IOException {
+        return ls("/");
+    }
+
+    /**
+     * Lists directory path, directories end with '/'.
+     */
+    public String ls(String path) throws IOException {
+        namespaceLock.readLock().lock();
+        try {
+            if (!isMounted()) return "Disk not mounted";
+
+            int dir = resolve(path);
+            if (dir == -1) return "Directory does not exist";
+
+            if (dir != ROOT && !isDirectory(dir)) return "Not a directory";
+
+            StringBuilder res = new StringBuilder();
+            for (Map.Entry<String, Integer> entry : getEntries(dir).entrySet())
+                appendEntry(res, entry.getValue(), entry.getKey());
+
+            return res.toString();
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return names in directory path, or null if it is not a directory
+     */
+    public List<String> list(String path) throws IOException {
+        namespaceLock.readLock().lock();
+        try {
+            if (!isMounted()) return null;
+
+            int dir = resolve(path);
+            if (dir == -1 || dir != ROOT && !isDirectory(dir)) return null;
+
+            return new ArrayList<String>(getEntries(dir).keySet());
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return name -> inode id of the entries of directory dir
+     */
+    private Map<String, Integer> getEntries(int dir) throws IOException {
+        if (dir != ROOT) return directories.list(getInodePointer(dir), getBucketCount(dir));
+
+        indexDescriptors(filesMaxCount);
+        Map<String, Integer> entries = new LinkedHashMap<String, Integer>();
+        for (int i = fileIndexes.nextSetBit(0); i >= 0; i = fileIndexes.nextSetBit(i + 1))
+            entries.put(getDescriptorName(i), getDescriptorInode(i));
+        return entries;
+    }
+
+    private void appendEntry(StringBuilder res, int id, String name) throws IOException {
+        res.append(id + " : " + name + (isDirectory(id) ? "/" : ""));
+        res.append('\n');
+    }
+
+    public String filestat(String id_arg) throws IOException {
+        namespaceLock.readLock().lock();
+        try {
+            if (!isMounted()) return "Disk not mounted";
+
+            int id = Integer.parseInt(id_arg);
+
+            if (!isIdUsed(id)) return "Cant find file with id : " + id;
+
+            ReadWriteLock lock = getInodeLock(id);
+            lock.readLock().lock();
+            try {
+                return stat(id);
+            } finally {
+                lock.readLock().unlock();
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return what filestat reports about path, or null if it does not exist
+     */
+    public ImageFileAttributes getAttributes(String path) throws IOException {
+        namespaceLock.readLock().lock();
+        try {
+            if (!isMounted()) return null;
+
+            int id = resolve(path);
+            if (id == -1) return null;
+            if (id == ROOT) return new ImageFileAttributes(ROOT, true, 0, 1);
+
+            ReadWriteLock lock = getInodeLock(id);
+            lock.readLock().lock();
+            try {
+                return new ImageFileAttributes(id, isDirectory(id), getFileSize(id), getFileLinksCount(id));
+            } finally {
+                lock.readLock().unlock();
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+    }
+
+    private String stat(int id) throws IOException {
+        StringBuilder res = new StringBuilder();
+
+        res.append("ID : " + id);
+        res.append('\n');
+        res.append("Type : " + (isDirectory(id) ? "directory" : "file"));
+        res.append('\n');
+        res.append("Links count : " + getFileLinksCount(id));
+        res.append('\n');
+        res.append("Size : " + getFileSize(id) + "B");
+        res.append('\n');
+        if (isCompressed(id)) {
+            res.append("Compressed : yes");
+            res.append('\n');
+        }
+
+        return res.toString();
+    }
+
+    public boolean create(String name) throws IOException {
+        long start = System.nanoTime();
+        boolean created = false;
+
+        namespaceLock.writeLock().lock();
+        try {
+            beginOperation();
+            try {
+                return created = createFile(name, TYPE_FILE);
+            } finally {
+                endOperation();
+            }
+        } finally {
+            namespaceLock.writeLock().unlock();
+            metrics.record(Metrics.Operation.create, start, created);
+        }
+    }
+
+    public boolean mkdir(String path) throws IOException {
+        long start = System.nanoTime();
+        boolean created = false;
+
+        namespaceLock.writeLock().lock();
+        try {
+            beginOperation();
+            try {
+                return created = createFile(path, TYPE_DIRECTORY);
+            } finally {
+                endOperation();
+            }
+        } finally {
+            namespaceLock.writeLock().unlock();
+            metrics.record(Metrics.Operation.mkdir, start, created);
+        }
+    }
+
+    private boolean createFile(String path, short type) throws IOException {
+        int parent = resolveParent(path);
+        String name = getBaseName(path);
+        if (parent == -1) {
+            System.out.println("Directory does not exist");
+            return false;
+        }
+        if (!checkName(name) || !checkWritable(parent)) return false;
+
+        if (lookup(parent, name) != -1) {
+            System.out.println("File already exist");
+            return false;
+        }
+
+        int id = findFreeInode();
+        if (id == -1) return false;
+
+        clearInode(id);
+        device.putShort(getInodePointer(id) + INODE_TYPE, type);
+        device.putInt(getInodePointer(id) + INODE_FLAGS, FLAG_EXTENTS);
+        usedInodes.set(id);
+        setFileSize(id, 0);
+        setFileLinksCount(id, 1);
+
+        if (type == TYPE_DIRECTORY && !resize(id, blockSize)) {
+            clearInode(id);
+            return false;
+        }
+        if (type == TYPE_DIRECTORY) directories.format(getInodePointer(id));
+
+        if (!addEntry(parent, name, id)) {
+            releaseInode(id);
+            return false;
+        }
+
+        return true;
+    }
+
+    public int open(String path) throws IOException {
+        long start = System.nanoTime();
+        int id = -1;
+
+        namespaceLock.readLock().lock();
+        try {
+            id = getFileId(path);
+        } finally {
+            namespaceLock.readLock().unlock();
+            metrics.record(Metrics.Operation.open, start, id != -1);
+        }
+        if (id == -1) return -1;
+
+        return descriptors.open(id);
+    }
+
+    public boolean close(int fd) {
+        return descriptors.close(fd);
+    }
+
+    /**
+     * @return size of the file opened as fd, or -1 if it is not opened
+     */
+    public long size(int fd) throws IOException {
+        int id = descriptors.getId(fd);
+        if (id == -1) return -1;
+
+        ReadWriteLock lock = getInodeLock(id);
+        namespaceLock.readLock().lock();
+        lock.readLock().lock();
+        try {
+            return getFileSize(id);
+        } finally {
+            lock.readLock().unlock();
+            namespaceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return stream reading the file opened as fd from its start, closing
+     * fd when closed, or null if fd is not opened
+     */
+    public InputStream newInputStream(int fd) {
+        if (!descriptors.isOpen(fd)) return null;
+        return new FileSystemInputStream(this, fd, VIEW_BUFFER_SIZE);
+    }
+
+    /**
+     * @return stream appending to the file opened as fd, closing fd when
+     * closed, or null if fd is not opened
+     */
+    public OutputStream newOutputStream(int fd) throws IOException {
+        long size = size(fd);
+        if (size == -1) return null;
+        return new FileSystemOutputStream(this, fd, size, VIEW_BUFFER_SIZE);
+    }
+
+    /**
+     * @return channel over the file opened as fd, at its start, closing fd
+     * when closed, or null if fd is not opened
+     */
+    public SeekableByteChannel newByteChannel(int fd) {
+        if (!descriptors.isOpen(fd)) return null;
+        return new FileSystemChannel(this, fd, VIEW_BUFFER_SIZE);
+    }
+
+    /**
+     * @return inode id of the file opened as fd, or -1
+     */
+    int getOpenedFileId(int fd) {
+        return descriptors.getId(fd);
+    }
+
+    /**
+     * @return inode id of the regular file at path, or -1
+     */
+    int resolveFileId(String path) throws IOException {
+        namespaceLock.readLock().lock();
+        try {
+            return isMounted() ? getFileId(path) : -1;
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Fills size bytes at offset with '1'.
+     */
+    public boolean write(int fd, int offset, int size) throws IOException {
+        if (offset < 0 || size < 0) {
+            System.out.println("File is too small to write this information");
+            return false;
+        }
+
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) '1');
+
+        return write(fd, offset, data) != -1;
+    }
+
+    public int write(int fd, long offset, byte[] src) throws IOException {
+        return write(fd, offset, src, 0, src.length);
+    }
+
+    public int write(int fd, long offset, byte[] src, int off, int len) throws IOException {
+        ByteBuffer buffer = descriptors.wrap(fd, src, off, len);
+        try {
+            return write(fd, offset, buffer);
+        } finally {
+            descriptors.release(fd, buffer);
+        }
+    }
+
+    /**
+     * Stores every remaining byte of src at offset. The file is not grown,
+     * so the whole range must lie inside it.
+     *
+     * @return bytes written or -1 if the file is not opened or too small
+     */
+    public int write(int fd, long offset, ByteBuffer src) throws IOException {
+        return write(fd, offset, src, false);
+    }
+
+    /**
+     * Stores every remaining byte of src at offset, first growing the file
+     * to the end of the range if grow is set and it is shorter.
+     *
+     * @return bytes written or -1 if the file is not opened or can not hold the range
+     */
+    public int write(int fd, long offset, ByteBuffer src, boolean grow) throws IOException {
+        long start = System.nanoTime();
+        int written = -1;
+
+        try {
+            return written = writeFile(fd, offset, src, grow);
+        } finally {
+            metrics.record(Metrics.Operation.write, start, written != -1);
+            if (written > 0) metrics.addBytesWritten(written);
+        }
+    }
+
+    private int writeFile(int fd, long offset, ByteBuffer src, boolean grow) throws IOException {
+        int id = descriptors.getId(fd);
+        if (id == -1) {
+            System.out.println("File was not opened");
+            return -1;
+        }
+
+        ReadWriteLock lock = getInodeLock(id);
+        namespaceLock.readLock().lock();
+        lock.writeLock().lock();
+        try {
+            if (!checkWritable(id)) return -1;
+
+            long end = offset + src.remaining();
+            if (grow && offset >= 0 && end > getFileSize(id) && !truncateFile(id, end)) {
+                System.out.println("Not enough free space");
+                return -1;
+            }
+            if (offset < 0 || end > getFileSize(id)) {
+                System.out.println("File is too small to write this information");
+                return -1;
+            }
+            if (!prepareWrite(id, offset, src.remaining()) || !reserveHoles(id, offset, src.remaining())) {
+                System.out.println("Not enough free space");
+                return -1;
+            }
+
+            int written = transferData(id, offset, src, true);
+            flushIfFull(id);
+            return written;
+        } finally {
+            lock.writeLock().unlock();
+            namespaceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads size bytes at offset as ISO-8859-1 text.
+     */
+    public String read(int fd, int offset, int size) throws IOException {
+        if (!descriptors.isOpen(fd)) {
+            return "File was not opened";
+        }
+        if (offset < 0 || size < 0) {
+            return "File have not this information";
+        }
+
+        byte[] data = new byte[size];
+        if (read(fd, offset, data) != size) {
+            return "File have not this information";
+        }
+
+        return new String(data, 0, size, TEXT_CHARSET);
+    }
+
+    public int read(int fd, long offset, byte[] dst) throws IOException {
+        return read(fd, offset, dst, 0, dst.length);
+    }
+
+    public int read(int fd, long offset, byte[] dst, int off, int len) throws IOException {
+        ByteBuffer buffer = descriptors.wrap(fd, dst, off, len);
+        try {
+            return read(fd, offset, buffer);
+        } finally {
+            descriptors.release(fd, buffer);
+        }
+    }
+
+    /**
+     * Reads up to dst.remaining() bytes starting at offset, stopping at the end of file.
+     *
+     * @return bytes read (0 at the end of file) or -1 if the file is not opened
+     */
+    public int read(int fd, long offset, ByteBuffer dst) throws IOException {
+        long start = System.nanoTime();
+        int read = -1;
+
+        try {
+            return read = readFile(fd, offset, dst);
+        } finally {
+            metrics.record(Metrics.Operation.read, start, read != -1);
+            if (read > 0) metrics.addBytesRead(read);
+        }
+    }
+
+    private int readFile(int fd, long offset, ByteBuffer dst) throws IOException {
+        int id = descriptors.getId(fd);
+        if (id == -1)
+            return -1;
+
+        ReadWriteLock lock = getInodeLock(id);
+        namespaceLock.readLock().lock();
+        lock.readLock().lock();
+        try {
+            long available = getFileSize(id) - offset;
+            if (offset < 0 || available <= 0) return 0;
+
+            int read;
+            if (dst.remaining() <= available) {
+                read = transferData(id, offset, dst, false);
+            } else {
+                int limit = dst.limit();
+                dst.limit(dst.position() + (int) available);
+                try {
+                    read = transferData(id, offset, dst, false);
+                } finally {
+                    dst.limit(limit);
+                }
+            }
+
+            if (readAhead) readAhead(fd, id, offset, read);
+            return read;
+        } finally {
+            lock.readLock().unlock();
+            namespaceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sends up to count bytes of the file opened as fd at offset from the
+     * image channel straight to target, one FileChannel.transferTo per
+     * extent. Stops at the end of file, at the first hole or delayed block
+     * and when target takes less: the caller reads those through the file.
+     * Dirty cached copies of the extents are written back first.
+     *
+     * @return bytes sent, or -1 if the file is not opened, is compressed or
+     * the image is not on a FileChannelBlockDevice
+     */
+    long transferTo(int fd, long offset, long count, WritableByteChannel target) throws IOException {
+        long start = System.nanoTime();
+        long sent = -1;
+        int id = descriptors.getId(fd);
+        if (id == -1 || offset < 0) return -1;
+
+        ReadWriteLock lock = getInodeLock(id);
+        namespaceLock.readLock().lock();
+        lock.readLock().lock();
+        try {
+            FileChannel channel = imageChannel;
+            if (channel == null || isCompressed(id)) return -1;
+
+            sent = 0;
+            long inode = getInodePointer(id);
+            BlockMap map = getBlockMap(id);
+            count = Math.min(count, getFileSize(id) - offset);
+            while (sent < count) {
+                long j = (offset + sent) / blockSize;
+                long inBlock = (offset + sent) % blockSize;
+                long block = map.get(inode, j);
+                if (block == 0) break;
+
+                long blocks = (inBlock + count - sent + blockSize - 1) / blockSize;
+                long length = Math.min(map.getRunLength(inode, j, blocks) * blockSize - inBlock, count - sent);
+                long pointer = getBlockPointer(block) + inBlock;
+                if (!cache.prepareDirect(pointer, length)) break;
+
+                long done = channel.transferTo(pointer, length, target);
+                sent += done;
+                if (done < length) break;
+            }
+            return sent;
+        } finally {
+            lock.readLock().unlock();
+            namespaceLock.readLock().unlock();
+            metrics.record(Metrics.Operation.read, start, sent != -1);
+            if (sent > 0) metrics.addBytesRead(sent);
+        }
+    }
+
+    /**
+     * Stores up to count bytes of src at offset of the file opened as fd,
+     * from src straight to the image channel, one FileChannel.transferFrom
+     * per extent. Only overwrites: stops at the end of file, at the first
+     * hole or delayed block and when src gives less. Shared blocks are
+     * copied first. Cached copies of the extents are written back before
+     * and read again after.
+     *
+     * @return bytes stored, or -1 if the file is not opened or writable, is
+     * compressed or the image is not on a FileChannelBlockDevice
+     */
+    long transferFrom(ReadableByteChannel src, int fd, long offset, long count) throws IOException {
+        long start = System.nanoTime();
+        long stored = -1;
+        int id = descriptors.getId(fd);
+        if (id == -1 || offset < 0) return -1;
+
+        ReadWriteLock lock = getInodeLock(id);
+        namespaceLock.readLock().lock();
+        lock.writeLock().lock();
+        try {
+            FileChannel channel = imageChannel;
+            if (channel == null || isCompressed(id) || !checkWritable(id)) return -1;
+
+            stored = 0;
+            count = Math.min(count, getFileSize(id) - offset);
+            if (count <= 0 || !unshare(id, offset, count)) return stored;
+
+            long inode = getInodePointer(id);
+            BlockMap map = getBlockMap(id);
+            while (stored < count) {
+                long j = (offset + stored) / blockSize;
+                long inBlock = (offset + stored) % blockSize;
+                long block = map.get(inode, j);
+                if (block == 0) break;
+
+                long blocks = (inBlock + count - stored + blockSize - 1) / blockSize;
+                long length = Math.min(map.getRunLength(inode, j, blocks) * blockSize - inBlock, count - stored);
+                long pointer = getBlockPointer(block) + inBlock;
+                if (!cache.prepareDirect(pointer, length)) break;
+
+                long done;
+                try {
+                    done = channel.transferFrom(src, pointer, length);
+                } finally {
+                    cache.reload(pointer, length);
+                }
+                stored += done;
+                if (done < length) break;
+            }
+            return stored;
+        } finally {
+            lock.writeLock().unlock();
+            namespaceLock.readLock().unlock();
+            metrics.record(Metrics.Operation.write, start, stored != -1);
+            if (stored > 0) metrics.addBytesWritten(stored);
+        }
+    }
+
+    /**
+     * Copies buffer.remaining() bytes between buffer and the file at offset.
+     * Writes to a compressed file find its clusters decompressed already,
+     * see prepareWrite.
+     */
+    private int transferData(int id, long offset, ByteBuffer buffer, boolean write) throws IOException {
+        if (!write && isCompressed(id)) return readClusters(id, offset, buffer);
+        return transferBlocks(id, offset, buffer, write);
+    }
+
+    /**
+     * Copies buffer.remaining() bytes between buffer and the file at offset,
+     * one device transfer per extent (run of physically adjacent blocks).
+     * Holes go to and come from the delayed blocks.
+     */
+    private int transferBlocks(int id, long offset, ByteBuffer buffer, boolean write) throws IOException {
+        int total = buffer.remaining();
+        int limit = buffer.limit();
+        long inode = getInodePointer(id);
+        BlockMap map = getBlockMap(id);
+
+        try {
+            while (buffer.hasRemaining()) {
+                long j = offset / blockSize;
+                long inBlock = offset % blockSize;
+                long block = map.get(inode, j);
+
+                long blocks = (inBlock + buffer.remaining() + blockSize - 1) / blockSize;
+                long run = Math.min(map.getRunLength(inode, j, blocks) * blockSize - inBlock, buffer.remaining());
+
+                buffer.limit(buffer.position() + (int) run);
+                if (block == 0) {
+                    transferDelayed(id, offset, buffer, write);
+                } else if (write) {
+                    cache.write(getBlockPointer(block) + inBlock, buffer);
+                } else {
+                    cache.read(getBlockPointer(block) + inBlock, buffer);
+                }
+                buffer.limit(limit);
+
+                offset += run;
+            }
+        } finally {
+            buffer.limit(limit);
+        }
+
+        return total;
+    }
+
+    /**
+     * Reads buffer.remaining() bytes of compressed inode id at offset, a
+     * cluster at a time.
+     */
+    private int readClusters(int id, long offset, ByteBuffer buffer) throws IOException {
+        int total = buffer.remaining();
+        int limit = buffer.limit();
+        long inode = getInodePointer(id);
+        BlockMap map = getBlockMap(id);
+        long fileBlocks = blocksCount(getFileSize(id));
+        long clusterBytes = (long) clusterBlocks * blockSize;
+
+        try {
+            while (buffer.hasRemaining()) {
+                long c = offset / clusterBytes;
+                int n = getClusterBlocks(c, fileBlocks);
+                int k = getStoredBlocks(inode, map, c * clusterBlocks, n);
+                int inCluster = (int) (offset - c * clusterBytes);
+                int length = Math.min(buffer.remaining(), n * blockSize - inCluster);
+
+                buffer.limit(buffer.position() + length);
+                if (k == 0) {
+                    transferDelayed(id, offset, buffer, false);
+                } else if (k == n) {
+                    transferBlocks(id, offset, buffer, false);
+                } else {
+                    buffer.put(readCluster(id, c, n, k), inCluster, length);
+                }
+                buffer.limit(limit);
+
+                offset += length;
+            }
+        } finally {
+            buffer.limit(limit);
+        }
+
+        return total;
+    }
+
+    /**
+     * @return content of cluster c of inode id, n blocks of which the first
+     * k are stored, through the cluster cache if it is compressed. Never
+     * changed by the caller.
+     */
+    private byte[] readCluster(int id, long c, int n, int k) throws IOException {
+        if (k < n) {
+            byte[] cached = clusters.get(id, c);
+            if (cached != null) return cached;
+        }
+
+        long inode = getInodePointer(id);
+        BlockMap map = getBlockMap(id);
+        long first = c * clusterBlocks;
+        byte[] stored = new byte[k * blockSize];
+        for (int i = 0; i < k; ) {
+            long block = map.get(inode, first + i);
+            int run = (int) map.getRunLength(inode, first + i, k - i);
+            cache.read(getBlockPointer(block), ByteBuffer.wrap(stored, i * blockSize, run * blockSize));
+            i += run;
+        }
+        if (k == n) return stored;
+
+        int length = ByteBuffer.wrap(stored).order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+        byte[] content = new byte[n * blockSize];
+        if (length < 0 || length > stored.length - CLUSTER_HEADER
+                || Lz4Codec.decompress(stored, CLUSTER_HEADER, length, content) != content.length)
+            throw new IOException("Corrupt cluster " + c + " of inode " + id);
+
+        clusters.put(id, c, content);
+        return content;
+    }
+
+    /**
+     * Queues the blocks to load after a sequential read of fd, if it is one.
+     * Called holding the file's lock.
+     */
+    private void readAhead(int fd, int id, long offset, int read) throws IOException {
+        ReadAhead state = descriptors.getReadAhead(fd);
+        // closed meanwhile
+        if (state == null) return;
+
+        synchronized (state) {
+            if (!state.record(offset, read, blockSize, blocksCount(getFileSize(id)))) return;
+
+            // device runs of the mapped blocks, holes have nothing to load
+            long inode = getInodePointer(id);
+            BlockMap map = getBlockMap(id);
+            long to = state.getTo();
+            for (long j = state.getFrom(); j < to; ) {
+                long block = map.get(inode, j);
+                long run = map.getRunLength(inode, j, to - j);
+                if (block != 0 && !state.addRun(block, run)) break;
+                j += run;
+            }
+            if (!state.startLoad(mounts)) return;
+            if (state.getLoader() == null) state.setLoader(new ReadAheadLoad(state));
+        }
+        readAheadLoader.execute(state.getLoader());
+    }
+
+    /**
+     * Loads the pending runs of a descriptor into the cache.
+     */
+    private class ReadAheadLoad implements Runnable {
+        private final ReadAhead state;
+
+        ReadAheadLoad(ReadAhead state) {
+            this.state = state;
+        }
+
+        @Override
+        public void run() {
+            boolean done = false;
+            namespaceLock.readLock().lock();
+            try {
+                if (!mounted || mounts != state.getMount()) return;
+
+                while (state.nextRun())
+                    cache.prefetch(state.getRunBlock(), (int) state.getRunLength());
+                done = true;
+            } catch (IOException e) {
+                // the read will find out
+            } finally {
+                if (!done) state.endLoad();
+                namespaceLock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Reads every request as read(fd, offset, dst) would, in one pass: the
+     * files are looked up and locked once, and the ranges are sorted by
+     * position on the image, adjacent ones read by one scattering transfer.
+     *
+     * @return bytes read by all the requests
+     */
+    public long readv(List<IoRequest> requests) throws IOException {
+        long start = System.nanoTime();
+        long read = -1;
+
+        try {
+            return read = transferBatch(requests, false);
+        } finally {
+            metrics.record(Metrics.Operation.readv, start, read != -1);
+            if (read > 0) metrics.addBytesRead(read);
+        }
+    }
+
+    /**
+     * Writes every request as write(fd, offset, src) would, in one pass, see
+     * readv. Overlapping requests are written in no particular order.
+     *
+     * @return bytes written by all the requests
+     */
+    public long writev(List<IoRequest> requests) throws IOException {
+        long start = System.nanoTime();
+        long written = -1;
+
+        try {
+            return written = transferBatch(requests, true);
+        } finally {
+            metrics.record(Metrics.Operation.writev, start, written != -1);
+            if (written > 0) metrics.addBytesWritten(written);
+        }
+    }
+
+    private long transferBatch(List<IoRequest> requests, boolean write) throws IOException {
+        int[] ids = new int[requests.size()];
+        boolean[] stripes = new boolean[LOCK_STRIPES];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = getOpenedFileId(requests.get(i).getFd());
+            if (ids[i] != -1) stripes[ids[i] & (LOCK_STRIPES - 1)] = true;
+        }
+
+        namespaceLock.readLock().lock();
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            if (stripes[i]) (write ? inodeLocks[i].writeLock() : inodeLocks[i].readLock()).lock();
+        }
+        try {
+            List<Segment> segments = new ArrayList<Segment>();
+            long total = 0;
+            // requests of the same file usually come together, its inode is read once for them
+            int id = -1;
+            long size = 0;
+            long inode = 0;
+            BlockMap map = null;
+
+            for (int i = 0; i < ids.length; i++) {
+                IoRequest request = requests.get(i);
+                if (ids[i] == -1) {
+                    request.setResult(-1);
+                    continue;
+                }
+                if (ids[i] != id) {
+                    id = ids[i];
+                    size = getFileSize(id);
+                    inode = getInodePointer(id);
+                    map = getBlockMap(id);
+                }
+
+                int length = mapRequest(id, request, size, inode, map, write, segments);
+                request.setResult(length);
+                if (length > 0) total += length;
+            }
+
+            Collections.sort(segments);
+            for (int first = 0; first < segments.size(); ) {
+                int end = first + 1;
+                while (end < segments.size() && segments.get(end).position == segments.get(end - 1).getEnd())
+                    end++;
+
+                Segment segment = segments.get(first);
+                if (end - first == 1) {
+                    if (write) cache.write(segment.position, segment.buffer);
+                    else cache.read(segment.position, segment.buffer);
+                } else {
+                    ByteBuffer[] buffers = new ByteBuffer[end - first];
+                    for (int i = first; i < end; i++)
+                        buffers[i - first] = segments.get(i).buffer;
+
+                    if (write) cache.write(segment.position, buffers);
+                    else cache.read(segment.position, buffers);
+                }
+                first = end;
+            }
+
+            if (write) {
+                for (int i = 0; i < ids.length; i++) {
+                    if (ids[i] != -1) flushIfFull(ids[i]);
+                }
+            }
+
+            return total;
+        } finally {
+            for (int i = LOCK_STRIPES - 1; i >= 0; i--) {
+                if (stripes[i]) (write ? inodeLocks[i].writeLock() : inodeLocks[i].readLock()).unlock();
+            }
+            namespaceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the image ranges of request, on a file of size bytes, to segments,
+     * each with its part of the request buffer, whose position moves past the
+     * transferred bytes. Holes are transferred to the delayed blocks right away.
+     *
+     * @return bytes the request transfers, -1 if a write does not fit in the file
+     */
+    private int mapRequest(int id, IoRequest request, long size, long inode, BlockMap map, boolean write,
+                           List<Segment> segments) throws IOException {
+        ByteBuffer buffer = request.getBuffer();
+        long offset = request.getOffset();
+        int length = buffer.remaining();
+
+        if (write) {
+            if (offset < 0 || offset + length > size || isReadOnly(id)
+                    || !prepareWrite(id, offset, length) || !reserveHoles(id, offset, length)) return -1;
+        } else {
+            if (offset < 0 || offset >= size) return 0;
+            length = (int) Math.min(length, size - offset);
+        }
+
+        int start = buffer.position();
+
+        if (isCompressed(id)) {
+            // clusters are not on the image as they are read
+            ByteBuffer part = buffer.duplicate();
+            part.limit(start + length);
+            transferData(id, offset, part, write);
+            buffer.position(start + length);
+            return length;
+        }
+
+        for (int done = 0; done < length; ) {
+            long j = offset / blockSize;
+            long inBlock = offset % blockSize;
+            long block = map.get(inode, j);
+
+            long blocks = (inBlock + length - done + blockSize - 1) / blockSize;
+            int run = (int) Math.min(map.getRunLength(inode, j, blocks) * blockSize - inBlock, length - done);
+
+            ByteBuffer part = buffer.duplicate();
+            part.limit(start + done + run).position(start + done);
+            if (block == 0) {
+                transferDelayed(id, offset, part, write);
+            } else {
+                segments.add(new Segment(getBlockPointer(block) + inBlock, part));
+            }
+
+            done += run;
+            offset += run;
+        }
+        buffer.position(start + length);
+
+        return length;
+    }
+
+    public boolean link(String target, String link) throws IOException {
+        long start = System.nanoTime();
+        boolean linked = false;
+
+        namespaceLock.writeLock().lock();
+        try {
+            beginOperation();
+            try {
+                return linked = linkFile(target, link);
+            } finally {
+                endOperation();
+            }
+        } finally {
+            namespaceLock.writeLock().unlock();
+            metrics.record(Metrics.Operation.link, start, linked);
+        }
+    }
+
+    private boolean linkFile(String target, String link) throws IOException {
+        int dir = resolveParent(link);
+        String name = getBaseName(link);
+        if (dir == -1) {
+            System.out.println("Directory does not exist");
+            return false;
+        }
+
+        if (lookup(dir, name) != -1) {
+            System.out.println("File already exist");
+            return false;
+        }
+
+        if (!checkName(name) || !checkWritable(dir)) return false;
+
+        int id = getFileId(target);
+        if (id == -1 || !addEntry(dir, name, id)) return false;
+
+        setFileLinksCount(id, getFileLinksCount(id) + 1);
+
+        return true;
+    }
+
+    public boolean unlink(String path) throws IOException {
+        long start = System.nanoTime();
+        boolean unlinked = false;
+
+        namespaceLock.writeLock().lock();
+        try {
+            beginOperation();
+            try {
+                return unlinked = unlinkFile(path);
+            } finally {
+                endOperation();
+            }
+        } finally {
+            namespaceLock.writeLock().unlock();
+            metrics.record(Metrics.Operation.unlink, start, unlinked);
+        }
+    }
+
+    private boolean unlinkFile(String path) throws IOException {
+        int dir = resolveParent(path);
+        String name = getBaseName(path);
+        int id = dir == -1 ? -1 : lookup(dir, name);
+        if (id == -1 || !checkWritable(dir)) return false;
+
+        if (isDirectory(id)) {
+            System.out.println("Is a directory");
+            return false;
+        }
+
+        removeEntry(dir, name);
+        setFileLinksCount(id, getFileLinksCount(id) - 1);
+
+        if (getFileLinksCount(id) == 0)
+            releaseInode(id);
+
+        return true;
+    }
+
+    /**
+     * Removes directory path, which must be empty.
+     */
+    public boolean rmdir(String path) throws IOException {
+        long start = System.nanoTime();
+        boolean removed = false;
+
+        namespaceLock.writeLock().lock();
+        try {
+            beginOperation();
+            try {
+                return removed = removeDirectory(path);
+            } finally {
+                endOperation();
+            }
+        } finally {
+            namespaceLock.writeLock().unlock();
+            metrics.record(Metrics.Operation.rmdir, start, removed);
+        }
+    }
+
+    private boolean removeDirectory(String path) throws IOException {
+        int dir = resolveParent(path);
+        String name = getBaseName(path);
+        int id = dir == -1 ? -1 : lookup(dir, name);
+        if (id == -1 || !checkWritable(dir) || !checkWritable(id)) return false;
+
+        if (!isDirectory(id)) {
+            System.out.println("Not a directory");
+            return false;
+        }
+        if (!directories.isEmpty(getInodePointer(id), getBucketCount(id))) {
+            System.out.println("Directory is not empty");
+            return false;
+        }
+
+        removeEntry(dir, name);
+        releaseInode(id);
+
+        return true;
+    }
+
+    /**
+     * Makes dst a copy of file src that shares its blocks: nothing is copied
+     * until one of the two writes them.
+     */
+    public boolean clone(String src, String dst) throws IOException {
+        long start = System.nanoTime();
+        boolean cloned = false;
+
+        namespaceLock.writeLock().lock();
+        try {
+            if (!checkSharing()) return false;
+
+            int id = getFileId(src);
+            if (id == -1) {
+                System.out.println("File does not exist");
+                return false;
+            }
+
+            // delayed data has no blocks to share yet
+            flushDelayed(id);
+            return cloned = cloneFile(id, dst, 0);
+        } finally {
+            namespaceLock.writeLock().unlock();
+            metrics.record(Metrics.Operation.clone, start, cloned);
+        }
+    }
+
+    /**
+     * Takes a read-only snapshot of the image as directory path: every file
+     * outside snapshots is cloned into it, in directories made again. A file
+     * with several names is cloned once per name.
+     */
+    public boolean snapshot(String path) throws IOException {
+        long start = System.nanoTime();
+        boolean taken = false;
+
+        namespaceLock.writeLock().lock();
+        try {
+            if (!checkSharing()) return false;
+
+            flushAllDelayed();
+            beginOperation();
+            try {
+                if (!createFile(path, TYPE_DIRECTORY)) return false;
+            } finally {
+                endOperation();
+            }
+
+            int snapshot = resolve(path);
+            if (!snapshotDirectory(ROOT, path, snapshot)) {
+                removeTree(resolveParent(path), getBaseName(path), snapshot);
+                return false;
+            }
+            setReadOnly(snapshot);
+
+            return taken = true;
+        } finally {
+            namespaceLock.writeLock().unlock();
+            metrics.record(Metrics.Operation.snapshot, start, taken);
+        }
+    }
+
+    /**
+     * Removes snapshot path with everything in it.
+     */
+    public boolean deleteSnapshot(String path) throws IOException {
+        long start = System.nanoTime();
+        boolean deleted = false;
+
+        namespaceLock.writeLock().lock();
+        try {
+            int dir = resolveParent(path);
+            int id = resolve(path);
+            if (id == -1 || id == ROOT || !isDirectory(id) || !isReadOnly(id) || isReadOnly(dir)) {
+                System.out.println("Not a snapshot");
+                return false;
+            }
+
+            removeTree(dir, getBaseName(path), id);
+            return deleted = true;
+        } finally {
+            namespaceLock.writeLock().unlock();
+            metrics.record(Metrics.Operation.deleteSnapshot, start, deleted);
+        }
+    }
+
+    private boolean checkSharing() {
+        if (!isMounted()) {
+            System.out.println("Disk not mounted");
+            return false;
+        }
+        if (refs == null) {
+            System.out.println("Disk has no reference counts, format a new one to clone");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates file dst mapping the blocks of inode id, with flags added.
+     */
+    private boolean cloneFile(int id, String dst, int flags) throws IOException {
+        beginOperation();
+        try {
+            if (!createFile(dst, TYPE_FILE)) return false;
+
+            int copy = resolve(dst);
+            long inode = getInodePointer(id);
+            long copyInode = getInodePointer(copy);
+            BlockMap map = getBlockMap(id);
+            long size = getFileSize(id);
+            long blocks = blocksCount(size);
+            setFileSize(copy, size);
+
+            for (long j = 0; j < blocks; ) {
+                long run = map.getRunLength(inode, j, blocks - j);
+                long block = map.get(inode, j);
+                if (block != 0) {
+                    if (!refs.share(block, run)) {
+                        System.out.println("Blocks are shared too many times");
+                        // drops the references taken so far
+                        unlinkFile(dst);
+                        return false;
+                    }
+                    extentMap.map(copyInode, j, block, run, 0);
+                }
+                j += run;
+            }
+
+            device.putInt(copyInode + INODE_FLAGS,
+                    FLAG_EXTENTS | flags | device.getInt(inode + INODE_FLAGS) & FLAG_COMPRESSED);
+            return true;
+        } finally {
+            endOperation();
+        }
+    }
+
+    /**
+     * Clones the entries of directory dir into directory copy at path, but
+     * snapshots and copy itself. Every clone is made read-only.
+     */
+    private boolean snapshotDirectory(int dir, String path, int copy) throws IOException {
+        for (Map.Entry<String, Integer> entry : getEntries(dir).entrySet()) {
+            int id = entry.getValue();
+            String name = path + "/" + entry.getKey();
+            if (id == copy || isReadOnly(id)) continue;
+
+            if (!isDirectory(id)) {
+                if (!cloneFile(id, name, FLAG_READ_ONLY)) return false;
+                continue;
+            }
+
+            beginOperation();
+            try {
+                if (!createFile(name, TYPE_DIRECTORY)) return false;
+            } finally {
+                endOperation();
+            }
+            int sub = resolve(name);
+            if (!snapshotDirectory(id, name, sub)) return false;
+            setReadOnly(sub);
+        }
+        return true;
+    }
+
+    /**
+     * Removes directory id, entry name of dir, and everything in it,
+     * read-only or not.
+     */
+    private void removeTree(int dir, String name, int id) throws IOException {
+        for (Map.Entry<String, Integer> entry : getEntries(id).entrySet()) {
+            int child = entry.getValue();
+            if (isDirectory(child)) {
+                removeTree(id, entry.getKey(), child);
+                continue;
+            }
+
+            beginOperation();
+            try {
+                removeEntry(id, entry.getKey());
+                setFileLinksCount(child, getFileLinksCount(child) - 1);
+                if (getFileLinksCount(child) == 0) releaseInode(child);
+            } finally {
+                endOperation();
+            }
+        }
+
+        beginOperation();
+        try {
+            removeEntry(dir, name);
+            releaseInode(id);
+        } finally {
+            endOperation();
+        }
+    }
+
+    private void setReadOnly(int id) throws IOException {
+        beginOperation();
+        try {
+            long flags = getInodePointer(id) + INODE_FLAGS;
+            device.putInt(flags, device.getInt(flags) | FLAG_READ_ONLY);
+        } finally {
+            endOperation();
+        }
+    }
+
+    /**
+     * Turns compression of file path on or off. Only an empty file changes.
+     */
+    public boolean setCompression(String path, boolean compressed) throws IOException {
+        long start = System.nanoTime();
+        boolean set = false;
+
+        namespaceLock.readLock().lock();
+        try {
+            int id = getFileId(path);
+            if (id == -1) {
+                System.out.println("File does not exist");
+                return false;
+            }
+
+            ReadWriteLock lock = getInodeLock(id);
+            lock.writeLock().lock();
+            try {
+                if (!checkWritable(id)) return false;
+                if (getFileSize(id) != 0) {
+                    System.out.println("File is not empty");
+                    return false;
+                }
+                if (getBlockMap(id) != extentMap) {
+                    System.out.println("File uses the old block map");
+                    return false;
+                }
+
+                beginOperation();
+                try {
+                    long flags = getInodePointer(id) + INODE_FLAGS;
+                    int value = device.getInt(flags);
+                    device.putInt(flags, compressed ? value | FLAG_COMPRESSED : value & ~FLAG_COMPRESSED);
+                } finally {
+                    endOperation();
+                }
+                return set = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
+            metrics.record(Metrics.Operation.compress, start, set);
+        }
+    }
+
+    public boolean truncate(String path, long size) throws IOException {
+        long start = System.nanoTime();
+        boolean truncated = false;
+
+        namespaceLock.readLock().lock();
+        try {
+            int id = getFileId(path);
+            if (id == -1 || size < 0) return false;
+
+            ReadWriteLock lock = getInodeLock(id);
+            lock.writeLock().lock();
+            try {
+                return truncated = truncateFile(id, size);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
+            metrics.record(Metrics.Operation.truncate, start, truncated);
+        }
+    }
+
+    /**
+     * Sets the size of the file opened as fd, see truncate(String, long).
+     */
+    public boolean truncate(int fd, long size) throws IOException {
+        long start = System.nanoTime();
+        boolean truncated = false;
+
+        namespaceLock.readLock().lock();
+        try {
+            int id = descriptors.getId(fd);
+            if (id == -1 || size < 0) return false;
+
+            ReadWriteLock lock = getInodeLock(id);
+            lock.writeLock().lock();
+            try {
+                return truncated = truncateFile(id, size);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
+            metrics.record(Metrics.Operation.truncate, start, truncated);
+        }
+    }
+
+    private boolean truncateFile(int id, long size) throws IOException {
+        long inode = getInodePointer(id);
+        BlockMap map = getBlockMap(id);
+        long prevSize = getFileSize(id);
+        long prevBlocks = blocksCount(prevSize);
+        long blocks = blocksCount(size);
+
+        if (blocks > map.getMaxBlocks()) {
+            System.out.println("File is too big");
+            return false;
+        }
+        if (!checkWritable(id)) return false;
+        if (isCompressed(id)) {
+            // the last cluster kept changes length, or has its tail zeroed
+            long last = -1;
+            if (size > prevSize && prevBlocks > 0 && (prevSize % blockSize != 0 || prevBlocks % clusterBlocks != 0))
+                last = prevBlocks - 1;
+            else if (blocks < prevBlocks && blocks % clusterBlocks != 0)
+                last = blocks - 1;
+            if (last != -1 && !loadCluster(id, last / clusterBlocks)) return false;
+        } else if (size > prevSize && prevSize % blockSize != 0 && !unshare(id, prevSize, 1)) {
+            // zeroing the tail writes the last block
+            return false;
+        }
+        if (blocks > prevBlocks && !reserve(id, blocks - prevBlocks, blocks))
+            return false;
+
+        beginOperation();
+        try {
+            if (size < prevSize) {
+                map.truncate(inode, blocks, prevBlocks);
+                delayed.remove(id, blocks, prevBlocks);
+
+                // reservations are not told apart, at most one per removed block goes
+                long reserved = delayed.getReserved(id);
+                long kept = Math.max(delayed.getBlocks(id).size(), reserved - (prevBlocks - blocks));
+                allocator.unreserve(reserved - kept);
+                delayed.addReserved(id, kept - reserved);
+                trimIndexReserved(id, blocks);
+                delayed.release(id);
+                clusters.removeFile(id);
+            } else if (size > prevSize && prevSize % blockSize != 0) {
+                // the tail of the last block may hold data from before a shrink
+                long last = map.get(inode, prevBlocks - 1);
+                int tail = (int) (prevSize % blockSize);
+                ByteBuffer block = delayed.get(id, prevBlocks - 1);
+
+                if (last != 0) fillZeros(cache, getBlockPointer(last) + tail, blockSize - tail);
+                else if (block != null) Arrays.fill(block.array(), tail, blockSize, (byte) 0);
+            }
+
+            setFileSize(id, size);
+        } finally {
+            endOperation();
+        }
+
+        return true;
+    }
+
+    /**
+     * Reserves count more blocks for inode id, of fileBlocks blocks with
+     * them, and the map blocks mapping them may add.
      */
-    private final int BLOCK_SIZE = 512;
-    private final int DISK_CAPACITY_MAX_LENGTH = 8;
-    private final int FILE_NAME_MAX_LENGTH = 8;
-    private final int FILES_MAX_COUNT = 9;
+    private boolean reserve(int id, long count, long fileBlocks) throws IOException {
+        long index = getIndexBlocks(id, count, fileBlocks);
+        if (!allocator.reserve(count + index)) {
+            // blocks freed since the last checkpoint may be all that is missing
+            if (journal == null || allocator.getHeldCount() == 0) return false;
+            journal.checkpoint();
+            if (!allocator.reserve(count + index)) return false;
+        }
 
-    private RandomAccessFile io;
-    private long deviceCapacity = -1; // blocks count
-    private boolean mounted = false;
-    private boolean[] fileIndexes = new boolean[FILES_MAX_COUNT];
+        delayed.addReserved(id, count);
+        delayed.addIndexReserved(id, index);
+        return true;
+    }
+
+    /**
+     * @return map blocks mapping count blocks of inode id, of fileBlocks
+     * blocks with them, may add
+     */
+    private long getIndexBlocks(int id, long count, long fileBlocks) throws IOException {
+        BlockMap map = getBlockMap(id);
+        return map.getIndexBlocksCount(fileBlocks) - map.getIndexBlocksCount(Math.max(0, fileBlocks - count));
+    }
+
+    /**
+     * Unreserves the map blocks of inode id, of fileBlocks blocks, beyond
+     * those its reserved blocks left may need.
+     */
+    private void trimIndexReserved(int id, long fileBlocks) throws IOException {
+        long extra = delayed.getIndexReserved(id) - getIndexBlocks(id, delayed.getReserved(id), fileBlocks);
+        if (extra <= 0) return;
+
+        allocator.unreserve(extra);
+        delayed.addIndexReserved(id, -extra);
+    }
+
+    /**
+     * Makes sure inode id has a reserved block for each of the holes a write
+     * of [offset, offset + length) turns into delayed blocks.
+     */
+    private boolean reserveHoles(int id, long offset, long length) throws IOException {
+        long inode = getInodePointer(id);
+        BlockMap map = getBlockMap(id);
+        long end = blocksCount(offset + length);
+        long holes = 0;
+
+        for (long j = offset / blockSize; j < end; ) {
+            long run = map.getRunLength(inode, j, end - j);
+            if (map.get(inode, j) == 0) {
+                for (long k = j; k < j + run; k++) {
+                    if (delayed.get(id, k) == null) holes++;
+                }
+            }
+            j += run;
+        }
+
+        if (holes == 0) return true;
+
+        long unused = delayed.getReserved(id) - delayed.getBlocks(id).size();
+        return holes <= unused || reserve(id, holes - unused, Math.max(end, blocksCount(getFileSize(id))));
+    }
+
+    /**
+     * Makes [offset, offset + length) of inode id writable in place: shared
+     * blocks are copied, compressed clusters decompressed.
+     */
+    private boolean prepareWrite(int id, long offset, long length) throws IOException {
+        return isCompressed(id) ? loadClusters(id, offset, length) : unshare(id, offset, length);
+    }
+
+    /**
+     * Moves the shared blocks a write of [offset, offset + length) touches
+     * to blocks of inode id's own, copying the parts the write leaves. The
+     * other files keep the old blocks. The caller holds the file's write lock.
+     */
+    private boolean unshare(int id, long offset, long length) throws IOException {
+        if (refs == null) return true;
+
+        long inode = getInodePointer(id);
+        BlockMap map = getBlockMap(id);
+        long end = blocksCount(offset + length);
+
+        for (long j = offset / blockSize; j < end; ) {
+            long run = map.getRunLength(inode, j, end - j);
+            long block = map.get(inode, j);
+            if (block != 0 && refs.isShared(block, run)) {
+                for (long k = 0; k < run; ) {
+                    // runs of shared blocks within the extent
+                    long shared = 0;
+                    while (k + shared < run && refs.get(block + k + shared) != 0)
+                        shared++;
+                    if (shared == 0) {
+                        k++;
+                        continue;
+                    }
+
+                    if (!copyBlocks(id, j + k, block + k, shared, offset, offset + length)) return false;
+                    k += shared;
+                }
+            }
+            j += run;
+        }
+        return true;
+    }
+
+    /**
+     * Maps file blocks [i, i + count) of inode id, now at device block
+     * block, to new blocks, copying the ones [from, to) does not cover.
+     */
+    private boolean copyBlocks(int id, long i, long block, long count, long from, long to) throws IOException {
+        long inode = getInodePointer(id);
+        BlockMap map = getBlockMap(id);
+        ByteBuffer content = ByteBuffer.allocate(blockSize);
+
+        beginOperation();
+        try {
+            while (count > 0) {
+                Extent extent = allocator.allocate((int) Math.min(count, Integer.MAX_VALUE), block + count);
+                if (extent == null) return false;
+
+                for (int k = 0; k < extent.getLength(); k++) {
+                    long position = (i + k) * blockSize;
+                    if (position >= from && position + blockSize <= to) continue;
+
+                    content.clear();
+                    cache.copyBlock(block + k, content);
+                    content.flip();
+                    cache.write(getBlockPointer(extent.getStart() + k), content);
+                }
+                order(extent);
+
+                map.unmap(inode, i, i + extent.getLength());
+                map.map(inode, i, extent.getStart(), extent.getLength(), 0);
+
+                i += extent.getLength();
+                block += extent.getLength();
+                count -= extent.getLength();
+            }
+            return true;
+        } finally {
+            endOperation();
+        }
+    }
+
+    /**
+     * Loads the clusters of compressed inode id that [offset, offset + length)
+     * touches, see loadCluster.
+     */
+    private boolean loadClusters(int id, long offset, long length) throws IOException {
+        long clusterBytes = (long) clusterBlocks * blockSize;
+        for (long c = offset / clusterBytes; c * clusterBytes < offset + length; c++) {
+            if (!loadCluster(id, c)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decompresses cluster c of inode id into delayed blocks, reserved for
+     * it, and frees its blocks. It is compressed again when flushed.
+     */
+    private boolean loadCluster(int id, long c) throws IOException {
+        long inode = getInodePointer(id);
+        BlockMap map = getBlockMap(id);
+        long first = c * clusterBlocks;
+        long fileBlocks = blocksCount(getFileSize(id));
+        int n = getClusterBlocks(c, fileBlocks);
+        int k = getStoredBlocks(inode, map, first, n);
+        // a hole, or loaded already
+        if (k == 0) return true;
+
+        long unused = delayed.getReserved(id) - delayed.getBlocks(id).size();
+        if (n > unused && !reserve(id, n - unused, fileBlocks)) return false;
+
+        byte[] content = readCluster(id, c, n, k);
+        for (int i = 0; i < n; i++) {
+            ByteBuffer block = delayed.getOrCreate(id, first + i);
+            block.clear();
+            block.put(content, i * blockSize, blockSize);
+        }
+        clusters.remove(id, c);
+
+        beginOperation();
+        try {
+            map.unmap(inode, first, first + n);
+        } finally {
+            endOperation();
+        }
+        return true;
+    }
+
+    /**
+     * @return blocks of cluster c of a file of fileBlocks blocks
+     */
+    private int getClusterBlocks(long c, long fileBlocks) {
+        return (int) Math.min(clusterBlocks, fileBlocks - c * clusterBlocks);
+    }
+
+    /**
+     * @return mapped blocks among the n file blocks from first on
+     */
+    private int getStoredBlocks(long inode, BlockMap map, long first, int n) throws IOException {
+        int stored = 0;
+        for (long j = first; j < first + n; ) {
+            long run = map.getRunLength(inode, j, first + n - j);
+            if (map.get(inode, j) != 0) stored += run;
+            j += run;
+        }
+        return stored;
+    }
+
+    /**
+     * Copies buffer into the delayed blocks of inode id from offset on, or
+     * with write false the other way, blocks that have none reading as zeros.
+     */
+    private void transferDelayed(int id, long offset, ByteBuffer buffer, boolean write) {
+        int limit = buffer.limit();
+
+        while (buffer.hasRemaining()) {
+            long j = offset / blockSize;
+            int inBlock = (int) (offset % blockSize);
+            int length = Math.min(buffer.remaining(), blockSize - inBlock);
+            ByteBuffer block = write ? delayed.getOrCreate(id, j) : delayed.get(id, j);
+
+            buffer.limit(buffer.position() + length);
+            if (block == null) {
+                putZeros(buffer);
+            } else if (write) {
+                block.clear().position(inBlock);
+                block.put(buffer);
+            } else {
+                ByteBuffer part = block.duplicate();
+                part.limit(inBlock + length).position(inBlock);
+                buffer.put(part);
+            }
+            buffer.limit(limit);
+
+            offset += length;
+        }
+    }
+
+    /**
+     * Flushes inode id once it has FLUSH_BLOCKS delayed blocks, and every
+     * file once all of them have MAX_DELAYED_BLOCKS. The caller holds the
+     * write lock of id; files locked by other calls are left to them.
+     */
+    private void flushIfFull(int id) throws IOException {
+        if (delayed.getBlocks(id).size() >= FLUSH_BLOCKS)
+            flushDelayed(id);
+        if (delayed.getCount() < MAX_DELAYED_BLOCKS) return;
+
+        flushDelayed(id);
+        for (Integer other : delayed.getFiles()) {
+            if (other == id) continue;
+
+            // the caller may hold other stripes: waiting for one could deadlock
+            ReadWriteLock lock = getInodeLock(other);
+            if (!lock.writeLock().tryLock()) continue;
+            try {
+                flushDelayed(other);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Allocates blocks for the delayed blocks of inode id, out of its
+     * reservation, a run of consecutive file blocks at a time, and writes
+     * them there. The caller holds the file's write lock. Map blocks come out
+     * of its map blocks reservation first. A run that can not be mapped goes
+     * back to the reservation and stays delayed.
+     */
+    private void flushDelayed(int id) throws IOException {
+        SortedMap<Long, ByteBuffer> blocks = delayed.getBlocks(id);
+        if (blocks.isEmpty()) return;
+        if (isCompressed(id)) {
+            flushClusters(id);
+            return;
+        }
+
+        long inode = getInodePointer(id);
+        BlockMap map = getBlockMap(id);
+        long goal = -1;
+
+        beginOperation();
+        try {
+            while (!blocks.isEmpty()) {
+                long first = blocks.firstKey();
+                int count = 1;
+                while (blocks.containsKey(first + count))
+                    count++;
+
+                long previous = first > 0 ? map.get(inode, first - 1) : 0;
+                Extent extent = allocator.allocateReserved(count, previous != 0 ? previous + 1 : goal);
+                if (extent == null) throw new IOException("No free blocks");
+
+                mapReserved(id, inode, map, first, extent);
+
+                ByteBuffer[] buffers = new ByteBuffer[extent.getLength()];
+                for (int k = 0; k < buffers.length; k++) {
+                    buffers[k] = blocks.get(first + k);
+                    buffers[k].clear();
+                }
+                cache.write(getBlockPointer(extent.getStart()), buffers);
+                order(extent);
+
+                delayed.remove(id, first, first + extent.getLength());
+                delayed.addReserved(id, -extent.getLength());
+                goal = extent.getEnd();
+            }
+        } finally {
+            endOperation();
+        }
+        trimIndexReserved(id, blocksCount(getFileSize(id)));
+        delayed.release(id);
+    }
+
+    /**
+     * Maps file blocks of inode id from first on to extent, allocated out of
+     * its reservation, taking map blocks out of its map blocks reservation.
+     * If that fails, extent goes back to the reservation.
+     */
+    private void mapReserved(int id, long inode, BlockMap map, long first, Extent extent) throws IOException {
+        long taken;
+        try {
+            taken = map.map(inode, first, extent.getStart(), extent.getLength(), delayed.getIndexReserved(id));
+        } catch (IOException e) {
+            allocator.unallocateReserved(extent);
+            throw e;
+        }
+        delayed.addIndexReserved(id, -taken);
+    }
+
+    /**
+     * flushDelayed of a compressed file: each cluster with delayed blocks is
+     * made whole with zero blocks, compressed and written to blocks out of
+     * its reservation. The blocks compression saves are unreserved. The
+     * decompressed cluster stays in the cluster cache.
+     */
+    private void flushClusters(int id) throws IOException {
+        SortedMap<Long, ByteBuffer> blocks = delayed.getBlocks(id);
+        long inode = getInodePointer(id);
+        BlockMap map = getBlockMap(id);
+        long fileBlocks = blocksCount(getFileSize(id));
+        Lz4Codec codec = new Lz4Codec();
+        byte[] content = new byte[clusterBlocks * blockSize];
+        byte[] stored = new byte[CLUSTER_HEADER + Lz4Codec.maxCompressedLength(content.length)];
+        long goal = -1;
+
+        while (!blocks.isEmpty()) {
+            long c = blocks.firstKey() / clusterBlocks;
+            long first = c * clusterBlocks;
+            int n = getClusterBlocks(c, fileBlocks);
+
+            int missing = n - blocks.subMap(first, first + n).size();
+            long unused = delayed.getReserved(id) - blocks.size();
+            if (missing > unused && !reserve(id, missing - unused, fileBlocks)) throw new IOException("No free blocks");
+            for (int i = 0; i < n; i++)
+                System.arraycopy(delayed.getOrCreate(id, first + i).array(), 0, content, i * blockSize, blockSize);
+
+            int length = codec.compress(content, n * blockSize, stored, CLUSTER_HEADER);
+            int k = (CLUSTER_HEADER + length + blockSize - 1) / blockSize;
+            byte[] data = stored;
+            if (k < n) {
+                ByteBuffer.wrap(stored).order(ByteOrder.LITTLE_ENDIAN).putInt(0, length);
+            } else {
+                // stored as is
+                k = n;
+                data = content;
+            }
+
+            beginOperation();
+            try {
+                for (int i = 0; i < k; ) {
+                    Extent extent = allocator.allocateReserved(k - i, goal);
+                    try {
+                        if (extent == null) throw new IOException("No free blocks");
+                        mapReserved(id, inode, map, first + i, extent);
+                    } catch (IOException e) {
+                        // the cluster stays delayed, holes again
+                        map.unmap(inode, first, first + i);
+                        if (allocator.reserve(i)) delayed.addReserved(id, i);
+                        throw e;
+                    }
+                    cache.write(getBlockPointer(extent.getStart()),
+                            ByteBuffer.wrap(data, i * blockSize, extent.getLength() * blockSize));
+                    order(extent);
+                    delayed.addReserved(id, -extent.getLength());
+                    i += extent.getLength();
+                    goal = extent.getEnd();
+                }
+
+                delayed.remove(id, first, first + n);
+                allocator.unreserve(n - k);
+                delayed.addReserved(id, k - n);
+            } finally {
+                endOperation();
+            }
+
+            if (k < n) clusters.put(id, c, Arrays.copyOf(content, n * blockSize));
+        }
+        trimIndexReserved(id, fileBlocks);
+        delayed.release(id);
+    }
+
+    /**
+     * Flushes the delayed blocks of every file. The caller holds the namespace lock.
+     */
+    private void flushAllDelayed() throws IOException {
+        for (Integer id : delayed.getFiles()) {
+            ReadWriteLock lock = getInodeLock(id);
+            lock.writeLock().lock();
+            try {
+                flushDelayed(id);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Allocates the blocks of a directory growing to size right away, or
+     * frees them when it shrinks.
+     */
+    private boolean resize(int id, long size) throws IOException {
+        long inode = getInodePointer(id);
+        BlockMap map = getBlockMap(id);
+        long prevSize = getFileSize(id);
+        long prevBlocks = blocksCount(prevSize);
+        long blocks = blocksCount(size);
+
+        if (prevSize < size) {
+            long last = prevBlocks > 0 ? map.get(inode, prevBlocks - 1) : 0;
+
+            // the tail of the last block may hold data from before a shrink
+            if (prevSize % blockSize != 0)
+                fillZeros(cache, getBlockPointer(last) + prevSize % blockSize, blockSize - prevSize % blockSize);
+
+            long goal = last != 0 ? last + 1 : -1;
+            for (long i = prevBlocks; i < blocks; ) {
+                Extent extent = allocator.allocate((int) Math.min(blocks - i, Integer.MAX_VALUE), goal);
+                if (extent == null) {
+                    // taken by a concurrent call since the check
+                    map.truncate(inode, prevBlocks, i);
+                    return false;
+                }
+                fillZeros(cache, getBlockPointer(extent.getStart()), (long) extent.getLength() * blockSize);
+                order(extent);
+
+                map.map(inode, i, extent.getStart(), extent.getLength(), 0);
+                i += extent.getLength();
+                goal = extent.getEnd();
+            }
+        } else {
+            map.truncate(inode, blocks, prevBlocks);
+        }
+
+        setFileSize(id, size);
+
+        return true;
+    }
+
+    /**
+     * Writes the delayed blocks and the cached data, then commits every
+     * change made so far to the journal and waits for it.
+     */
+    public void sync() throws IOException {
+        namespaceLock.readLock().lock();
+        try {
+            if (delayed != null) flushAllDelayed();
+            if (journal != null) {
+                // data overwritten in place is not ordered by the journal
+                cache.force();
+                journal.sync();
+            } else if (device != null) {
+                device.force();
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks the image: directory entries against inodes and their link
+     * counts, block maps against the bitmask and the reference counts.
+     * The scans run on the common ForkJoinPool, every other call waits.
+     *
+     * @param repair fix what was found, except directories in several
+     *               entries, bad pointers and blocks owned several times
+     *               without reference counts
+     * @return what was found, or null if no disk is mounted
+     */
+    public FsckReport fsck(boolean repair) throws IOException {
+        long start = System.nanoTime();
+        FsckReport report = null;
+
+        namespaceLock.writeLock().lock();
+        try {
+            if (!isMounted()) return null;
+            if (deviceCapacity > Integer.MAX_VALUE) {
+                System.out.println("Disk is too big to check");
+                return null;
+            }
+
+            // delayed and held blocks in the bitmask as they will be
+            flushAllDelayed();
+            if (journal != null) journal.checkpoint();
+
+            Checker checker = new Checker();
+            try {
+                checker.scan();
+                if (repair && !checker.report.isClean()) checker.repair();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return report = checker.report;
+        } finally {
+            namespaceLock.writeLock().unlock();
+            metrics.record(Metrics.Operation.fsck, start, report != null);
+        }
+    }
+
+    /**
+     * Starts a pass moving the blocks of fragmented files into contiguous
+     * runs in the background, see defragment.
+     *
+     * @param bytesPerSecond most bytes the pass copies a second, 0 for no limit
+     * @return false if no disk is mounted or a pass is running already
+     */
+    public boolean startDefragmentation(long bytesPerSecond) {
+        namespaceLock.writeLock().lock();
+        try {
+            if (!isMounted() || defrag != null && defrag.isRunning()) return false;
+
+            final int mount = mounts;
+            final DefragProgress progress = new DefragProgress(filesMaxCount, bytesPerSecond);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        defragment(mount, progress);
+                    } catch (IOException e) {
+                        System.out.println("Defragmentation failed");
+                    } catch (InterruptedException e) {
+                        progress.stop();
+                    } finally {
+                        progress.finish();
+                    }
+                }
+            }, "defrag");
+            thread.setDaemon(true);
+            defrag = progress;
+            thread.start();
+            return true;
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Counts the fragments of the regular file at path, see measure. It
+     * walks the whole map, so only on request.
+     *
+     * @return fragments, or -1 if there is no such file
+     */
+    public long getFragments(String path) throws IOException {
+        namespaceLock.readLock().lock();
+        try {
+            if (!isMounted()) return -1;
+
+            int id = getFileId(path);
+            if (id == -1) return -1;
+
+            ReadWriteLock lock = getInodeLock(id);
+            lock.readLock().lock();
+            try {
+                return measure(new DefragFile(id)).fragments;
+            } finally {
+                lock.readLock().unlock();
+            }
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Makes the running defragmentation pass end after its current step.
+     */
+    public void stopDefragmentation() {
+        DefragProgress progress = defrag;
+        if (progress != null) progress.stop();
+    }
+
+    /**
+     * @return progress of the running or the last defragmentation pass, or null
+     */
+    public DefragProgress getDefragProgress() {
+        return defrag;
+    }
+
+    /**
+     * Body of a defragmentation pass over every inode of mount. A fragmented
+     * regular file is moved, DEFRAG_STEP_BLOCKS file blocks a step, to the
+     * free run following its first fragment if that has room for the rest,
+     * else to the first free run with room for all of it: files become
+     * contiguous and packed towards the start of the image.
+     *
+     * Each step holds the file's inode lock, so transfers through its
+     * descriptors wait for one step at most and then see the new map.
+     * Files being written (with delayed blocks), shared or read-only ones are
+     * left alone. The pass sleeps between steps to copy at most the bytes a
+     * second of progress.
+     */
+    private void defragment(int mount, DefragProgress progress) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long copied = 0;
+
+        for (int id = 1; id <= progress.getInodeCount(); id++) {
+            DefragFile file = new DefragFile(id);
+            while (!file.done) {
+                namespaceLock.readLock().lock();
+                try {
+                    if (!mounted || mounts != mount || progress.isStopped()) return;
+
+                    ReadWriteLock lock = getInodeLock(id);
+                    lock.writeLock().lock();
+                    try {
+                        copied += defragmentStep(file, progress);
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                } finally {
+                    namespaceLock.readLock().unlock();
+                }
+
+                if (progress.getBytesPerSecond() > 0) {
+                    long due = start + (long) (copied * 1e9 / progress.getBytesPerSecond());
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+            progress.setScannedInodes(id);
+        }
+    }
+
+    /**
+     * Moves the next DEFRAG_STEP_BLOCKS file blocks of file, deciding where
+     * to on the first step.
+     *
+     * @return bytes copied
+     */
+    private long defragmentStep(DefragFile file, DefragProgress progress) throws IOException {
+        int id = file.id;
+        if (!file.started) {
+            file.started = true;
+            if (!isIdUsed(id) || isDirectory(id) || isReadOnly(id) || measure(file).fragments <= 1) {
+                file.done = true;
+                return 0;
+            }
+
+            long goal = -1;
+            if (!file.shared && delayed.getBlocks(id).isEmpty()) {
+                if (allocator.findFreeRun(file.mapped - file.headBlocks, file.head) == file.head)
+                    goal = file.first;
+                else
+                    goal = allocator.findFreeRun(file.mapped, superblock.getFirstDataBlock());
+            }
+            if (goal == -1) {
+                progress.addSkipped();
+                file.done = true;
+                return 0;
+            }
+            file.goal = goal;
+            progress.addFragmented(file.fragments);
+        }
+
+        long inode = getInodePointer(id);
+        BlockMap map = getBlockMap(id);
+        long blocks = blocksCount(getFileSize(id));
+        long end = Math.min(blocks, file.next + DEFRAG_STEP_BLOCKS);
+        long copied = 0;
+
+        for (long i = file.next; i < end; ) {
+            long run = map.getRunLength(inode, i, end - i);
+            long block = map.get(inode, i);
+
+            if (block == file.goal) {
+                file.goal += run;
+            } else if (block != 0) {
+                // cloned since, or the device is full
+                if (refs != null && refs.isShared(block, run)
+                        || (file.goal = moveBlocks(id, i, block, (int) run, file.goal)) == -1) {
+                    progress.addSkipped();
+                    file.done = true;
+                    return copied;
+                }
+                copied += run * blockSize;
+                progress.addMovedBlocks(run);
+            }
+            i += run;
+        }
+        file.next = end;
+
+        if (end >= blocks) {
+            progress.addDefragmented(measure(new DefragFile(id)).fragments);
+            file.done = true;
+        }
+        return copied;
+    }
+
+    /**
+     * Moves file blocks [i, i + count) of inode id, now at device block
+     * block, to new blocks at goal or after. The copies are ordered before
+     * the transaction changing the map: a crash must not leave it pointing
+     * to blocks the data never reached.
+     *
+     * @return device block following the new ones, or -1 if the device is full
+     */
+    private long moveBlocks(int id, long i, long block, int count, long goal) throws IOException {
+        long inode = getInodePointer(id);
+        BlockMap map = getBlockMap(id);
+
+        beginOperation();
+        try {
+            while (count > 0) {
+                Extent extent = allocator.allocate(count, goal);
+                if (extent == null) return -1;
+
+                ByteBuffer content = ByteBuffer.allocate(extent.getLength() * blockSize);
+                cache.read(getBlockPointer(block), content);
+                content.flip();
+                cache.write(getBlockPointer(extent.getStart()), content);
+                order(extent);
+
+                map.unmap(inode, i, i + extent.getLength());
+                map.map(inode, i, extent.getStart(), extent.getLength(), 0);
+
+                i += extent.getLength();
+                block += extent.getLength();
+                count -= extent.getLength();
+                goal = extent.getEnd();
+            }
+            return goal;
+        } finally {
+            endOperation();
+        }
+    }
+
+    /**
+     * Counts the fragments of file: runs of consecutive device blocks its
+     * mapped blocks are in, holes left out.
+     */
+    private DefragFile measure(DefragFile file) throws IOException {
+        long inode = getInodePointer(file.id);
+        BlockMap map = getBlockMap(file.id);
+        long blocks = blocksCount(getFileSize(file.id));
+        long next = 0;
+
+        for (long i = 0; i < blocks; ) {
+            long run = map.getRunLength(inode, i, blocks - i);
+            long block = map.get(inode, i);
+            if (block != 0) {
+                if (block != next) file.fragments++;
+                if (file.fragments == 1) {
+                    if (file.headBlocks == 0) file.first = block;
+                    file.headBlocks += run;
+                    file.head = block + run;
+                }
+                file.mapped += run;
+                if (refs != null && refs.isShared(block, run)) file.shared = true;
+                next = block + run;
+            }
+            i += run;
+        }
+        return file;
+    }
+
+    private void beginOperation() throws IOException {
+        if (journal != null) journal.begin();
+    }
+
+    private void endOperation() {
+        if (journal != null) journal.end();
+    }
+
+    /**
+     * @return inode id of the regular file at path, or -1
+     */
+    private int getFileId(String path) throws IOException {
+        int id = resolve(path);
+        return id == -1 || id == ROOT || isDirectory(id) ? -1 : id;
+    }
+
+    /**
+     * @return inode id of path, ROOT for the root directory, or -1 if it does not exist
+     */
+    private int resolve(String path) throws IOException {
+        int id = ROOT;
 
-    // pointers
-    private long bitmaskPointer;
-    private long descriptorsPointer;
-    private long firstIndodePointer;
-    private long firstBlockPointer;
+        for (String name : path.split("/")) {
+            if (name.isEmpty()) continue;
+            if (id != ROOT && !isDirectory(id)) return -1;
 
-    // opened files
-    Map<Integer, Integer> openedFiles = new HashMap<Integer, Integer>();
-    int fdCounter = 0;
+            id = lookup(id, name);
+            if (id == -1) return -1;
+        }
 
-    public boolean mount(String path) {
-        if (mounted) unmount();
+        return id;
+    }
 
-        try {
-            io = new RandomAccessFile(path, "rw");
+    /**
+     * @return directory holding the last name of path, or -1 if there is none
+     */
+    private int resolveParent(String path) throws IOException {
+        int slash = path.lastIndexOf('/');
+        if (slash == -1) return ROOT;
 
-            deviceCapacity = getCapacity();
+        int dir = resolve(path.substring(0, slash));
+        return dir == ROOT || dir != -1 && isDirectory(dir) ? dir : -1;
+    }
 
-            bitmaskPointer = (DISK_CAPACITY_MAX_LENGTH + 1) * 2;
-            descriptorsPointer = bitmaskPointer + (deviceCapacity - 1) * 2;
-            firstIndodePointer = (((descriptorsPointer + (1 + FILE_NAME_MAX_LENGTH) * 2)) / BLOCK_SIZE + 1) * BLOCK_SIZE ;
-            firstBlockPointer = firstIndodePointer + FILES_MAX_COUNT * BLOCK_SIZE * 2;
-            updateFileIndexes();
+    private String getBaseName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
 
-            mounted = true;
-            return true;
-        } catch (FileNotFoundException e) {
+    private boolean checkName(String name) {
+        if (name.isEmpty()) {
+            System.out.println("Wrong file name");
             return false;
-        } catch (IOException e) {
+        }
+
+        if (name.getBytes(NAME_CHARSET).length > fileNameMaxLength) {
+            System.out.println("File name is too long");
             return false;
         }
+
+        return true;
     }
 
-    public void unmount() {
-        mounted = false;
-        deviceCapacity = -1;
-        io = null;
+    /**
+     * @return inode id of name in directory dir, or -1
+     */
+    private int lookup(int dir, String name) throws IOException {
+        if (dir == ROOT) {
+            int index = getFileIndex(name);
+            return index == -1 ? -1 : getDescriptorInode(index);
+        }
+
+        Integer cached = dentries.get(dir, name);
+        if (cached != null) return cached;
+
+        int id = directories.find(getInodePointer(dir), getBucketCount(dir), name.getBytes(NAME_CHARSET));
+        if (id == 0) return -1;
+
+        dentries.put(dir, name, id);
+        return id;
     }
 
-    private int getCapacity() throws IOException {
-        StringBuilder num = new StringBuilder();
-        io.seek(0);
+    /**
+     * Adds name to directory dir, doubling its buckets while the one of name is full.
+     */
+    private boolean addEntry(int dir, String name, int id) throws IOException {
+        if (dir == ROOT) {
+            int index = findFreeFileIndex();
+            if (index == -1) return false;
 
-        for (long i = 0; i < DISK_CAPACITY_MAX_LENGTH; i++) {
-            num.append(io.readChar());
+            setDescriptor(index, id, name);
+            return true;
         }
 
-        return Integer.parseInt(num.toString());
-    }
+        byte[] bytes = name.getBytes(NAME_CHARSET);
+        long inode = getInodePointer(dir);
+        long buckets = getBucketCount(dir);
 
-    private int findFreeBlock() throws IOException {
-        io.seek(bitmaskPointer);
+        while (!directories.insert(inode, buckets, bytes, id)) {
+            long size = 2 * buckets * blockSize;
+            if (blocksCount(size) > extentMap.getMaxBlocks() || !resize(dir, size)) {
+                System.out.println("Directory is full");
+                return false;
+            }
 
-        for (int i = 0; i < deviceCapacity; i++) {
-            char c = io.readChar();
-            if (c == '0')
-                return i;
+            directories.split(inode, buckets);
+            buckets *= 2;
         }
+        dentries.put(dir, name, id);
 
-        return -1;
+        return true;
     }
 
-    private int freeBlockCount() throws IOException {
-        io.seek(bitmaskPointer);
-        int count = 0;
-
-        for (int i = 0; i < deviceCapacity; i++) {
-            if (io.readChar() == '0')
-                count++;
+    private void removeEntry(int dir, String name) throws IOException {
+        if (dir == ROOT) {
+            clearDescriptor(getFileIndex(name));
+            return;
         }
 
-        return count;
+        dentries.remove(dir, name);
+        directories.remove(getInodePointer(dir), getBucketCount(dir), name.getBytes(NAME_CHARSET));
     }
 
-    public String ls() throws IOException {
-        if (!isMounted()) return "Disk not mounted";
+    private long getBucketCount(int dir) throws IOException {
+        return getFileSize(dir) / blockSize;
+    }
 
-        StringBuilder res = new StringBuilder();
-        io.seek(descriptorsPointer);
+    /**
+     * Indexes descriptor pages until name is found or all of them are.
+     */
+    private int getFileIndex(String name) throws IOException {
+        Integer index;
+        if (indexedDescriptors == filesMaxCount) {
+            index = nameIndex.get(name);
+            return index == null ? -1 : index;
+        }
 
-        for (int i = 0; i < FILES_MAX_COUNT; i++) {
-            char num = io.readChar();
-            if (num == '0') {
-                io.seek(io.getFilePointer() + FILE_NAME_MAX_LENGTH * 2);
-                continue;
-            }
+        synchronized (indexLock) {
+            while ((index = nameIndex.get(name)) == null && indexedDescriptors < filesMaxCount)
+                indexDescriptorPage();
+        }
+        return index == null ? -1 : index;
+    }
 
-            res.append(num + " : ");
+    private long getDescriptorPointer(int index) {
+        return descriptorsPointer + (long) descriptorSize * index;
+    }
 
-            boolean nameFound = false;
-            for (int k = 0; k < FILE_NAME_MAX_LENGTH; k++) {
-                char c = io.readChar();
-                if (c == '0' && !nameFound) continue;
-                else nameFound = true;
+    private int getDescriptorInode(int index) throws IOException {
+        return device.getInt(getDescriptorPointer(index) + DESCRIPTOR_INODE);
+    }
 
-                res.append(c);
-            }
-            res.append('\n');
-        }
+    private String getDescriptorName(int index) throws IOException {
+        long pointer = getDescriptorPointer(index);
+        byte[] bytes = new byte[device.getShort(pointer + DESCRIPTOR_NAME_LENGTH)];
 
-        return res.toString();
+        device.read(pointer + DESCRIPTOR_NAME, ByteBuffer.wrap(bytes));
+
+        return new String(bytes, NAME_CHARSET);
     }
 
-    public String filestat(String id_arg) throws IOException {
-        if (!isMounted()) return "Disk not mounted";
+    private void setDescriptor(int index, int id, String name) throws IOException {
+        long pointer = getDescriptorPointer(index);
+        byte[] bytes = name.getBytes(NAME_CHARSET);
 
-        int id = Integer.parseInt(id_arg);
+        device.putInt(pointer + DESCRIPTOR_INODE, id);
+        device.putShort(pointer + DESCRIPTOR_NAME_LENGTH, (short) bytes.length);
+        device.write(pointer + DESCRIPTOR_NAME, ByteBuffer.wrap(bytes));
+        fileIndexes.set(index);
+        nameIndex.put(name, index);
+    }
 
-        if (!isIdUsed(id)) return "Cant find file with id : " + id;
+    private void clearDescriptor(int index) throws IOException {
+        nameIndex.remove(getDescriptorName(index));
+        fillZeros(device, getDescriptorPointer(index), descriptorSize);
+        fileIndexes.clear(index);
+    }
 
-        StringBuilder res = new StringBuilder();
+    private int getFileLinksCount(int id) throws IOException {
+        return device.getShort(getInodePointer(id) + INODE_LINKS) & 0xFFFF;
+    }
 
-        res.append("ID : " + id);
-        res.append('\n');
-        res.append("Type : " + (isDirectory(id) ? "directory" : "file"));
-        res.append('\n');
-        res.append("Links count : " + getFileLinksCount(id));
-        res.append('\n');
-        res.append("Size : " + getFileSize(id) + "B");
-        res.append('\n');
+    private void setFileLinksCount(int id, int count) throws IOException {
+        device.putShort(getInodePointer(id) + INODE_LINKS, (short) count);
+    }
 
-        return res.toString();
+    private boolean isReadOnly(int id) throws IOException {
+        return id != ROOT && (device.getInt(getInodePointer(id) + INODE_FLAGS) & FLAG_READ_ONLY) != 0;
     }
 
-    public boolean create(String name) throws IOException {
-        if (isFileExist(name)) {
-            System.out.println("File already exist");
-            return false;
-        }
+    private boolean checkWritable(int id) throws IOException {
+        if (!isReadOnly(id)) return true;
 
-        if (name.length() > FILE_NAME_MAX_LENGTH) {
-            System.out.println("File name is too long");
-            return false;
-        }
+        System.out.println("Snapshots are read-only");
+        return false;
+    }
 
-        int id = findFreeFileIndex();
-        if (id == -1) return false;
+    private boolean isCompressed(int id) throws IOException {
+        return (device.getInt(getInodePointer(id) + INODE_FLAGS) & FLAG_COMPRESSED) != 0;
+    }
 
-        long pointer = descriptorsPointer + (FILE_NAME_MAX_LENGTH + 1) * 2 * (id - 1);
-        io.seek(pointer);
-        io.writeChar(id + '0');
-        pointer += 2 + (FILE_NAME_MAX_LENGTH - name.length()) * 2;
-        io.seek(pointer);
-        io.writeChars(name);
-        fileIndexes[id - 1] = true;
+    private boolean isDirectory(int id) throws IOException {
+        return device.getShort(getInodePointer(id) + INODE_TYPE) == TYPE_DIRECTORY;
+    }
 
-        setFileSize(id, 0);
-        setFileLinksCount(id, 1);
+    private long getFileSize(int id) throws IOException {
+        return device.getLong(getInodePointer(id) + INODE_FILE_SIZE);
+    }
 
-        return true;
+    private void setFileSize(int id, long size) throws IOException {
+        device.putLong(getInodePointer(id) + INODE_FILE_SIZE, size);
     }
 
-    public int open(String name) throws IOException {
-        int id = getFileId(name);
-        if (id == -1) return -1;
+    private BlockMap getBlockMap(int id) throws IOException {
+        return (device.getInt(getInodePointer(id) + INODE_FLAGS) & FLAG_EXTENTS) != 0 ? extentMap : indirectMap;
+    }
 
-        fdCounter++;
-        openedFiles.put(fdCounter, id);
+    private ReadWriteLock getInodeLock(int id) {
+        return inodeLocks[id & (LOCK_STRIPES - 1)];
+    }
 
-        return fdCounter;
+    private long getInodePointer(int id) {
+        return firstIndodePointer + (long) Superblock.INODE_SIZE * (id - 1);
     }
 
-    public boolean close(int fd) {
-        if (!openedFiles.containsKey(fd))
-            return false;
+    /**
+     * Frees the blocks of inode id and the inode itself.
+     */
+    private void releaseInode(int id) throws IOException {
+        getBlockMap(id).truncate(getInodePointer(id), 0, blocksCount(getFileSize(id)));
+        allocator.unreserve(delayed.removeFile(id));
+        clusters.removeFile(id);
+        clearInode(id);
+    }
 
-        openedFiles.remove(fd);
-        return true;
+    private void clearInode(int id) throws IOException {
+        fillZeros(device, getInodePointer(id), Superblock.INODE_SIZE);
+        usedInodes.clear(id);
     }
 
-    public boolean write(int fd, int offset, int size) throws IOException {
-        if (!openedFiles.containsKey(fd)) {
-            System.out.println("File was not opened");
-            return false;
+    private void indexDescriptors(int count) throws IOException {
+        if (indexedDescriptors >= count) return;
+
+        synchronized (indexLock) {
+            while (indexedDescriptors < count)
+                indexDescriptorPage();
         }
+    }
 
-        int id = openedFiles.get(fd);
+    private void indexInodes(int count) throws IOException {
+        if (indexedInodes >= count) return;
 
-        int fileSize = getFileSize(id);
-        if (offset + size > getFileSize(id)) {
-            System.out.println("File is too small to write this information");
-            return false;
+        synchronized (indexLock) {
+            while (indexedInodes < count)
+                indexInodePage();
+        }
+    }
+
+    // the caller holds indexLock
+    private void indexDescriptorPage() throws IOException {
+        int first = indexedDescriptors;
+        int count = Math.min(INDEX_PAGE, filesMaxCount - first);
+        ByteBuffer page = ByteBuffer.allocate(count * descriptorSize).order(ByteOrder.LITTLE_ENDIAN);
+        device.read(getDescriptorPointer(first), page);
+
+        for (int i = 0; i < count; i++) {
+            int offset = i * descriptorSize;
+            if (page.getInt(offset + DESCRIPTOR_INODE) == 0) continue;
+
+            byte[] name = new byte[page.getShort(offset + DESCRIPTOR_NAME_LENGTH)];
+            page.position(offset + DESCRIPTOR_NAME);
+            page.get(name);
+            fileIndexes.set(first + i);
+            nameIndex.put(new String(name, NAME_CHARSET), first + i);
         }
+        indexedDescriptors = first + count;
+    }
 
-        int fileBlocksCount = getFileSize(id) / BLOCK_SIZE + 1;
-        int startBlock = offset / BLOCK_SIZE;
-        int endBlcok = (offset + size) / BLOCK_SIZE;
+    // the caller holds indexLock
+    private void indexInodePage() throws IOException {
+        int first = indexedInodes;
+        int count = Math.min(INDEX_PAGE, filesMaxCount - first);
+        ByteBuffer page = ByteBuffer.allocate(count * Superblock.INODE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        device.read(getInodePointer(first + 1), page);
 
-        for (int j = startBlock; j <= endBlcok; j++) {
-            io.seek(getInodePointer(id) + 6 + j * 2); // read block id from file desc
-            int block = io.readChar();
-            int pointerInBlock = offset % BLOCK_SIZE;
-            for (int i = pointerInBlock; i < BLOCK_SIZE && size > 0; i++) {
-                io.seek(getBlockPointer(block) + i * 2);
-                io.writeChar('1');
-                offset++;
-                size--;
-            }
+        for (int i = 0; i < count; i++) {
+            if (page.getShort(i * Superblock.INODE_SIZE + INODE_TYPE) != TYPE_FREE)
+                usedInodes.set(first + i + 1);
         }
+        indexedInodes = first + count;
+    }
 
-        return true;
+    /**
+     * Indexes the rest of the image in the background, a page (or bitmask
+     * chunk) per namespace read lock, until done or unmounted.
+     */
+    private void startWarmUp(final int mount) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (warmUpPage(mount)) {
+                        Thread.yield();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Warm-up failed");
+                }
+            }
+        }, "mount-warm-up");
+        thread.setDaemon(true);
+        thread.start();
     }
 
-    public String read(int fd, int offset, int size) throws IOException {
-        if (!openedFiles.containsKey(fd)) {
-            return "File was not opened";
+    private static ThreadPoolExecutor createReadAheadLoader() {
+        ThreadPoolExecutor loader = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(READ_AHEAD_QUEUE), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "read-ahead");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable load, ThreadPoolExecutor executor) {
+                // dropped with its runs, the next window queues it again
+                ((ReadAheadLoad) load).state.endLoad();
+            }
+        });
+        loader.allowCoreThreadTimeOut(true);
+        return loader;
+    }
+
+    /**
+     * @return false when everything is loaded or mount is no longer mounted
+     */
+    private boolean warmUpPage(int mount) throws IOException {
+        namespaceLock.readLock().lock();
+        try {
+            if (!mounted || mounts != mount) return false;
+
+            synchronized (indexLock) {
+                if (indexedDescriptors < filesMaxCount) {
+                    indexDescriptorPage();
+                    return true;
+                }
+                if (indexedInodes < filesMaxCount) {
+                    indexInodePage();
+                    return true;
+                }
+            }
+            return allocator.loadNext();
+        } finally {
+            namespaceLock.readLock().unlock();
         }
+    }
 
-        int id = openedFiles.get(fd);
+    private boolean isIdUsed(int id) throws IOException {
+        if (id < 1 || id > filesMaxCount) return false;
 
-        int fileSize = getFileSize(id);
-        if (offset + size > getFileSize(id)) {
-            return "File have not this information";
+        if (indexedInodes == filesMaxCount) return usedInodes.get(id);
+
+        synchronized (indexLock) {
+            while (indexedInodes < id)
+                indexInodePage();
+            return usedInodes.get(id);
         }
+    }
 
+    private int findFreeFileIndex() throws IOException {
+        while (true) {
+            int index = fileIndexes.nextClearBit(0);
+            if (index < indexedDescriptors) return index;
+            if (indexedDescriptors == filesMaxCount) return -1;
 
-        StringBuilder res = new StringBuilder();
-        int startBlock = offset / BLOCK_SIZE;
-        int endBlcok = (offset + size) / BLOCK_SIZE;
+            indexDescriptors(indexedDescriptors + 1);
+        }
+    }
 
-        for (int j = startBlock; j <= endBlcok; j++) {
-            io.seek(getInodePointer(id) + 6 + j * 2); // read block id from file desc
-            int block = io.readChar();
-            int pointerInBlock = offset % BLOCK_SIZE;
-            for (int i = pointerInBlock; i < BLOCK_SIZE && size > 0; i++) {
-                io.seek(getBlockPointer(block) + i * 2);
-                res.append(io.readChar());
-                offset++;
-                size--;
-            }
+    private int findFreeInode() throws IOException {
+        while (true) {
+            int id = usedInodes.nextClearBit(1);
+            if (id <= indexedInodes) return id;
+            if (indexedInodes == filesMaxCount) return -1;
+
+            indexInodes(indexedInodes + 1);
         }
+    }
 
-        return res.toString();
+    private long getBlockPointer(long block) {
+        return block * blockSize;
     }
 
-    public boolean link(String parent, String link) throws IOException {
-        if (isFileExist(link)) {
-            System.out.println("File already exist");
-            return false;
+    /**
+     * Has the journal make the data just written to extent durable before
+     * the transaction mapping it commits.
+     */
+    private void order(Extent extent) {
+        if (journal != null) journal.order(getBlockPointer(extent.getStart()), (long) extent.getLength() * blockSize);
+    }
+
+    private void fillZeros(BlockDevice target, long pointer, long count) throws IOException {
+        ByteBuffer src = zeros.duplicate();
+
+        while (count > 0) {
+            int run = (int) Math.min(count, src.capacity());
+
+            src.clear().limit(run);
+            target.write(pointer, src);
+
+            pointer += run;
+            count -= run;
         }
+    }
 
-        if (link.length() > FILE_NAME_MAX_LENGTH) {
-            System.out.println("File name is too long");
-            return false;
+    private void putZeros(ByteBuffer dst) {
+        ByteBuffer src = zeros.duplicate();
+
+        while (dst.hasRemaining()) {
+            src.clear().limit(Math.min(dst.remaining(), src.capacity()));
+            dst.put(src);
         }
+    }
 
-        int parentid = getFileId(parent);
-        int id = findFreeFileIndex();
-        if (parentid == -1 || id == -1) return false;
+    private long blocksCount(long size) {
+        return (size + blockSize - 1) / blockSize;
+    }
 
-        long pointer = descriptorsPointer + (FILE_NAME_MAX_LENGTH + 1) * 2 * (id - 1);
-        io.seek(pointer);
-        io.writeChar(parentid + '0');
-        pointer += 2 + (FILE_NAME_MAX_LENGTH - link.length()) * 2;
-        io.seek(pointer);
-        io.writeChars(link);
-        fileIndexes[id - 1] = true;
+    /**
+     * @return operation, device and cache metrics as text
+     */
+    public String stats() {
+        return metrics.report();
+    }
 
-        setFileLinksCount(parentid, getFileLinksCount(parentid) + 1);
+    public Metrics getMetrics() {
+        return metrics;
+    }
 
-        return true;
+    /**
+     * @param warmUp index the image in the background after mounting, on by default
+     */
+    public void setWarmUp(boolean warmUp) {
+        this.warmUp = warmUp;
     }
 
-    public boolean unlink(String name) throws IOException {
-        int id = getFileId(name);
-        if (id == -1) return false;
+    /**
+     * @param readAhead load the blocks following sequential reads in the background, on by default
+     */
+    public void setReadAhead(boolean readAhead) {
+        this.readAhead = readAhead;
+    }
 
-        long pointer = descriptorsPointer + (FILE_NAME_MAX_LENGTH + 1) * 2 * (id - 1);
-        io.seek(pointer);
-        io.writeChar('0'); // id
-        io.writeChars("00000000"); // name
-        fileIndexes[id - 1] = false;
-        setFileLinksCount(id, getFileLinksCount(id) - 1);
+    public BlockCache getBlockCache() {
+        return cache;
+    }
 
-        if (getFileLinksCount(id) == 0) {
-            pointer = getInodePointer(id);
-            for (int i = 0; i < BLOCK_SIZE; i++)
-                io.writeChar('0');
+    public boolean isMounted() {
+        return mounted;
+    }
+
+    /**
+     * One run of fsck: references to every inode and owners of every block,
+     * counted by scans forked on the common pool, and then compared.
+     */
+    private class Checker {
+        // inodes and blocks a scan task takes at most
+        private static final int INODE_TASK = 256;
+        private static final int BLOCK_TASK = 64 * 1024;
+
+        final FsckReport report = new FsckReport();
+        private final long firstDataBlock = superblock.getFirstDataBlock();
+        // entries naming each inode
+        private final AtomicIntegerArray references = new AtomicIntegerArray(filesMaxCount + 1);
+        // data and map blocks pointing to each block
+        private final AtomicIntegerArray owners = new AtomicIntegerArray((int) deviceCapacity);
+        private long[] bitmask;
+
+        // repairs
+        private final List<Entry> danglingEntries = Collections.synchronizedList(new ArrayList<Entry>());
+        private final List<Integer> badInodes = Collections.synchronizedList(new ArrayList<Integer>());
+        private final Map<Integer, Integer> wrongLinks = Collections.synchronizedMap(new HashMap<Integer, Integer>());
+
+        void scan() throws IOException {
+            ForkJoinPool pool = ForkJoinPool.commonPool();
+
+            // the root lists through the name index, which wants this thread
+            pool.invoke(new DirectoryScan(ROOT, "", getEntries(ROOT)));
+            pool.invoke(new InodeScan(1, filesMaxCount + 1));
+
+            bitmask = allocator.copyBitmask();
+            pool.invoke(new BlockScan(0, deviceCapacity));
         }
 
-        return true;
-    }
+        void repair() throws IOException {
+            beginOperation();
+            try {
+                for (Entry entry : danglingEntries)
+                    removeEntry(entry.dir, entry.name);
+
+                // their blocks are owned by nothing, so freed below
+                for (int id : badInodes) {
+                    allocator.unreserve(delayed.removeFile(id));
+                    clusters.removeFile(id);
+                    clearInode(id);
+                }
 
-    public boolean truncate(String name, int size) throws IOException {
-        int id = getFileId(name);
-        int prevSize = getFileSize(id);
-        if (size > freeBlockCount() * BLOCK_SIZE) return false;
+                for (Map.Entry<Integer, Integer> entry : wrongLinks.entrySet())
+                    setFileLinksCount(entry.getKey(), entry.getValue());
+            } finally {
+                endOperation();
+            }
 
-        if (prevSize == 0) {
-            setFileSize(id, size);
-            int blockNeededCount = size / BLOCK_SIZE + 1;
-            int i = 0;
-            while (blockNeededCount > 0) {
-                int block = findFreeBlock();
-                markBlockUsed(block);
-                io.seek(getInodePointer(id) + 6 + i * 2);
-                io.writeChar(block);
-                io.seek(getBlockPointer(block));
-                fillValue('0', BLOCK_SIZE);
-                size -= BLOCK_SIZE;
-                blockNeededCount--;
-                i++;
-            }
-        }
-        else {
-            if (prevSize < size) {
-                setFileSize(id, size);
-                if (blocksCount(prevSize) < blocksCount(size)) {
-                    int blockNeededCount = (size - prevSize) / BLOCK_SIZE;
-                    int i = 1;
-                    while (blockNeededCount > 0) {
-                        int block = findFreeBlock();
-                        markBlockUsed(block);
-                        io.seek(getInodePointer(id) + 6 + (prevSize / BLOCK_SIZE + i)  * 2);
-                        io.writeChar(block);
-                        io.seek(getBlockPointer(block));
-                        fillValue('0', BLOCK_SIZE);
-                        size -= BLOCK_SIZE;
-                        blockNeededCount--;
-                        i++;
-                    }
+            for (long from = 0; from < deviceCapacity; from += BLOCK_TASK) {
+                long to = Math.min(deviceCapacity, from + BLOCK_TASK);
+                beginOperation();
+                try {
+                    repairBlocks(from, to);
+                } finally {
+                    endOperation();
                 }
-            } else { // prevSize > size
-                setFileSize(id, size);
-                int blockNeededToRemove = blocksCount(prevSize) - blocksCount(size);
-                for (int i = 0; i < blockNeededToRemove; i++) {
-                    long pointer = getInodePointer(id) + 6 + (size / BLOCK_SIZE + 1 + i) * 2;
-                    io.seek(pointer);
-                    makeBlockUnused(io.readChar());
-                    io.seek(pointer);
-                    io.writeChar('0');
-                    pointer += 2;
+            }
+
+            report.setRepaired();
+        }
+
+        private void repairBlocks(long from, long to) throws IOException {
+            int[] counts = refs != null ? refs.get(from, (int) (to - from)) : null;
+
+            for (long block = from; block < to; block++) {
+                boolean used = isUsed(block);
+                int owned = block < firstDataBlock ? 1 : owners.get((int) block);
+
+                if (counts != null && block >= firstDataBlock) {
+                    int expected = Math.min(Math.max(owned - 1, 0), BlockRefs.MAX_REFS);
+                    // before freeing, which would drop a reference instead
+                    if (counts[(int) (block - from)] != expected) refs.set(block, expected);
                 }
+
+                if (used && owned == 0) allocator.free(block, 1);
+                else if (!used && owned > 0) allocator.markUsed(block, 1);
             }
         }
 
+        private void checkInode(int id) throws IOException {
+            long inode = getInodePointer(id);
+            short type = device.getShort(inode + INODE_TYPE);
+            if (type == TYPE_FREE) return;
 
-        return true;
-    }
+            int count = references.get(id);
+            if (type != TYPE_FILE && type != TYPE_DIRECTORY) {
+                report.add(FsckReport.Problem.badInode, "Inode " + id + " has type " + type);
+                badInodes.add(id);
+                return;
+            }
+            if (count == 0) {
+                report.add(FsckReport.Problem.orphanInode, "Inode " + id + " is in no directory");
+                badInodes.add(id);
+                return;
+            }
 
-    private void makeBlockUnused(int num) throws IOException {
-        long pointer = bitmaskPointer + num * 2;
-        io.seek(pointer);
-        io.writeChar('0');
-    }
+            int links = getFileLinksCount(id);
+            if (type == TYPE_DIRECTORY) {
+                report.addDirectory();
+                if (count > 1)
+                    report.add(FsckReport.Problem.wrongLinks, "Directory " + id + " is in " + count + " entries");
+                else if (links != 1)
+                    linksMismatch(id, links, 1);
+            } else {
+                report.addFile();
+                if (links != count) linksMismatch(id, links, count);
+            }
 
-    private void markBlockUsed(int num) throws IOException {
-        long pointer = bitmaskPointer + num * 2;
-        io.seek(pointer);
-        io.writeChar('1');
-    }
+            BlockMap map = getBlockMap(id);
+            long blocks = Math.min(blocksCount(getFileSize(id)), map.getMaxBlocks());
+            for (long i = 0; i < blocks; ) {
+                long block = map.get(inode, i);
+                long length = map.getRunLength(inode, i, blocks - i);
+                if (block != 0) own(id, block, length);
+                i += length;
+            }
 
-    private int getFileId(String name) throws IOException {
-        for (int i = 0; i < fileIndexes.length; i++) {
-            if (fileIndexes[i] && getFileName(i + 1).equals(name))
-                return i + 1;
+            final int owner = id;
+            map.visitMapBlocks(inode, new BlockMap.BlockVisitor() {
+                @Override
+                public boolean visit(long block, long length) {
+                    return own(owner, block, length);
+                }
+            });
         }
 
-        return -1;
-    }
+        private void linksMismatch(int id, int links, int expected) {
+            report.add(FsckReport.Problem.wrongLinks, "Inode " + id + " has " + links + " links, " + expected + " expected");
+            wrongLinks.put(id, expected);
+        }
 
-    private String getFileName(int id) throws IOException {
-        StringBuilder res = new StringBuilder();
-        long pointer = descriptorsPointer;
-        io.seek(pointer);
+        /**
+         * @return false if the blocks are not data blocks
+         */
+        private boolean own(int id, long block, long length) {
+            if (block < firstDataBlock || block + length > deviceCapacity) {
+                report.add(FsckReport.Problem.badPointer, "Inode " + id + " points to blocks "
+                        + block + "-" + (block + length - 1) + " outside the data blocks");
+                return false;
+            }
+
+            for (long b = block; b < block + length; b++)
+                owners.incrementAndGet((int) b);
+            report.addUsedBlocks(length);
+            return true;
+        }
 
-        for (int i = 0; i < FILES_MAX_COUNT; i++) {
-            if (Character.getNumericValue(io.readChar()) == id)
-                break;
+        private void checkBlocks(long from, long to) throws IOException {
+            int[] counts = refs != null ? refs.get(from, (int) (to - from)) : null;
 
-            pointer += (1 + FILE_NAME_MAX_LENGTH) * 2;
-            io.seek(pointer);
+            // consecutive blocks with the same problem are reported as one run
+            FsckReport.Problem run = null;
+            long runStart = from;
+            for (long block = from; block <= to; block++) {
+                FsckReport.Problem problem = null;
+                if (block < to) problem = checkBlock(block, counts != null ? counts[(int) (block - from)] : 0);
+
+                if (problem != run) {
+                    if (run != null) report.add(run, describe(run, runStart, block), block - runStart);
+                    run = problem;
+                    runStart = block;
+                }
+            }
         }
 
-        boolean nameFound = false;
+        private FsckReport.Problem checkBlock(long block, int refCount) {
+            boolean used = isUsed(block);
+            if (block < firstDataBlock) return used ? null : FsckReport.Problem.freeBlockInUse;
 
-        for (int i = 0; i < FILE_NAME_MAX_LENGTH; i++) {
-            char c = io.readChar();
+            int owned = owners.get((int) block);
+            if (owned == 0) {
+                if (used) return FsckReport.Problem.leakedBlock;
+                return refCount != 0 ? FsckReport.Problem.wrongRefcount : null;
+            }
+            if (!used) return FsckReport.Problem.freeBlockInUse;
 
-            if (c == '0' && !nameFound) continue;
-            else nameFound = true;
+            if (refs == null) return owned > 1 ? FsckReport.Problem.doubleOwnedBlock : null;
+            if (refCount < owned - 1) return FsckReport.Problem.doubleOwnedBlock;
+            return refCount > owned - 1 ? FsckReport.Problem.wrongRefcount : null;
+        }
 
-            res.append(c);
+        private String describe(FsckReport.Problem problem, long start, long end) {
+            String blocks = end - start == 1 ? "Block " + start : "Blocks " + start + "-" + (end - 1);
+            switch (problem) {
+                case leakedBlock:
+                    return blocks + " used but owned by no file";
+                case freeBlockInUse:
+                    return blocks + " in use but free";
+                case doubleOwnedBlock:
+                    return blocks + " owned by several files but not shared";
+                default:
+                    return blocks + " with wrong reference counts";
+            }
         }
 
-        return res.toString();
-    }
+        private boolean isUsed(long block) {
+            return (bitmask[(int) (block >>> 6)] & 1L << block) != 0;
+        }
 
-    private int getFileLinksCount(int id) throws IOException {
-        long pointer = getInodePointer(id) + 2;
-        io.seek(pointer);
-        return io.readChar();
-    }
+        private class DirectoryScan extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
 
-    private void setFileLinksCount(int id, int count) throws IOException {
-        long pointer = getInodePointer(id) + 2;
-        io.seek(pointer);
-        io.writeChar(count);
-    }
+            private final int dir;
+            private final String path;
+            private Map<String, Integer> entries;
 
-    private boolean isDirectory(int id) throws IOException {
-        long pointer = getInodePointer(id);
-        io.seek(pointer);
-        return io.readChar() == '1'; // 0 - file; 1 - directory
-    }
+            DirectoryScan(int dir, String path, Map<String, Integer> entries) {
+                this.dir = dir;
+                this.path = path;
+                this.entries = entries;
+            }
 
-    private boolean isFileExist(String name) throws IOException {
-        for (int i = 0; i < fileIndexes.length; i++) {
-            if (fileIndexes[i])
-                if (getFileName(i + 1).equals(name))
-                    return true;
+            @Override
+            protected void compute() {
+                try {
+                    if (entries == null) entries = directories.list(getInodePointer(dir), getBucketCount(dir));
+
+                    List<DirectoryScan> subdirectories = new ArrayList<DirectoryScan>();
+                    for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+                        int id = entry.getValue();
+                        String name = path + entry.getKey();
+
+                        if (id < 1 || id > filesMaxCount || device.getShort(getInodePointer(id) + INODE_TYPE) == TYPE_FREE) {
+                            report.add(FsckReport.Problem.danglingEntry, "Entry " + name + " names free inode " + id);
+                            danglingEntries.add(new Entry(dir, entry.getKey()));
+                            continue;
+                        }
+
+                        // a directory in several entries is scanned once
+                        if (references.incrementAndGet(id) == 1 && isDirectory(id))
+                            subdirectories.add(new DirectoryScan(id, name + "/", null));
+                    }
+                    invokeAll(subdirectories);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
         }
 
-        return false;
-    }
+        private class InodeScan extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
 
-    private int getFileSize(int id) throws IOException {
-        long pointer = getInodePointer(id) + 4;
-        io.seek(pointer);
+            private final int from;
+            private final int to;
 
-        char c = io.readChar();
-        return c;
-    }
+            InodeScan(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
 
-    private void setFileSize(int id, int size) throws IOException {
-        long pointer = getInodePointer(id) + 4;
-        io.seek(pointer);
-        io.writeChar(size);
-    }
+            @Override
+            protected void compute() {
+                if (to - from > INODE_TASK) {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new InodeScan(from, middle), new InodeScan(middle, to));
+                    return;
+                }
 
-    private long getInodePointer(int id) throws IOException {
-        return firstIndodePointer + (BLOCK_SIZE * (id - 1)) * 2;
-    }
+                try {
+                    for (int id = from; id < to; id++)
+                        checkInode(id);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
 
-    private void updateFileIndexes() throws IOException {
-        Arrays.fill(fileIndexes, false);
+        private class BlockScan extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
 
-        long pointer = descriptorsPointer;
+            private final long from;
+            private final long to;
 
-        for (int i = 0; i < FILES_MAX_COUNT; i++) {
-            io.seek(pointer);
-            char num = io.readChar();
-            if (num == '0') {
-                pointer += (FILE_NAME_MAX_LENGTH + 1) * 2;
-                continue;
-            } else {
-                int id = Character.getNumericValue(num);
-                fileIndexes[id - 1] = true;
+            BlockScan(long from, long to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from > BLOCK_TASK) {
+                    long middle = (from + to) >>> 1;
+                    invokeAll(new BlockScan(from, middle), new BlockScan(middle, to));
+                    return;
+                }
+
+                try {
+                    checkBlocks(from, to);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
             }
-            pointer += (FILE_NAME_MAX_LENGTH + 1) * 2;
         }
     }
 
-    private boolean isIdUsed(int id) {
-        if (id < 0 || id > FILES_MAX_COUNT) return false;
-        return fileIndexes[id - 1];
+    /**
+     * A file as a defragmentation pass sees it.
+     */
+    private static class DefragFile {
+        final int id;
+        long fragments;
+        long mapped;
+        boolean shared;
+        // first fragment: its first device block, blocks and the block after it
+        long first;
+        long headBlocks;
+        long head;
+
+        boolean started;
+        boolean done;
+        // next file block to move, and where to
+        long next;
+        long goal;
+
+        DefragFile(int id) {
+            this.id = id;
+        }
     }
 
-    private int findFreeFileIndex() {
-        for (int i = 0; i < fileIndexes.length; i++) {
-            if (!fileIndexes[i]) return i + 1;
-        }
+    private static class Entry {
+        final int dir;
+        final String name;
 
-        return -1;
+        Entry(int dir, String name) {
+            this.dir = dir;
+            this.name = name;
+        }
     }
 
-    private long getBlockPointer(int i) {
-        return firstBlockPointer + BLOCK_SIZE * 2 * i;
-    }
+    /**
+     * Part of a batched transfer: buffer's remaining bytes at position on the image.
+     */
+    private static class Segment implements Comparable<Segment> {
+        final long position;
+        final ByteBuffer buffer;
 
-    private void fillValue(int val, int count) throws IOException {
-        for (int i = 0; i < count; i++)
-            io.writeChar(val);
-    }
+        Segment(long position, ByteBuffer buffer) {
+            this.position = position;
+            this.buffer = buffer;
+        }
 
-    private int blocksCount(int size) {
-        return size / BLOCK_SIZE + 1;
-    }
+        long getEnd() {
+            return position + buffer.remaining();
+        }
 
-    public boolean isMounted() {
-        return mounted;
+        @Override
+        public int compareTo(Segment other) {
+            return Long.compare(position, other.position);
+        }
     }
-}
\ No newline at end of file
+}
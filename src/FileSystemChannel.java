@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Channel over a file of a FileSystem. Reads go through a read-ahead
+ * buffer, which writes and truncations through the channel drop; reads at
+ * least as large as the buffer skip it. Writes past the end grow the file.
+ * Not thread safe.
+ */
+public class FileSystemChannel implements SeekableByteChannel {
+    private final FileSystem fs;
+    private final int fd;
+    private final ByteBuffer buffer;
+    // file offset of the first buffered byte
+    private long bufferStart;
+    private long position;
+    private boolean open = true;
+
+    public FileSystemChannel(FileSystem fs, int fd, int bufferSize) {
+        this.fs = fs;
+        this.fd = fd;
+
+        buffer = ByteBuffer.allocate(bufferSize);
+        buffer.limit(0);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (!dst.hasRemaining()) return 0;
+
+        if (!isBuffered(position)) {
+            if (dst.remaining() >= buffer.capacity()) {
+                int read = readFile(dst);
+                if (read > 0) position += read;
+                return read;
+            }
+
+            buffer.clear();
+            int read = readFile(buffer);
+            buffer.flip();
+            bufferStart = position;
+            if (read == -1) return -1;
+        }
+
+        ByteBuffer part = buffer.duplicate();
+        part.position((int) (position - bufferStart));
+        int length = Math.min(dst.remaining(), part.remaining());
+        part.limit(part.position() + length);
+        dst.put(part);
+        position += length;
+
+        return length;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        int length = src.remaining();
+
+        buffer.limit(0);
+        if (fs.write(fd, position, src, true) != length)
+            throw new IOException("Writing at " + position + " failed");
+        position += length;
+
+        return length;
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+        ensureOpen();
+
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+
+        long size = fs.size(fd);
+        if (size == -1) throw new IOException("File was not opened");
+        return size;
+    }
+
+    /**
+     * Shrinks the file to size, if it is larger.
+     */
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        if (size < 0) throw new IllegalArgumentException("Negative size");
+
+        if (size < size() && !fs.truncate(fd, size))
+            throw new IOException("Truncating to " + size + " failed");
+        buffer.limit(0);
+        position = Math.min(position, size);
+
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes the file descriptor too.
+     */
+    @Override
+    public void close() {
+        if (!open) return;
+
+        open = false;
+        fs.close(fd);
+    }
+
+    private boolean isBuffered(long offset) {
+        return offset >= bufferStart && offset < bufferStart + buffer.limit();
+    }
+
+    // -1 at the end of the file
+    private int readFile(ByteBuffer dst) throws IOException {
+        int read = fs.read(fd, position, dst);
+        if (read == -1) throw new IOException("File was not opened");
+        return read == 0 ? -1 : read;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) throw new ClosedChannelException();
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Stream reading a file of a FileSystem through a read-ahead buffer.
+ * Reads at least as large as the buffer skip it. Not thread safe.
+ */
+public class FileSystemInputStream extends InputStream {
+    private final FileSystem fs;
+    private final int fd;
+    private final ByteBuffer buffer;
+    // file offset of the byte after the buffered ones
+    private long position;
+    private boolean closed;
+
+    public FileSystemInputStream(FileSystem fs, int fd, int bufferSize) {
+        this.fs = fs;
+        this.fd = fd;
+
+        buffer = ByteBuffer.allocate(bufferSize);
+        buffer.limit(0);
+    }
+
+    @Override
+    public int read() throws IOException {
+        ensureOpen();
+        if (!buffer.hasRemaining() && fill() == -1) return -1;
+
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+        ensureOpen();
+        if (len == 0) return 0;
+
+        if (!buffer.hasRemaining()) {
+            if (len >= buffer.capacity()) return readFile(ByteBuffer.wrap(b, off, len));
+            if (fill() == -1) return -1;
+        }
+
+        int length = Math.min(len, buffer.remaining());
+        buffer.get(b, off, length);
+        return length;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        ensureOpen();
+        if (n <= 0) return 0;
+
+        if (n <= buffer.remaining()) {
+            buffer.position(buffer.position() + (int) n);
+            return n;
+        }
+
+        long skipped = buffer.remaining();
+        buffer.position(buffer.limit());
+        long rest = Math.min(n - skipped, Math.max(0, getSize() - position));
+        position += rest;
+
+        return skipped + rest;
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return (int) Math.min(Integer.MAX_VALUE, buffer.remaining() + Math.max(0, getSize() - position));
+    }
+
+    /**
+     * Closes the file descriptor too.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+
+        closed = true;
+        fs.close(fd);
+    }
+
+    private int fill() throws IOException {
+        buffer.clear();
+        int read = readFile(buffer);
+        buffer.flip();
+
+        return read;
+    }
+
+    private int readFile(ByteBuffer dst) throws IOException {
+        int read = fs.read(fd, position, dst);
+        if (read == -1) throw new IOException("File was not opened");
+        if (read == 0) return -1;
+
+        position += read;
+        return read;
+    }
+
+    private long getSize() throws IOException {
+        long size = fs.size(fd);
+        if (size == -1) throw new IOException("File was not opened");
+        return size;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+    }
+}
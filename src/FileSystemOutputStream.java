@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffered stream writing a file of a FileSystem from an offset on,
+ * growing the file as the writes pass its end. Writes at least as large
+ * as the buffer skip it. Not thread safe.
+ */
+public class FileSystemOutputStream extends OutputStream {
+    private final FileSystem fs;
+    private final int fd;
+    private final ByteBuffer buffer;
+    // file offset of the first buffered byte
+    private long position;
+    private boolean closed;
+
+    public FileSystemOutputStream(FileSystem fs, int fd, long offset, int bufferSize) {
+        this.fs = fs;
+        this.fd = fd;
+        this.position = offset;
+
+        buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (!buffer.hasRemaining()) flushBuffer();
+
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+        ensureOpen();
+
+        if (len >= buffer.capacity()) {
+            flushBuffer();
+            writeFile(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+
+        if (len > buffer.remaining()) flushBuffer();
+        buffer.put(b, off, len);
+    }
+
+    /**
+     * Writes the buffered bytes to the file system, see FileSystem.sync to
+     * make them durable.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        flushBuffer();
+    }
+
+    /**
+     * Flushes, then closes the file descriptor.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+
+        try {
+            flushBuffer();
+        } finally {
+            closed = true;
+            fs.close(fd);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        if (buffer.hasRemaining()) writeFile(buffer);
+        buffer.clear();
+    }
+
+    private void writeFile(ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        if (fs.write(fd, position, src, true) != length)
+            throw new IOException("Writing at " + position + " failed");
+
+        position += length;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What FileSystem.fsck found on an image. Problems are counted by kind -
+ * block problems a block at a time - and the first MAX_MESSAGES of them
+ * described. Scans add to it from several threads.
+ */
+public class FsckReport {
+    public enum Problem {
+        // link count of an inode differing from the entries naming it
+        wrongLinks,
+        // inode in use but in no directory
+        orphanInode,
+        // inode of an unknown type
+        badInode,
+        // directory entry of a free inode
+        danglingEntry,
+        // block map pointing outside the data blocks
+        badPointer,
+        // block used in the bitmask but owned by nothing
+        leakedBlock,
+        // block owned but free in the bitmask
+        freeBlockInUse,
+        // block owned several times but not shared
+        doubleOwnedBlock,
+        // reference count differing from the owners of a block
+        wrongRefcount
+    }
+
+    static final int MAX_MESSAGES = 100;
+
+    private final AtomicLongArray counts = new AtomicLongArray(Problem.values().length);
+    private final List<String> messages = new ArrayList<String>();
+    private int dropped;
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong directories = new AtomicLong();
+    private final AtomicLong usedBlocks = new AtomicLong();
+    private volatile boolean repaired;
+
+    void add(Problem problem, String message) {
+        add(problem, message, 1);
+    }
+
+    void add(Problem problem, String message, long count) {
+        counts.addAndGet(problem.ordinal(), count);
+        synchronized (messages) {
+            if (messages.size() < MAX_MESSAGES) messages.add(message);
+            else dropped++;
+        }
+    }
+
+    void addFile() {
+        files.incrementAndGet();
+    }
+
+    void addDirectory() {
+        directories.incrementAndGet();
+    }
+
+    void addUsedBlocks(long count) {
+        usedBlocks.addAndGet(count);
+    }
+
+    void setRepaired() {
+        repaired = true;
+    }
+
+    public long getCount(Problem problem) {
+        return counts.get(problem.ordinal());
+    }
+
+    public long getProblemCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    public boolean isClean() {
+        return getProblemCount() == 0;
+    }
+
+    /**
+     * @return whether the problems found were repaired, those that can be
+     */
+    public boolean isRepaired() {
+        return repaired;
+    }
+
+    public List<String> getMessages() {
+        synchronized (messages) {
+            return new ArrayList<String>(messages);
+        }
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getDirectories() {
+        return directories.get();
+    }
+
+    /**
+     * @return data and map blocks owned by files, shared ones once per owner
+     */
+    public long getUsedBlocks() {
+        return usedBlocks.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder();
+        res.append("Files : " + getFiles() + ", directories : " + getDirectories()
+                + ", blocks in use : " + getUsedBlocks() + '\n');
+
+        synchronized (messages) {
+            for (String message : messages)
+                res.append(message).append('\n');
+            if (dropped > 0) res.append("... and " + dropped + " more\n");
+        }
+
+        for (Problem problem : Problem.values()) {
+            if (getCount(problem) != 0) res.append(problem + " : " + getCount(problem) + '\n');
+        }
+
+        if (isClean()) res.append("Image is clean");
+        else res.append(isRepaired() ? "Problems repaired" : "Problems found");
+        return res.toString();
+    }
+}
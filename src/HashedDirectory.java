@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Entries of a directory, stored in the data blocks of its inode.
+ *
+ * Every block is a hash bucket: an entry lives in block hash(name) mod the
+ * block count, which is a power of two. When a bucket fills up the directory
+ * doubles and every bucket i splits into i and i + count, so a lookup reads a
+ * single block however large the directory grows.
+ *
+ * Bucket - used bytes (int), entries: inode id (int), name length (short), name (UTF-8)
+ *
+ * Buckets are metadata: they are rewritten whole through the device.
+ */
+public class HashedDirectory {
+    private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+
+    private static final int BUCKET_USED = 0;
+    private static final int BUCKET_ENTRIES = 4;
+
+    private static final int ENTRY_INODE = 0;
+    private static final int ENTRY_NAME_LENGTH = 4;
+    private static final int ENTRY_NAME = 6;
+
+    private final BlockDevice device;
+    private final BlockMap map;
+    private final int blockSize;
+
+    public HashedDirectory(BlockDevice device, BlockMap map, int blockSize) {
+        this.device = device;
+        this.map = map;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Writes the empty first bucket of a new directory.
+     */
+    public void format(long inode) throws IOException {
+        writeBucket(inode, 0, newBucket());
+    }
+
+    /**
+     * @return inode id of name, or 0 if there is no such entry
+     */
+    public int find(long inode, long buckets, byte[] name) throws IOException {
+        ByteBuffer bucket = readBucket(inode, bucketOf(name, buckets));
+        int offset = indexOf(bucket, name);
+        return offset == -1 ? 0 : bucket.getInt(offset + ENTRY_INODE);
+    }
+
+    /**
+     * @return false if the bucket of name is full and the directory must split first
+     */
+    public boolean insert(long inode, long buckets, byte[] name, int id) throws IOException {
+        long index = bucketOf(name, buckets);
+        ByteBuffer bucket = readBucket(inode, index);
+        if (!append(bucket, name, id)) return false;
+
+        writeBucket(inode, index, bucket);
+        return true;
+    }
+
+    /**
+     * @return inode id of the removed entry, or 0 if there is no such entry
+     */
+    public int remove(long inode, long buckets, byte[] name) throws IOException {
+        long index = bucketOf(name, buckets);
+        ByteBuffer bucket = readBucket(inode, index);
+        int offset = indexOf(bucket, name);
+        if (offset == -1) return 0;
+
+        int id = bucket.getInt(offset + ENTRY_INODE);
+        int length = ENTRY_NAME + name.length;
+        int end = BUCKET_ENTRIES + bucket.getInt(BUCKET_USED);
+        byte[] bytes = bucket.array();
+
+        System.arraycopy(bytes, offset + length, bytes, offset, end - offset - length);
+        Arrays.fill(bytes, end - length, end, (byte) 0);
+        bucket.putInt(BUCKET_USED, end - length - BUCKET_ENTRIES);
+        writeBucket(inode, index, bucket);
+
+        return id;
+    }
+
+    /**
+     * Spreads the entries of buckets [0, buckets) over [0, 2 * buckets).
+     * The blocks of the upper half must already be mapped.
+     */
+    public void split(long inode, long buckets) throws IOException {
+        for (long i = 0; i < buckets; i++) {
+            ByteBuffer bucket = readBucket(inode, i);
+            ByteBuffer low = newBucket();
+            ByteBuffer high = newBucket();
+
+            int end = BUCKET_ENTRIES + bucket.getInt(BUCKET_USED);
+            for (int offset = BUCKET_ENTRIES; offset < end; offset += ENTRY_NAME + getNameLength(bucket, offset)) {
+                byte[] name = getName(bucket, offset);
+                append(bucketOf(name, 2 * buckets) == i ? low : high, name, bucket.getInt(offset + ENTRY_INODE));
+            }
+
+            writeBucket(inode, i, low);
+            writeBucket(inode, i + buckets, high);
+        }
+    }
+
+    /**
+     * @return name -> inode id of every entry
+     */
+    public Map<String, Integer> list(long inode, long buckets) throws IOException {
+        Map<String, Integer> res = new LinkedHashMap<String, Integer>();
+
+        for (long i = 0; i < buckets; i++) {
+            ByteBuffer bucket = readBucket(inode, i);
+            int end = BUCKET_ENTRIES + bucket.getInt(BUCKET_USED);
+            for (int offset = BUCKET_ENTRIES; offset < end; offset += ENTRY_NAME + getNameLength(bucket, offset))
+                res.put(new String(getName(bucket, offset), NAME_CHARSET), bucket.getInt(offset + ENTRY_INODE));
+        }
+
+        return res;
+    }
+
+    public boolean isEmpty(long inode, long buckets) throws IOException {
+        for (long i = 0; i < buckets; i++) {
+            if (device.getInt(getBucketPointer(inode, i) + BUCKET_USED) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * FNV-1a, part of the image format.
+     */
+    static int hash(byte[] name) {
+        int hash = 0x811C9DC5;
+        for (byte b : name) {
+            hash ^= b & 0xFF;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    private long bucketOf(byte[] name, long buckets) {
+        return (hash(name) & 0xFFFFFFFFL) & (buckets - 1);
+    }
+
+    /**
+     * @return offset of the entry of name in bucket, or -1
+     */
+    private int indexOf(ByteBuffer bucket, byte[] name) {
+        int end = BUCKET_ENTRIES + bucket.getInt(BUCKET_USED);
+        byte[] bytes = bucket.array();
+
+        for (int offset = BUCKET_ENTRIES; offset < end; ) {
+            int length = getNameLength(bucket, offset);
+            if (length == name.length && equals(bytes, offset + ENTRY_NAME, name))
+                return offset;
+            offset += ENTRY_NAME + length;
+        }
+        return -1;
+    }
+
+    private boolean append(ByteBuffer bucket, byte[] name, int id) {
+        int end = BUCKET_ENTRIES + bucket.getInt(BUCKET_USED);
+        if (end + ENTRY_NAME + name.length > blockSize) return false;
+
+        bucket.putInt(end + ENTRY_INODE, id);
+        bucket.putShort(end + ENTRY_NAME_LENGTH, (short) name.length);
+        System.arraycopy(name, 0, bucket.array(), end + ENTRY_NAME, name.length);
+        bucket.putInt(BUCKET_USED, end + ENTRY_NAME + name.length - BUCKET_ENTRIES);
+        return true;
+    }
+
+    private int getNameLength(ByteBuffer bucket, int offset) {
+        return bucket.getShort(offset + ENTRY_NAME_LENGTH) & 0xFFFF;
+    }
+
+    private byte[] getName(ByteBuffer bucket, int offset) {
+        int length = getNameLength(bucket, offset);
+        return Arrays.copyOfRange(bucket.array(), offset + ENTRY_NAME, offset + ENTRY_NAME + length);
+    }
+
+    private static boolean equals(byte[] bytes, int offset, byte[] name) {
+        for (int i = 0; i < name.length; i++) {
+            if (bytes[offset + i] != name[i]) return false;
+        }
+        return true;
+    }
+
+    private ByteBuffer newBucket() {
+        return ByteBuffer.allocate(blockSize).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private ByteBuffer readBucket(long inode, long i) throws IOException {
+        ByteBuffer bucket = newBucket();
+        device.read(getBucketPointer(inode, i), bucket);
+        bucket.clear();
+        return bucket;
+    }
+
+    private void writeBucket(long inode, long i, ByteBuffer bucket) throws IOException {
+        bucket.clear();
+        device.write(getBucketPointer(inode, i), bucket);
+    }
+
+    private long getBucketPointer(long inode, long i) throws IOException {
+        long block = map.get(inode, i);
+        if (block == 0) throw new IOException("Directory bucket " + i + " is not mapped");
+        return block * blockSize;
+    }
+}
@@ -0,0 +1,75 @@
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Attributes of a file of an image, as filestat reports them. Images keep
+ * no times, they all read as the epoch. The file key is the inode id.
+ */
+public class ImageFileAttributes implements BasicFileAttributes {
+    private static final FileTime NO_TIME = FileTime.fromMillis(0);
+
+    private final int id;
+    private final boolean directory;
+    private final long size;
+    private final int links;
+
+    public ImageFileAttributes(int id, boolean directory, long size, int links) {
+        this.id = id;
+        this.directory = directory;
+        this.size = size;
+        this.links = links;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getLinksCount() {
+        return links;
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return NO_TIME;
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return NO_TIME;
+    }
+
+    @Override
+    public FileTime creationTime() {
+        return NO_TIME;
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return !directory;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return false;
+    }
+
+    @Override
+    public boolean isOther() {
+        return false;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public Object fileKey() {
+        return id;
+    }
+}
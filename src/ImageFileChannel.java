@@ -0,0 +1,260 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * FileChannel over a file of a FileSystem opened as fd. Transfers go
+ * straight to the file, unbuffered. Writes past the end grow the file.
+ *
+ * transferTo and transferFrom with a FileChannel of another file system
+ * move the extents of the file between the image channel and it without
+ * copying, when the image is on a FileChannelBlockDevice, see
+ * FileSystem.transferTo. Everything else (holes, delayed blocks, the
+ * growing part of the file, compressed files, other channels) is copied
+ * through a direct buffer of TRANSFER_SIZE bytes per thread, large enough
+ * to bypass the block cache.
+ */
+public class ImageFileChannel extends FileChannel {
+    private static final int TRANSFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> transferBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(TRANSFER_SIZE);
+        }
+    };
+
+    private final FileSystem fs;
+    private final int fd;
+    private final boolean readable;
+    private final boolean writable;
+    private final boolean append;
+    private long position;
+
+    public ImageFileChannel(FileSystem fs, int fd, boolean readable, boolean writable, boolean append) {
+        this.fs = fs;
+        this.fd = fd;
+        this.readable = readable;
+        this.writable = writable;
+        this.append = append;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int read = read(dst, position);
+        if (read > 0) position += read;
+        return read;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (!dsts[i].hasRemaining()) continue;
+
+            int read = read(dsts[i]);
+            if (read == -1) return total == 0 ? -1 : total;
+            total += read;
+            if (dsts[i].hasRemaining()) break;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        if (append) position = size();
+
+        int written = write(src, position);
+        position += written;
+        return written;
+    }
+
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++)
+            total += write(srcs[i]);
+        return total;
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) throws IOException {
+        if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+        ensureOpen();
+
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+
+        long size = fs.size(fd);
+        if (size == -1) throw new ClosedChannelException();
+        return size;
+    }
+
+    /**
+     * Shrinks the file to size, if it is larger.
+     */
+    @Override
+    public synchronized FileChannel truncate(long size) throws IOException {
+        if (size < 0) throw new IllegalArgumentException("Negative size");
+        ensureOpen();
+        if (!writable) throw new NonWritableChannelException();
+
+        if (size < size() && !fs.truncate(fd, size))
+            throw new IOException("Truncating to " + size + " failed");
+        position = Math.min(position, size);
+
+        return this;
+    }
+
+    /**
+     * Syncs the whole image, metadata included.
+     */
+    @Override
+    public void force(boolean metaData) throws IOException {
+        ensureOpen();
+        fs.sync();
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (position < 0 || count < 0) throw new IllegalArgumentException("Negative position or count");
+        ensureOpen();
+        if (!readable) throw new NonReadableChannelException();
+
+        boolean direct = isDirect(target);
+        ByteBuffer buffer = transferBuffer.get();
+        long total = 0;
+        while (total < count) {
+            if (direct) {
+                long sent = fs.transferTo(fd, position + total, count - total, target);
+                if (sent > 0) {
+                    total += sent;
+                    continue;
+                }
+                if (sent == -1) direct = false;
+            }
+
+            buffer.clear().limit((int) Math.min(count - total, buffer.capacity()));
+            int read = read(buffer, position + total);
+            if (read <= 0) break;
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                int written = target.write(buffer);
+                // a non-blocking target is full
+                if (written == 0) return total + read - buffer.remaining();
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        if (position < 0 || count < 0) throw new IllegalArgumentException("Negative position or count");
+        ensureOpen();
+        if (!writable) throw new NonWritableChannelException();
+        if (position > size()) return 0;
+
+        boolean direct = isDirect(src);
+        ByteBuffer buffer = transferBuffer.get();
+        long total = 0;
+        while (total < count) {
+            if (direct) {
+                long stored = fs.transferFrom(src, fd, position + total, count - total);
+                if (stored > 0) {
+                    total += stored;
+                    continue;
+                }
+                if (stored == -1) direct = false;
+            }
+
+            buffer.clear().limit((int) Math.min(count - total, buffer.capacity()));
+            int read = 0;
+            while (buffer.hasRemaining() && (read = src.read(buffer)) > 0) {
+                // fill the buffer
+            }
+
+            buffer.flip();
+            if (buffer.hasRemaining()) total += write(buffer, position + total);
+            // end of src, or a non-blocking one has nothing more
+            if (read <= 0) break;
+        }
+        return total;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (position < 0) throw new IllegalArgumentException("Negative position");
+        ensureOpen();
+        if (!readable) throw new NonReadableChannelException();
+        if (!dst.hasRemaining()) return 0;
+
+        int read = fs.read(fd, position, dst);
+        if (read == -1) throw new ClosedChannelException();
+        return read == 0 ? -1 : read;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        if (position < 0) throw new IllegalArgumentException("Negative position");
+        ensureOpen();
+        if (!writable) throw new NonWritableChannelException();
+
+        int length = src.remaining();
+        if (fs.write(fd, position, src, true) != length)
+            throw new IOException("Writing at " + position + " failed");
+        return length;
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException("Files of an image are not mapped");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Files of an image are not locked");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Files of an image are not locked");
+    }
+
+    @Override
+    protected void implCloseChannel() {
+        fs.close(fd);
+    }
+
+    /**
+     * @return whether transfers with channel can go through the image
+     * channel: channels of images take their file locks, which the
+     * transfer holds already
+     */
+    private static boolean isDirect(Object channel) {
+        return channel instanceof FileChannel && !(channel instanceof ImageFileChannel);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!isOpen()) throw new ClosedChannelException();
+    }
+}
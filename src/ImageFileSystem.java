@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * java.nio.file view of an image mounted by a FileSystem, made by
+ * ImageFileSystemProvider. Closing it unmounts the image.
+ */
+public class ImageFileSystem extends java.nio.file.FileSystem {
+    private final ImageFileSystemProvider provider;
+    private final Path image;
+    private final FileSystem fs;
+    private volatile boolean open = true;
+
+    ImageFileSystem(ImageFileSystemProvider provider, Path image, FileSystem fs) {
+        this.provider = provider;
+        this.image = image;
+        this.fs = fs;
+    }
+
+    /**
+     * @return FileSystem the image is mounted by
+     */
+    public FileSystem getFileSystem() {
+        if (!open) throw new ClosedFileSystemException();
+        return fs;
+    }
+
+    /**
+     * @return image file, on the default file system
+     */
+    public Path getImage() {
+        return image;
+    }
+
+    @Override
+    public ImageFileSystemProvider provider() {
+        return provider;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (!open) return;
+            open = false;
+        }
+
+        provider.removeFileSystem(image);
+        if (!fs.unmount()) throw new IOException("Unmounting " + image + " failed");
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return Collections.<Path>singletonList(new ImagePath(this, "/"));
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return new HashSet<String>(Arrays.asList("basic", ImageFileSystemProvider.ATTRIBUTE_VIEW));
+    }
+
+    @Override
+    public ImagePath getPath(String first, String... more) {
+        StringBuilder path = new StringBuilder(first);
+        for (String name : more) {
+            if (name.isEmpty()) continue;
+            path.append('/').append(name);
+        }
+        return new ImagePath(this, path.toString());
+    }
+
+    /**
+     * Matches "glob:" patterns (*, **, ?, [...] and {...,...}) and "regex:"
+     * ones against the path string.
+     */
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        int colon = syntaxAndPattern.indexOf(':');
+        if (colon == -1) throw new IllegalArgumentException("Expected syntax:pattern, got " + syntaxAndPattern);
+
+        String syntax = syntaxAndPattern.substring(0, colon);
+        String pattern = syntaxAndPattern.substring(colon + 1);
+        final Pattern regex;
+        if (syntax.equalsIgnoreCase("regex")) {
+            regex = Pattern.compile(pattern);
+        } else if (syntax.equalsIgnoreCase("glob")) {
+            regex = Pattern.compile(globToRegex(pattern));
+        } else {
+            throw new UnsupportedOperationException("Syntax " + syntax + " is not supported");
+        }
+
+        return new PathMatcher() {
+            @Override
+            public boolean matches(Path path) {
+                return regex.matcher(path.toString()).matches();
+            }
+        };
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException("Images have no owners");
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException("Images are not watched");
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inGroup = false;
+
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    int end = glob.indexOf(']', i + 1);
+                    if (end == -1) throw new IllegalArgumentException("Unclosed [ in " + glob);
+                    String set = glob.substring(i + 1, end);
+                    regex.append('[').append(set.startsWith("!") ? "^" + set.substring(1) : set).append(']');
+                    i = end;
+                    break;
+                case '{':
+                    if (inGroup) throw new IllegalArgumentException("Nested { in " + glob);
+                    regex.append("(?:");
+                    inGroup = true;
+                    break;
+                case '}':
+                    regex.append(inGroup ? ")" : "\\}");
+                    inGroup = false;
+                    break;
+                case ',':
+                    regex.append(inGroup ? "|" : ",");
+                    break;
+                case '\\':
+                    if (++i < glob.length()) regex.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        if (inGroup) throw new IllegalArgumentException("Unclosed { in " + glob);
+
+        return regex.toString();
+    }
+}
@@ -0,0 +1,481 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * java.nio.file provider of the "image" scheme, registered through
+ * META-INF/services. URIs name the image file and a path in it, as
+ * image:file:///disk.img!/dir/file.
+ *
+ * FileSystems.newFileSystem mounts the image, with the env keys "mapped"
+ * (true by default) and "cacheBlocks". The "basic" attribute view is
+ * supported, and the "image" view adds the "id" and "links" of filestat.
+ */
+public class ImageFileSystemProvider extends FileSystemProvider {
+    public static final String SCHEME = "image";
+    public static final String ATTRIBUTE_VIEW = "image";
+
+    private static final int DEFAULT_CACHE_BLOCKS = 1024;
+
+    // image file -> its mounted file system
+    private final Map<Path, ImageFileSystem> fileSystems = new HashMap<Path, ImageFileSystem>();
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public ImageFileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+        return newFileSystem(getImage(uri), env);
+    }
+
+    /**
+     * Mounts the image file at path, of the default file system.
+     */
+    @Override
+    public ImageFileSystem newFileSystem(Path path, Map<String, ?> env) throws IOException {
+        Path image = path.toAbsolutePath().normalize();
+        boolean mapped = !"false".equals(String.valueOf(env.get("mapped")));
+        Object cacheBlocks = env.get("cacheBlocks");
+
+        synchronized (fileSystems) {
+            if (fileSystems.containsKey(image)) throw new FileSystemAlreadyExistsException(image.toString());
+
+            FileSystem fs = new FileSystem(cacheBlocks == null ? DEFAULT_CACHE_BLOCKS : Integer.parseInt(cacheBlocks.toString()));
+            if (!fs.mount(image.toString(), mapped)) throw new IOException("Mounting " + image + " failed");
+
+            ImageFileSystem fileSystem = new ImageFileSystem(this, image, fs);
+            fileSystems.put(image, fileSystem);
+            return fileSystem;
+        }
+    }
+
+    @Override
+    public ImageFileSystem getFileSystem(URI uri) {
+        Path image = getImage(uri);
+
+        synchronized (fileSystems) {
+            ImageFileSystem fileSystem = fileSystems.get(image);
+            if (fileSystem == null) throw new FileSystemNotFoundException(image.toString());
+            return fileSystem;
+        }
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+        String spec = uri.getSchemeSpecificPart();
+        int bang = spec.indexOf("!/");
+        return getFileSystem(uri).getPath(bang == -1 ? "/" : spec.substring(bang + 1));
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options,
+                                              FileAttribute<?>... attrs) throws IOException {
+        return newFileChannel(path, options, attrs);
+    }
+
+    @Override
+    public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options,
+                                      FileAttribute<?>... attrs) throws IOException {
+        if (attrs.length > 0) throw new UnsupportedOperationException("Images keep no file attributes");
+
+        boolean append = options.contains(StandardOpenOption.APPEND);
+        boolean write = append || options.contains(StandardOpenOption.WRITE);
+        boolean read = options.contains(StandardOpenOption.READ) || !write;
+        boolean truncate = write && options.contains(StandardOpenOption.TRUNCATE_EXISTING);
+        if (append && (read || truncate))
+            throw new IllegalArgumentException("APPEND is not allowed with READ or TRUNCATE_EXISTING");
+
+        ImagePath file = check(path);
+        FileSystem fs = file.getFileSystem().getFileSystem();
+        String name = file.getPathString();
+
+        BasicFileAttributes attributes = fs.getAttributes(name);
+        if (attributes == null) {
+            boolean create = options.contains(StandardOpenOption.CREATE) || options.contains(StandardOpenOption.CREATE_NEW);
+            if (!write || !create) throw new NoSuchFileException(path.toString());
+            checkParent(file);
+            if (!fs.create(name)) throw new FileSystemException(path.toString(), null, "Creating failed");
+        } else if (write && options.contains(StandardOpenOption.CREATE_NEW)) {
+            throw new FileAlreadyExistsException(path.toString());
+        } else if (attributes.isDirectory()) {
+            throw new FileSystemException(path.toString(), null, "Is a directory");
+        }
+
+        int fd = fs.open(name);
+        if (fd == -1) throw new NoSuchFileException(path.toString());
+        if (truncate && !fs.truncate(fd, 0)) {
+            fs.close(fd);
+            throw new FileSystemException(path.toString(), null, "Truncating failed");
+        }
+
+        return new ImageFileChannel(fs, fd, read, write, append);
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter)
+            throws IOException {
+        ImagePath directory = check(dir);
+        FileSystem fs = directory.getFileSystem().getFileSystem();
+
+        List<String> names = fs.list(directory.getPathString());
+        if (names == null) {
+            if (fs.getAttributes(directory.getPathString()) == null) throw new NoSuchFileException(dir.toString());
+            throw new NotDirectoryException(dir.toString());
+        }
+
+        final List<Path> entries = new ArrayList<Path>();
+        for (String name : names) {
+            Path entry = dir.resolve(name);
+            try {
+                if (filter == null || filter.accept(entry)) entries.add(entry);
+            } catch (IOException e) {
+                throw new DirectoryIteratorException(e);
+            }
+        }
+
+        return new DirectoryStream<Path>() {
+            private boolean iterated;
+            private boolean closed;
+
+            @Override
+            public synchronized Iterator<Path> iterator() {
+                if (iterated || closed) throw new IllegalStateException("Iterated or closed already");
+                iterated = true;
+                return Collections.unmodifiableList(entries).iterator();
+            }
+
+            @Override
+            public synchronized void close() {
+                closed = true;
+            }
+        };
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+        if (attrs.length > 0) throw new UnsupportedOperationException("Images keep no file attributes");
+
+        ImagePath directory = check(dir);
+        FileSystem fs = directory.getFileSystem().getFileSystem();
+        String name = directory.getPathString();
+
+        if (fs.getAttributes(name) != null) throw new FileAlreadyExistsException(dir.toString());
+        checkParent(directory);
+        if (!fs.mkdir(name)) throw new FileSystemException(dir.toString(), null, "Creating failed");
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        ImagePath file = check(path);
+        FileSystem fs = file.getFileSystem().getFileSystem();
+        String name = file.getPathString();
+
+        ImageFileAttributes attributes = fs.getAttributes(name);
+        if (attributes == null) throw new NoSuchFileException(path.toString());
+
+        boolean deleted;
+        if (attributes.isDirectory()) {
+            if (file.getNameCount() == 0) throw new FileSystemException(path.toString(), null, "Root is not deleted");
+            if (!fs.list(name).isEmpty()) throw new DirectoryNotEmptyException(path.toString());
+            deleted = fs.rmdir(name);
+        } else {
+            deleted = fs.unlink(name);
+        }
+        if (!deleted) throw new FileSystemException(path.toString(), null, "Deleting failed");
+    }
+
+    /**
+     * Copies the content of a file, or makes an empty directory for a directory.
+     */
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        ImagePath from = check(source);
+        ImagePath to = check(target);
+        ImageFileAttributes attributes = from.getFileSystem().getFileSystem().getAttributes(from.getPathString());
+        if (attributes == null) throw new NoSuchFileException(source.toString());
+        if (isSame(from, attributes, to)) return;
+
+        replace(to, options);
+        if (attributes.isDirectory()) {
+            createDirectory(to);
+            return;
+        }
+
+        FileChannel src = newFileChannel(from, Collections.singleton(StandardOpenOption.READ));
+        try {
+            FileChannel dst = newFileChannel(to, new HashSet<OpenOption>(Arrays.asList(
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)));
+            try {
+                long size = src.size();
+                for (long copied = 0; copied < size; )
+                    copied += src.transferTo(copied, size - copied, dst);
+            } finally {
+                dst.close();
+            }
+        } finally {
+            src.close();
+        }
+    }
+
+    /**
+     * Renames files by linking the target and unlinking the source. Other
+     * moves copy, then delete the source, so directories must be empty.
+     */
+    @Override
+    public void move(Path source, Path target, CopyOption... options) throws IOException {
+        ImagePath from = check(source);
+        ImagePath to = check(target);
+        if (Arrays.asList(options).contains(StandardCopyOption.ATOMIC_MOVE))
+            throw new AtomicMoveNotSupportedException(source.toString(), target.toString(), "Moves are a link and an unlink");
+
+        FileSystem fs = from.getFileSystem().getFileSystem();
+        ImageFileAttributes attributes = fs.getAttributes(from.getPathString());
+        if (attributes == null) throw new NoSuchFileException(source.toString());
+        if (isSame(from, attributes, to)) return;
+        if (attributes.isDirectory() && !fs.list(from.getPathString()).isEmpty())
+            throw new DirectoryNotEmptyException(source.toString());
+
+        if (attributes.isDirectory() || from.getFileSystem() != to.getFileSystem()) {
+            copy(source, target, options);
+            delete(source);
+            return;
+        }
+
+        replace(to, options);
+        checkParent(to);
+        if (!fs.link(from.getPathString(), to.getPathString()))
+            throw new FileSystemException(source.toString(), target.toString(), "Linking failed");
+        if (!fs.unlink(from.getPathString()))
+            throw new FileSystemException(source.toString(), target.toString(), "Unlinking failed");
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) throws IOException {
+        if (path.equals(path2)) return true;
+        if (!(path instanceof ImagePath) || !(path2 instanceof ImagePath)) return false;
+
+        ImagePath first = (ImagePath) path;
+        ImagePath second = (ImagePath) path2;
+        if (first.getFileSystem() != second.getFileSystem()) return false;
+
+        ImageFileAttributes attributes = first.getFileSystem().getFileSystem().getAttributes(first.getPathString());
+        ImageFileAttributes attributes2 = second.getFileSystem().getFileSystem().getAttributes(second.getPathString());
+        if (attributes == null) throw new NoSuchFileException(path.toString());
+        if (attributes2 == null) throw new NoSuchFileException(path2.toString());
+
+        return attributes.getId() == attributes2.getId();
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) {
+        throw new UnsupportedOperationException("Images have no file stores");
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        ImagePath file = check(path);
+        if (file.getFileSystem().getFileSystem().getAttributes(file.getPathString()) == null)
+            throw new NoSuchFileException(path.toString());
+
+        if (Arrays.asList(modes).contains(AccessMode.EXECUTE)) throw new AccessDeniedException(path.toString());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(final Path path, Class<V> type, LinkOption... options) {
+        if (type != BasicFileAttributeView.class) return null;
+
+        return (V) new BasicFileAttributeView() {
+            @Override
+            public String name() {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException {
+                return getAttributes(path);
+            }
+
+            @Override
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) {
+                throw new UnsupportedOperationException("Images keep no times");
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options)
+            throws IOException {
+        if (!type.isAssignableFrom(ImageFileAttributes.class))
+            throw new UnsupportedOperationException("Attributes " + type.getName() + " are not supported");
+        return (A) getAttributes(path);
+    }
+
+    /**
+     * @param attributes [view:]names, view "basic" or "image", names "*" or comma separated
+     */
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options)
+            throws IOException {
+        int colon = attributes.indexOf(':');
+        String view = colon == -1 ? "basic" : attributes.substring(0, colon);
+        if (!view.equals("basic") && !view.equals(ATTRIBUTE_VIEW))
+            throw new UnsupportedOperationException("View " + view + " is not supported");
+
+        ImageFileAttributes file = getAttributes(path);
+        Map<String, Object> all = new LinkedHashMap<String, Object>();
+        all.put("lastModifiedTime", file.lastModifiedTime());
+        all.put("lastAccessTime", file.lastAccessTime());
+        all.put("creationTime", file.creationTime());
+        all.put("size", file.size());
+        all.put("isRegularFile", file.isRegularFile());
+        all.put("isDirectory", file.isDirectory());
+        all.put("isSymbolicLink", file.isSymbolicLink());
+        all.put("isOther", file.isOther());
+        all.put("fileKey", file.fileKey());
+        if (view.equals(ATTRIBUTE_VIEW)) {
+            all.put("id", file.getId());
+            all.put("links", file.getLinksCount());
+        }
+
+        Map<String, Object> res = new LinkedHashMap<String, Object>();
+        for (String name : attributes.substring(colon + 1).split(",")) {
+            if (name.equals("*")) {
+                res.putAll(all);
+            } else if (all.containsKey(name)) {
+                res.put(name, all.get(name));
+            } else {
+                throw new IllegalArgumentException("Unknown attribute " + name);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) {
+        throw new UnsupportedOperationException("Image attributes are not set");
+    }
+
+    void removeFileSystem(Path image) {
+        synchronized (fileSystems) {
+            fileSystems.remove(image);
+        }
+    }
+
+    /**
+     * @return URI of path in image
+     */
+    static URI toUri(Path image, String path) {
+        URI uri = image.toUri();
+        try {
+            return new URI(SCHEME, uri.getScheme() + ":" + uri.getSchemeSpecificPart() + "!" + path, null);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * @return image file named by uri
+     */
+    private static Path getImage(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme()))
+            throw new IllegalArgumentException("Expected scheme " + SCHEME + ", got " + uri);
+
+        String spec = uri.getSchemeSpecificPart();
+        int bang = spec.indexOf("!/");
+        if (bang != -1) spec = spec.substring(0, bang);
+
+        int colon = spec.indexOf(':');
+        if (colon == -1) throw new IllegalArgumentException("Expected an image URI in " + uri);
+        try {
+            return Paths.get(new URI(spec.substring(0, colon), spec.substring(colon + 1), null)).toAbsolutePath().normalize();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private ImageFileAttributes getAttributes(Path path) throws IOException {
+        ImagePath file = check(path);
+        ImageFileAttributes attributes = file.getFileSystem().getFileSystem().getAttributes(file.getPathString());
+        if (attributes == null) throw new NoSuchFileException(path.toString());
+        return attributes;
+    }
+
+    private boolean isSame(ImagePath source, ImageFileAttributes attributes, ImagePath target) throws IOException {
+        if (source.getFileSystem() != target.getFileSystem()) return false;
+
+        ImageFileAttributes existing = target.getFileSystem().getFileSystem().getAttributes(target.getPathString());
+        return existing != null && existing.getId() == attributes.getId();
+    }
+
+    /**
+     * Deletes target if it exists and options replace it.
+     */
+    private void replace(ImagePath target, CopyOption... options) throws IOException {
+        if (target.getFileSystem().getFileSystem().getAttributes(target.getPathString()) == null) return;
+
+        if (!Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING))
+            throw new FileAlreadyExistsException(target.toString());
+        delete(target);
+    }
+
+    private void checkParent(ImagePath path) throws IOException {
+        Path parent = path.toAbsolutePath().normalize().getParent();
+        if (parent == null) return;
+
+        ImageFileAttributes attributes = getAttributes(parent);
+        if (!attributes.isDirectory()) throw new NotDirectoryException(parent.toString());
+    }
+
+    private static ImagePath check(Path path) {
+        if (!(path instanceof ImagePath)) throw new ProviderMismatchException();
+        return (ImagePath) path;
+    }
+}
@@ -0,0 +1,267 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Path of an ImageFileSystem: names separated by '/', absolute when it
+ * starts with one. Relative paths are resolved against the root.
+ */
+public class ImagePath implements Path {
+    private final ImageFileSystem fs;
+    private final boolean absolute;
+    private final String[] names;
+
+    ImagePath(ImageFileSystem fs, String path) {
+        this.fs = fs;
+        this.absolute = path.startsWith("/");
+
+        List<String> names = new ArrayList<String>();
+        for (String name : path.split("/")) {
+            if (!name.isEmpty()) names.add(name);
+        }
+        this.names = names.toArray(new String[names.size()]);
+    }
+
+    private ImagePath(ImageFileSystem fs, boolean absolute, String[] names) {
+        this.fs = fs;
+        this.absolute = absolute;
+        this.names = names;
+    }
+
+    @Override
+    public ImageFileSystem getFileSystem() {
+        return fs;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return absolute;
+    }
+
+    @Override
+    public Path getRoot() {
+        return absolute ? new ImagePath(fs, true, new String[0]) : null;
+    }
+
+    @Override
+    public Path getFileName() {
+        return names.length == 0 ? null : new ImagePath(fs, false, new String[] { names[names.length - 1] });
+    }
+
+    @Override
+    public Path getParent() {
+        if (names.length == 0 || names.length == 1 && !absolute) return null;
+        return new ImagePath(fs, absolute, Arrays.copyOf(names, names.length - 1));
+    }
+
+    @Override
+    public int getNameCount() {
+        return names.length;
+    }
+
+    @Override
+    public Path getName(int index) {
+        return subpath(index, index + 1);
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+        if (beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex)
+            throw new IllegalArgumentException("Wrong subpath " + beginIndex + ", " + endIndex);
+        return new ImagePath(fs, false, Arrays.copyOfRange(names, beginIndex, endIndex));
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        if (!(other instanceof ImagePath) || other.getFileSystem() != fs) return false;
+
+        ImagePath path = (ImagePath) other;
+        if (path.absolute != absolute || path.names.length > names.length) return false;
+        for (int i = 0; i < path.names.length; i++) {
+            if (!path.names[i].equals(names[i])) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startsWith(String other) {
+        return startsWith(fs.getPath(other));
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        if (!(other instanceof ImagePath) || other.getFileSystem() != fs) return false;
+
+        ImagePath path = (ImagePath) other;
+        if (path.absolute) return equals(path);
+        if (path.names.length > names.length) return false;
+        for (int i = 0; i < path.names.length; i++) {
+            if (!path.names[i].equals(names[names.length - path.names.length + i])) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endsWith(String other) {
+        return endsWith(fs.getPath(other));
+    }
+
+    /**
+     * Drops "." names and ".." ones with the name before them.
+     */
+    @Override
+    public Path normalize() {
+        List<String> normal = new ArrayList<String>();
+        for (String name : names) {
+            if (name.equals(".")) continue;
+
+            if (name.equals("..") && !normal.isEmpty() && !normal.get(normal.size() - 1).equals("..")) {
+                normal.remove(normal.size() - 1);
+            } else if (!name.equals("..") || !absolute) {
+                // ".." of the root is the root
+                normal.add(name);
+            }
+        }
+        return new ImagePath(fs, absolute, normal.toArray(new String[normal.size()]));
+    }
+
+    @Override
+    public Path resolve(Path other) {
+        ImagePath path = check(other);
+        if (path.absolute) return path;
+        if (path.names.length == 0) return this;
+
+        String[] joined = Arrays.copyOf(names, names.length + path.names.length);
+        System.arraycopy(path.names, 0, joined, names.length, path.names.length);
+        return new ImagePath(fs, absolute, joined);
+    }
+
+    @Override
+    public Path resolve(String other) {
+        return resolve(fs.getPath(other));
+    }
+
+    @Override
+    public Path resolveSibling(Path other) {
+        check(other);
+        Path parent = getParent();
+        return parent == null ? other : parent.resolve(other);
+    }
+
+    @Override
+    public Path resolveSibling(String other) {
+        return resolveSibling(fs.getPath(other));
+    }
+
+    @Override
+    public Path relativize(Path other) {
+        ImagePath path = check(other);
+        if (path.absolute != absolute)
+            throw new IllegalArgumentException("Both paths must be absolute or relative");
+
+        int common = 0;
+        while (common < names.length && common < path.names.length && names[common].equals(path.names[common]))
+            common++;
+
+        List<String> relative = new ArrayList<String>();
+        for (int i = common; i < names.length; i++)
+            relative.add("..");
+        relative.addAll(Arrays.asList(path.names).subList(common, path.names.length));
+        return new ImagePath(fs, false, relative.toArray(new String[relative.size()]));
+    }
+
+    /**
+     * @return image URI of the absolute path, image:<image URI>!<path>
+     */
+    @Override
+    public URI toUri() {
+        return ImageFileSystemProvider.toUri(fs.getImage(), getPathString());
+    }
+
+    @Override
+    public Path toAbsolutePath() {
+        return absolute ? this : new ImagePath(fs, true, names);
+    }
+
+    @Override
+    public Path toRealPath(LinkOption... options) throws IOException {
+        Path real = toAbsolutePath().normalize();
+        if (fs.getFileSystem().getAttributes(((ImagePath) real).getPathString()) == null)
+            throw new NoSuchFileException(toString());
+        return real;
+    }
+
+    @Override
+    public File toFile() {
+        throw new UnsupportedOperationException("Not a file of the default file system");
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException("Images are not watched");
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events) {
+        throw new UnsupportedOperationException("Images are not watched");
+    }
+
+    @Override
+    public Iterator<Path> iterator() {
+        List<Path> paths = new ArrayList<Path>();
+        for (int i = 0; i < names.length; i++)
+            paths.add(getName(i));
+        return paths.iterator();
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return toString().compareTo(check(other).toString());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ImagePath)) return false;
+
+        ImagePath path = (ImagePath) other;
+        return path.fs == fs && path.absolute == absolute && Arrays.equals(path.names, names);
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder(absolute ? "/" : "");
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) res.append('/');
+            res.append(names[i]);
+        }
+        return res.toString();
+    }
+
+    /**
+     * @return path as the FileSystem calls take it, from the root
+     */
+    String getPathString() {
+        return ((ImagePath) toAbsolutePath().normalize()).toString();
+    }
+
+    private ImagePath check(Path other) {
+        if (!(other instanceof ImagePath) || other.getFileSystem() != fs) throw new ProviderMismatchException();
+        return (ImagePath) other;
+    }
+}
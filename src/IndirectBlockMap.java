@@ -0,0 +1,209 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Block map of the files created before extents: DIRECT_BLOCKS block ids
+ * in the inode, then a single indirect and a double indirect block id.
+ * An indirect block holds blockSize / 4 block ids, a double indirect block
+ * holds the ids of as many indirect blocks.
+ */
+public class IndirectBlockMap implements BlockMap {
+    static final int INODE_BLOCKS = 16;
+    private static final int INODE_INDIRECT = Superblock.INODE_SIZE - 8;
+    private static final int INODE_DOUBLE_INDIRECT = Superblock.INODE_SIZE - 4;
+    private static final int DIRECT_BLOCKS = (INODE_INDIRECT - INODE_BLOCKS) / 4;
+
+    private final BlockDevice device;
+    private final BlockAllocator allocator;
+    private final int blockSize;
+    private final long pointersPerBlock;
+    private final ByteBuffer zeros;
+    // reserved index blocks left to the map call in progress
+    private long spare;
+
+    public IndirectBlockMap(BlockDevice device, BlockAllocator allocator, int blockSize) {
+        this.device = device;
+        this.allocator = allocator;
+        this.blockSize = blockSize;
+        this.pointersPerBlock = blockSize / 4;
+        this.zeros = ByteBuffer.allocate(blockSize);
+    }
+
+    @Override
+    public long get(long inode, long i) throws IOException {
+        long slot = getBlockSlot(inode, i, false);
+        return slot == -1 ? 0 : getPointer(slot);
+    }
+
+    @Override
+    public long getRunLength(long inode, long i, long max) throws IOException {
+        long first = get(inode, i);
+        long run = 1;
+
+        while (run < max && get(inode, i + run) == (first == 0 ? 0 : first + run))
+            run++;
+
+        return run;
+    }
+
+    @Override
+    public synchronized long map(long inode, long i, long block, long length, long reserved) throws IOException {
+        // index blocks are set aside before anything is changed
+        long missing = getMissingIndexBlocks(inode, i, i + length);
+        long own = Math.min(missing, reserved);
+        if (missing > own && !allocator.reserve(missing - own)) throw new IOException("No free blocks");
+        spare = missing;
+
+        long used;
+        try {
+            for (long k = 0; k < length; k++)
+                device.putInt(getBlockSlot(inode, i + k, true), (int) (block + k));
+        } finally {
+            used = missing - spare;
+            spare = 0;
+            // index blocks come out of those reserved here first
+            if (used < missing - own) allocator.unreserve(missing - own - used);
+        }
+
+        return Math.max(0, used - (missing - own));
+    }
+
+    @Override
+    public synchronized void unmap(long inode, long from, long to) throws IOException {
+        for (long i = from; i < to; i++) {
+            long slot = getBlockSlot(inode, i, false);
+            if (slot == -1) continue;
+
+            long block = getPointer(slot);
+            if (block != 0) {
+                allocator.free(block, 1);
+                device.putInt(slot, 0);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void truncate(long inode, long from, long fileBlocks) throws IOException {
+        unmap(inode, from, fileBlocks);
+
+        // index blocks that no longer map any block
+        if (from <= DIRECT_BLOCKS)
+            freeIndexBlock(inode + INODE_INDIRECT);
+
+        long doubleIndirect = getPointer(inode + INODE_DOUBLE_INDIRECT);
+        if (doubleIndirect != 0) {
+            long first = DIRECT_BLOCKS + pointersPerBlock;
+            long keep = from <= first ? 0 : (from - first + pointersPerBlock - 1) / pointersPerBlock;
+
+            for (long k = keep; k < pointersPerBlock; k++)
+                freeIndexBlock(doubleIndirect * blockSize + k * 4);
+            if (keep == 0)
+                freeIndexBlock(inode + INODE_DOUBLE_INDIRECT);
+        }
+    }
+
+    @Override
+    public long getIndexBlocksCount(long blocks) {
+        long count = 0;
+
+        if (blocks > DIRECT_BLOCKS)
+            count++;
+        if (blocks > DIRECT_BLOCKS + pointersPerBlock)
+            count += 1 + (blocks - DIRECT_BLOCKS - pointersPerBlock + pointersPerBlock - 1) / pointersPerBlock;
+
+        return count;
+    }
+
+    @Override
+    public long getMaxBlocks() {
+        return DIRECT_BLOCKS + pointersPerBlock + pointersPerBlock * pointersPerBlock;
+    }
+
+    @Override
+    public void visitMapBlocks(long inode, BlockVisitor visitor) throws IOException {
+        long indirect = getPointer(inode + INODE_INDIRECT);
+        if (indirect != 0) visitor.visit(indirect, 1);
+
+        long doubleIndirect = getPointer(inode + INODE_DOUBLE_INDIRECT);
+        if (doubleIndirect == 0 || !visitor.visit(doubleIndirect, 1)) return;
+
+        for (long k = 0; k < pointersPerBlock; k++) {
+            long block = getPointer(doubleIndirect * blockSize + k * 4);
+            if (block != 0) visitor.visit(block, 1);
+        }
+    }
+
+    /**
+     * @return position of the id of file block i, or -1 if its index block is
+     * missing and create is false
+     */
+    private long getBlockSlot(long inode, long i, boolean create) throws IOException {
+        if (i < DIRECT_BLOCKS)
+            return inode + INODE_BLOCKS + i * 4;
+
+        i -= DIRECT_BLOCKS;
+        if (i < pointersPerBlock) {
+            long indirect = getIndexBlock(inode + INODE_INDIRECT, create);
+            return indirect == 0 ? -1 : indirect * blockSize + i * 4;
+        }
+
+        i -= pointersPerBlock;
+        long doubleIndirect = getIndexBlock(inode + INODE_DOUBLE_INDIRECT, create);
+        if (doubleIndirect == 0) return -1;
+
+        long indirect = getIndexBlock(doubleIndirect * blockSize + i / pointersPerBlock * 4, create);
+        return indirect == 0 ? -1 : indirect * blockSize + i % pointersPerBlock * 4;
+    }
+
+    /**
+     * @return index blocks mapping file blocks [from, to) would add
+     */
+    private long getMissingIndexBlocks(long inode, long from, long to) throws IOException {
+        long first = DIRECT_BLOCKS + pointersPerBlock;
+        long missing = 0;
+
+        if (from < first && to > DIRECT_BLOCKS && getPointer(inode + INODE_INDIRECT) == 0)
+            missing++;
+        if (to > first) {
+            long doubleIndirect = getPointer(inode + INODE_DOUBLE_INDIRECT);
+            if (doubleIndirect == 0) missing++;
+
+            for (long k = (Math.max(from, first) - first) / pointersPerBlock; k <= (to - 1 - first) / pointersPerBlock; k++) {
+                if (doubleIndirect == 0 || getPointer(doubleIndirect * blockSize + k * 4) == 0)
+                    missing++;
+            }
+        }
+
+        return missing;
+    }
+
+    private long getIndexBlock(long slot, boolean create) throws IOException {
+        long block = getPointer(slot);
+
+        if (block == 0 && create) {
+            Extent extent = spare > 0 ? allocator.allocateReserved(1, -1) : null;
+            if (extent != null) spare--;
+
+            block = extent != null ? extent.getStart() : allocator.allocate();
+            if (block == -1) throw new IOException("No free blocks");
+
+            zeros.clear();
+            device.write(block * blockSize, zeros);
+            device.putInt(slot, (int) block);
+        }
+
+        return block;
+    }
+
+    private void freeIndexBlock(long slot) throws IOException {
+        long block = getPointer(slot);
+        if (block == 0) return;
+
+        allocator.free(block, 1);
+        device.putInt(slot, 0);
+    }
+
+    private long getPointer(long slot) throws IOException {
+        return device.getInt(slot) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,41 @@
+import java.nio.ByteBuffer;
+
+/**
+ * One range of a batched read or write: the remaining bytes of buffer at
+ * offset of the file opened as fd.
+ */
+public class IoRequest {
+    private final int fd;
+    private final long offset;
+    private final ByteBuffer buffer;
+    private int result = -1;
+
+    public IoRequest(int fd, long offset, ByteBuffer buffer) {
+        this.fd = fd;
+        this.offset = offset;
+        this.buffer = buffer;
+    }
+
+    public int getFd() {
+        return fd;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return bytes transferred, as the single range call would have returned
+     */
+    public int getResult() {
+        return result;
+    }
+
+    void setResult(int result) {
+        this.result = result;
+    }
+}
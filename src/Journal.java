@@ -0,0 +1,491 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of metadata blocks.
+ *
+ * Metadata is written through the journal: every touched block joins the
+ * running transaction and stays pinned in the block cache. A commit copies
+ * the blocks into the journal region, ends them with a commit block and
+ * forces the device once, making every operation finished since the previous
+ * commit durable together. Only then may the cache write the blocks home.
+ *
+ * File data is not journaled. Data written to newly allocated blocks is
+ * ordered: it is written back and forced before the records of the
+ * transaction mapping it, so replayed metadata never points at blocks
+ * holding something else.
+ * When the region is full, a checkpoint writes every committed block home
+ * and empties it. Mounting replays the committed transactions left in it.
+ *
+ * Journal region - header block, then transactions, each made of
+ * descriptor - magic, tid (long), count (int), count home block ids (long)
+ * the copies of those count blocks, possibly more descriptors and copies
+ * commit - magic, tid (long), blocks count (int), CRC32 of descriptors and copies (long)
+ *
+ * Header - magic, tid of the first transaction in the region (long)
+ *
+ * Operations changing metadata run between begin and end; a commit waits for
+ * the running ones to end and keeps new ones waiting while it collects blocks.
+ */
+public class Journal implements BlockDevice {
+    private static final int HEADER_MAGIC = 0x4A524E4C; // "JRNL"
+    private static final int DESCRIPTOR_MAGIC = 0x4A444553; // "JDES"
+    private static final int COMMIT_MAGIC = 0x4A434D54; // "JCMT"
+
+    private static final int RECORD_TID = 4;
+    private static final int RECORD_COUNT = 12;
+    private static final int RECORD_DATA = 16;
+
+    private static final long COMMIT_INTERVAL_MS = 100;
+
+    private final BlockDevice device;
+    private final BlockCache cache;
+    private final int blockSize;
+    private final long start;
+    private final int length;
+    private final int perDescriptor;
+    // a running transaction this big is committed before the next operation
+    private final int maxTransactionBlocks;
+
+    private BlockAllocator allocator;
+
+    private final ReadWriteLock handles = new ReentrantReadWriteLock();
+    private final Object commitLock = new Object();
+    private final Set<Long> running = new TreeSet<Long>();
+    // data ranges (position, length) the running transaction points at
+    private List<long[]> ordered = new ArrayList<long[]>();
+    private volatile long runningTid = 1;
+    private volatile long committedTid = 0;
+    // next free block of the region
+    private int head = 1;
+
+    private Thread committer;
+    private volatile boolean closed;
+
+    /**
+     * @param device the device under cache, used for the journal region
+     */
+    public Journal(BlockDevice device, BlockCache cache, int blockSize, long start, long length) {
+        this.device = device;
+        this.cache = cache;
+        this.blockSize = blockSize;
+        this.start = start;
+        this.length = (int) length;
+        this.perDescriptor = (blockSize - RECORD_DATA) / 8;
+        this.maxTransactionBlocks = this.length / 4;
+    }
+
+    /**
+     * Writes the transactions committed before a crash home and empties the
+     * region. Must run before the cache holds any block.
+     */
+    public void recover() throws IOException {
+        long tid = 1;
+
+        if (device.getInt(getRegionPointer(0)) == HEADER_MAGIC) {
+            tid = device.getLong(getRegionPointer(0) + RECORD_TID);
+
+            int position = 1;
+            int replayed = 0;
+            while ((position = replay(position, tid)) != -1) {
+                tid++;
+                replayed++;
+            }
+
+            if (replayed > 0)
+                System.out.println("Journal : replayed " + replayed + " transactions");
+        }
+
+        committedTid = tid - 1;
+        runningTid = tid;
+        cache.setCommitted(committedTid);
+        reset();
+    }
+
+    /**
+     * Starts committing in the background.
+     *
+     * @param allocator its bitmask is committed with every transaction
+     */
+    public void start(BlockAllocator allocator) {
+        this.allocator = allocator;
+        allocator.setHoldFreed(true);
+
+        committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!closed) {
+                    try {
+                        Thread.sleep(COMMIT_INTERVAL_MS);
+                        sync();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        System.out.println("Journal commit failed");
+                    }
+                }
+            }
+        }, "journal-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    public void begin() throws IOException {
+        boolean full;
+        synchronized (this) {
+            full = running.size() >= maxTransactionBlocks;
+        }
+        if (full) sync();
+
+        handles.readLock().lock();
+    }
+
+    public void end() {
+        handles.readLock().unlock();
+    }
+
+    /**
+     * Commits every operation ended before the call. Callers arriving during
+     * a commit share the next one.
+     */
+    public void sync() throws IOException {
+        long tid = runningTid;
+
+        synchronized (commitLock) {
+            if (committedTid < tid) commit();
+        }
+    }
+
+    /**
+     * Commits, then writes every block home and empties the region.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (commitLock) {
+            commit();
+
+            handles.writeLock().lock();
+            try {
+                checkpointLocked();
+            } finally {
+                handles.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Makes data written to [position, position + length) durable before
+     * the running transaction, which points at it, commits.
+     */
+    public synchronized void order(long position, long length) {
+        ordered.add(new long[] {position, length});
+    }
+
+    private void commit() throws IOException {
+        List<Long> blocks;
+        List<long[]> data;
+        List<ByteBuffer> copies = new ArrayList<ByteBuffer>();
+        long tid;
+
+        handles.writeLock().lock();
+        try {
+            if (allocator != null) allocator.flush();
+
+            synchronized (this) {
+                if (running.isEmpty()) return;
+
+                blocks = new ArrayList<Long>(running);
+                running.clear();
+                data = ordered;
+                ordered = new ArrayList<long[]>();
+            }
+            tid = runningTid;
+
+            int needed = getRecordBlocks(blocks.size());
+            if (head + needed > length)
+                checkpointLocked();
+
+            if (allocator != null) allocator.sealHeld();
+            for (long block : blocks) {
+                ByteBuffer copy = ByteBuffer.allocate(blockSize);
+                cache.copyBlock(block, copy);
+                copy.flip();
+                copies.add(copy);
+            }
+            runningTid = tid + 1;
+
+            if (1 + needed > length) {
+                // can not be logged: written home without crash safety
+                writeOrdered(data);
+                setCommitted(tid);
+                checkpointLocked();
+                return;
+            }
+        } finally {
+            handles.writeLock().unlock();
+        }
+
+        writeOrdered(data);
+        write(tid, blocks, copies);
+        device.force();
+        setCommitted(tid);
+    }
+
+    /**
+     * Writes the data of ranges back and forces it, before the metadata
+     * pointing at it reaches the device.
+     */
+    private void writeOrdered(List<long[]> ranges) throws IOException {
+        if (ranges.isEmpty()) return;
+
+        for (long[] range : ranges)
+            cache.writeBack(range[0], range[1]);
+        device.force();
+    }
+
+    /**
+     * Writes every committed block home, forces it and empties the region.
+     * The caller holds the commit lock and blocks operations.
+     */
+    private void checkpointLocked() throws IOException {
+        cache.force();
+        reset();
+        if (allocator != null) allocator.releaseSealed();
+    }
+
+    private void setCommitted(long tid) {
+        committedTid = tid;
+        cache.setCommitted(tid);
+    }
+
+    private void reset() throws IOException {
+        device.putInt(getRegionPointer(0), HEADER_MAGIC);
+        device.putLong(getRegionPointer(0) + RECORD_TID, runningTid);
+        device.force();
+        head = 1;
+    }
+
+    private void write(long tid, List<Long> blocks, List<ByteBuffer> copies) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(blockSize).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+
+        for (int first = 0; first < blocks.size(); first += perDescriptor) {
+            int count = Math.min(perDescriptor, blocks.size() - first);
+
+            record.clear();
+            record.putInt(DESCRIPTOR_MAGIC).putLong(tid).putInt(count);
+            for (int i = 0; i < count; i++)
+                record.putLong(RECORD_DATA + i * 8, blocks.get(first + i));
+            record.clear();
+            crc.update(record.array());
+            device.write(getRegionPointer(head++), record);
+
+            for (int i = first; i < first + count; i++) {
+                ByteBuffer copy = copies.get(i);
+                crc.update(copy.array());
+                device.write(getRegionPointer(head++), copy);
+            }
+        }
+
+        record.clear();
+        record.putInt(COMMIT_MAGIC).putLong(tid).putInt(blocks.size()).putLong(RECORD_DATA, crc.getValue());
+        record.clear();
+        device.write(getRegionPointer(head++), record);
+    }
+
+    /**
+     * Writes transaction tid starting at position home if it was committed.
+     *
+     * @return position after the transaction, or -1 if there is none
+     */
+    private int replay(int position, long tid) throws IOException {
+        List<Long> homes = new ArrayList<Long>();
+        List<Integer> copies = new ArrayList<Integer>();
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        CRC32 crc = new CRC32();
+        long blockCount = device.size() / blockSize;
+
+        while (position < length) {
+            long pointer = getRegionPointer(position);
+            int magic = device.getInt(pointer);
+            if (device.getLong(pointer + RECORD_TID) != tid) return -1;
+
+            if (magic == DESCRIPTOR_MAGIC) {
+                int count = device.getInt(pointer + RECORD_COUNT);
+                if (count <= 0 || count > perDescriptor || position + 1 + count > length) return -1;
+
+                for (int i = 0; i <= count; i++) {
+                    buffer.clear();
+                    device.read(getRegionPointer(position + i), buffer);
+                    crc.update(buffer.array());
+                }
+                for (int i = 0; i < count; i++) {
+                    long home = device.getLong(pointer + RECORD_DATA + i * 8);
+                    if (home < 0 || home >= blockCount) return -1;
+                    homes.add(home);
+                    copies.add(position + 1 + i);
+                }
+                position += 1 + count;
+            } else if (magic == COMMIT_MAGIC) {
+                if (homes.isEmpty() || device.getInt(pointer + RECORD_COUNT) != homes.size()
+                        || device.getLong(pointer + RECORD_DATA) != crc.getValue())
+                    return -1;
+
+                for (int i = 0; i < homes.size(); i++) {
+                    buffer.clear();
+                    device.read(getRegionPointer(copies.get(i)), buffer);
+                    buffer.flip();
+                    device.write(homes.get(i) * blockSize, buffer);
+                }
+                device.force();
+                return position + 1;
+            } else {
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return region blocks taking a transaction of count blocks
+     */
+    private int getRecordBlocks(int count) {
+        return (count + perDescriptor - 1) / perDescriptor + count + 1;
+    }
+
+    private long getRegionPointer(int position) {
+        return (start + position) * blockSize;
+    }
+
+    /**
+     * Adds the blocks of [position, position + length) to the running transaction.
+     */
+    private void join(long position, int length) throws IOException {
+        long end = (position + length + blockSize - 1) / blockSize;
+
+        for (long block = position / blockSize; block < end; block++) {
+            synchronized (this) {
+                running.add(block);
+            }
+            cache.pin(block, runningTid);
+        }
+    }
+
+    @Override
+    public long size() {
+        return cache.size();
+    }
+
+    @Override
+    public void ensureSize(long size) throws IOException {
+        cache.ensureSize(size);
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        cache.read(position, dst);
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        join(position, src.remaining());
+        cache.write(position, src);
+    }
+
+    @Override
+    public void read(long position, ByteBuffer[] dsts) throws IOException {
+        cache.read(position, dsts);
+    }
+
+    @Override
+    public void write(long position, ByteBuffer[] srcs) throws IOException {
+        for (ByteBuffer src : srcs) {
+            int length = src.remaining();
+            join(position, length);
+            cache.write(position, src);
+            position += length;
+        }
+    }
+
+    @Override
+    public byte get(long position) throws IOException {
+        return cache.get(position);
+    }
+
+    @Override
+    public void put(long position, byte value) throws IOException {
+        join(position, 1);
+        cache.put(position, value);
+    }
+
+    @Override
+    public short getShort(long position) throws IOException {
+        return cache.getShort(position);
+    }
+
+    @Override
+    public void putShort(long position, short value) throws IOException {
+        join(position, 2);
+        cache.putShort(position, value);
+    }
+
+    @Override
+    public int getInt(long position) throws IOException {
+        return cache.getInt(position);
+    }
+
+    @Override
+    public void putInt(long position, int value) throws IOException {
+        join(position, 4);
+        cache.putInt(position, value);
+    }
+
+    @Override
+    public long getLong(long position) throws IOException {
+        return cache.getLong(position);
+    }
+
+    @Override
+    public void putLong(long position, long value) throws IOException {
+        join(position, 8);
+        cache.putLong(position, value);
+    }
+
+    /**
+     * Commits the running transaction.
+     */
+    @Override
+    public void force() throws IOException {
+        sync();
+    }
+
+    /**
+     * Stops committing in the background, checkpoints and closes the cache.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (committer != null) {
+            committer.interrupt();
+            try {
+                committer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            checkpoint();
+        } finally {
+            cache.close();
+        }
+    }
+}
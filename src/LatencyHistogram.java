@@ -0,0 +1,86 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of nanosecond latencies with a bounded relative error,
+ * laid out like HdrHistogram: every power of two range is split into
+ * HALF_BUCKETS linear buckets, so a recorded value is off by at most 1/64.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int HALF_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+    private static final int BUCKETS = HALF_BUCKETS * (64 - SUB_BUCKET_BITS + 2);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+
+        counts.incrementAndGet(indexOf(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos))
+            current = max.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    /**
+     * @return the value percentile percents of the recorded ones are at most,
+     *         0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            n += counts.get(i);
+        if (n == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highestValueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets every recorded value. Values recorded meanwhile may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    // values below 2 * HALF_BUCKETS get a bucket each, larger ones share
+    // buckets 2^exponent wide
+    private static int indexOf(long value) {
+        int exponent = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return HALF_BUCKETS * exponent + (int) (value >>> exponent);
+    }
+
+    private static long highestValueOf(int index) {
+        int exponent = Math.max(0, index / HALF_BUCKETS - 1);
+        long sub = index - HALF_BUCKETS * exponent;
+        return ((sub + 1) << exponent) - 1;
+    }
+}
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Offline converter from the old char encoded images to the v2 format.
+ *
+ * Old layout (every value is a 2-byte big-endian char):
+ * Disk capacity - 8 decimal digits + 1
+ * Bitmask - capacity - 1 chars of '0' / '1'
+ * File Descriptors - FILES_MAX_COUNT * (id + FILE_NAME_MAX_LENGTH chars, left padded with '0')
+ * IndexNodes - FILES_MAX_COUNT * BLOCK_SIZE chars: type, links, size, block ids
+ * Data blocks - BLOCK_SIZE chars each
+ */
+public class LegacyImageConverter {
+    private static final int BLOCK_SIZE = 512;
+    private static final int DISK_CAPACITY_MAX_LENGTH = 8;
+    private static final int FILE_NAME_MAX_LENGTH = 8;
+    private static final int FILES_MAX_COUNT = 9;
+
+    private final BlockDevice legacy;
+    private long descriptorsPointer;
+    private long firstIndodePointer;
+    private long firstBlockPointer;
+
+    private LegacyImageConverter(BlockDevice legacy) {
+        this.legacy = legacy;
+    }
+
+    public static boolean convert(String legacyPath, String path) {
+        try {
+            BlockDevice legacy = MappedBlockDevice.open(legacyPath);
+            try {
+                if (Superblock.detectVersion(legacy) != Superblock.LEGACY_VERSION) {
+                    System.out.println("Disk is not in the old format");
+                    return false;
+                }
+
+                return new LegacyImageConverter(legacy).convertTo(path);
+            } finally {
+                legacy.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean convertTo(String path) throws IOException {
+        long capacity = getCapacity();
+
+        long bitmaskPointer = (DISK_CAPACITY_MAX_LENGTH + 1) * 2;
+        descriptorsPointer = bitmaskPointer + (capacity - 1) * 2;
+        firstIndodePointer = (((descriptorsPointer + (1 + FILE_NAME_MAX_LENGTH) * 2)) / BLOCK_SIZE + 1) * BLOCK_SIZE;
+        firstBlockPointer = firstIndodePointer + FILES_MAX_COUNT * BLOCK_SIZE * 2;
+
+        if (!FileSystem.format(path, getBlocksCount(capacity)))
+            return false;
+
+        FileSystem fs = new FileSystem();
+        if (!fs.mount(path))
+            return false;
+
+        try {
+            for (Map.Entry<Integer, List<String>> file : readNames().entrySet()) {
+                if (!copyFile(fs, file.getKey(), file.getValue()))
+                    return false;
+            }
+        } finally {
+            fs.unmount();
+        }
+
+        return true;
+    }
+
+    /**
+     * Enough v2 blocks to hold every old data block, plus one partially
+     * filled block per file and the v2 metadata.
+     */
+    private static long getBlocksCount(long capacity) {
+        long dataBlocks = (capacity * BLOCK_SIZE + Superblock.DEFAULT_BLOCK_SIZE - 1) / Superblock.DEFAULT_BLOCK_SIZE
+                + FILES_MAX_COUNT;
+        long blocksCount = dataBlocks + 1;
+
+        while (Superblock.create(blocksCount, Superblock.DEFAULT_BLOCK_SIZE, Superblock.DEFAULT_INODE_COUNT,
+                Superblock.DEFAULT_NAME_MAX_LENGTH).getFirstDataBlock() + dataBlocks > blocksCount)
+            blocksCount++;
+
+        return blocksCount;
+    }
+
+    private boolean copyFile(FileSystem fs, int id, List<String> names) throws IOException {
+        String name = names.get(0);
+        int size = getChar(getInodePointer(id) + 4);
+
+        if (!fs.create(name) || !fs.truncate(name, size))
+            return false;
+
+        // old images can only hold '0' (never written) and '1' (written) data,
+        // so replaying every run of '1' reproduces the content
+        int fd = fs.open(name);
+        int runStart = -1;
+
+        for (int offset = 0; offset <= size; offset++) {
+            boolean written = offset < size && getData(id, offset) == '1';
+
+            if (written && runStart == -1) {
+                runStart = offset;
+            } else if (!written && runStart != -1) {
+                fs.write(fd, runStart, offset - runStart);
+                runStart = -1;
+            }
+        }
+        fs.close(fd);
+
+        for (int i = 1; i < names.size(); i++) {
+            if (!fs.link(name, names.get(i)))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Names of every used descriptor, grouped by the inode they point to.
+     */
+    private Map<Integer, List<String>> readNames() throws IOException {
+        Map<Integer, List<String>> names = new LinkedHashMap<Integer, List<String>>();
+        long pointer = descriptorsPointer;
+
+        for (int i = 0; i < FILES_MAX_COUNT; i++, pointer += (1 + FILE_NAME_MAX_LENGTH) * 2) {
+            char num = getChar(pointer);
+            if (num == '0')
+                continue;
+
+            StringBuilder name = new StringBuilder();
+            boolean nameFound = false;
+            for (int k = 0; k < FILE_NAME_MAX_LENGTH; k++) {
+                char c = getChar(pointer + 2 + k * 2);
+                if (c == '0' && !nameFound) continue;
+                else nameFound = true;
+
+                name.append(c);
+            }
+
+            int id = Character.getNumericValue(num);
+            if (!names.containsKey(id))
+                names.put(id, new ArrayList<String>());
+            names.get(id).add(name.toString());
+        }
+
+        return names;
+    }
+
+    private char getData(int id, int offset) throws IOException {
+        int block = getChar(getInodePointer(id) + 6 + (offset / BLOCK_SIZE) * 2);
+        return getChar(firstBlockPointer + (long) BLOCK_SIZE * 2 * block + (offset % BLOCK_SIZE) * 2);
+    }
+
+    private long getInodePointer(int id) {
+        return firstIndodePointer + (BLOCK_SIZE * (id - 1)) * 2;
+    }
+
+    private int getCapacity() throws IOException {
+        StringBuilder num = new StringBuilder();
+
+        for (int i = 0; i < DISK_CAPACITY_MAX_LENGTH; i++) {
+            num.append(getChar(i * 2));
+        }
+
+        return Integer.parseInt(num.toString());
+    }
+
+    private char getChar(long pointer) throws IOException {
+        return (char) (((legacy.get(pointer) & 0xFF) << 8) | (legacy.get(pointer + 1) & 0xFF));
+    }
+}
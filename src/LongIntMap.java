@@ -0,0 +1,115 @@
+import java.util.Arrays;
+
+/**
+ * Hash map of long keys to int values, stored in arrays (open addressing,
+ * linear probing) so that lookups box nothing. Keys are never Long.MIN_VALUE,
+ * values never negative: get returns -1 for a missing key. Not thread safe.
+ */
+public class LongIntMap {
+    private static final long FREE = Long.MIN_VALUE;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * @param expected keys it holds without growing
+     */
+    public LongIntMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(expected, 4) * 2 - 1) * 2;
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(keys, FREE);
+    }
+
+    /**
+     * @return value of key, or -1 if it has none
+     */
+    public int get(long key) {
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == key) return values[i];
+            if (keys[i] == FREE) return -1;
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != -1;
+    }
+
+    public void put(long key, int value) {
+        int i = hash(key) & mask;
+        while (keys[i] != FREE && keys[i] != key)
+            i = (i + 1) & mask;
+
+        if (keys[i] == FREE) {
+            // at most half full
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                put(key, value);
+                return;
+            }
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+    }
+
+    /**
+     * @return value key had, or -1
+     */
+    public int remove(long key) {
+        int i = hash(key) & mask;
+        while (keys[i] != key) {
+            if (keys[i] == FREE) return -1;
+            i = (i + 1) & mask;
+        }
+        int value = values[i];
+
+        // moves the keys probing past the freed slot back into it
+        int gap = i;
+        keys[gap] = FREE;
+        for (int j = (gap + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                keys[j] = FREE;
+                gap = j;
+            }
+        }
+        size--;
+
+        return value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        size = 0;
+        Arrays.fill(keys, FREE);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
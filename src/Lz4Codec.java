@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compressor and decompressor of the LZ4 block format: sequences of a token
+ * (literal length, match length - 4), literals and a 2-byte little-endian
+ * match offset, lengths of 15 or more continued in bytes of up to 255.
+ * The last sequence has literals only.
+ *
+ * Matches are found through a hash table of the last position of every
+ * 4-byte prefix, one try per position: fast rather than tight.
+ */
+public class Lz4Codec {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    // the format ends with at least this many literals
+    private static final int LAST_LITERALS = 5;
+    // and its last match starts this far from the end
+    private static final int MF_LIMIT = 12;
+    private static final int HASH_BITS = 14;
+
+    private final int[] table = new int[1 << HASH_BITS];
+
+    /**
+     * @return most bytes compress can make of length bytes
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses src[0, length) into dst from off on, which has room for
+     * maxCompressedLength(length) bytes. Not thread safe.
+     *
+     * @return compressed length
+     */
+    public int compress(byte[] src, int length, byte[] dst, int off) {
+        int o = off;
+        int anchor = 0;
+
+        if (length > MF_LIMIT) {
+            // positions + 1, 0 is none
+            Arrays.fill(table, 0);
+            int limit = length - MF_LIMIT;
+            int matchLimit = length - LAST_LITERALS;
+
+            for (int i = 0; i < limit; ) {
+                int sequence = readInt(src, i);
+                int h = hash(sequence);
+                int ref = table[h] - 1;
+                table[h] = i + 1;
+
+                if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    i++;
+                    continue;
+                }
+
+                int matchLength = MIN_MATCH;
+                while (i + matchLength < matchLimit && src[ref + matchLength] == src[i + matchLength])
+                    matchLength++;
+
+                o = writeSequence(src, anchor, i - anchor, i - ref, matchLength, dst, o);
+                i += matchLength;
+                anchor = i;
+            }
+        }
+
+        o = writeSequence(src, anchor, length - anchor, 0, 0, dst, o);
+        return o - off;
+    }
+
+    /**
+     * Decompresses src[off, off + length) into dst.
+     *
+     * @return decompressed length
+     */
+    public static int decompress(byte[] src, int off, int length, byte[] dst) throws IOException {
+        int i = off;
+        int end = off + length;
+        int o = 0;
+
+        while (i < end) {
+            int token = src[i++] & 0xFF;
+
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (i >= end) throw corrupt();
+                    b = src[i++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > end - i || literals > dst.length - o) throw corrupt();
+            System.arraycopy(src, i, dst, o, literals);
+            i += literals;
+            o += literals;
+
+            // the last sequence
+            if (i == end) break;
+
+            if (end - i < 2) throw corrupt();
+            int offset = (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8;
+            i += 2;
+
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (i >= end) throw corrupt();
+                    b = src[i++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+
+            int ref = o - offset;
+            if (offset == 0 || ref < 0 || matchLength > dst.length - o) throw corrupt();
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, o, matchLength);
+                o += matchLength;
+            } else {
+                // overlapping, repeats the last offset bytes
+                for (int k = 0; k < matchLength; k++)
+                    dst[o++] = dst[ref++];
+            }
+        }
+
+        return o;
+    }
+
+    /**
+     * Writes literals src[anchor, anchor + literals) and, with matchLength
+     * non-zero, a match at offset back.
+     *
+     * @return dst position after the sequence
+     */
+    private static int writeSequence(byte[] src, int anchor, int literals, int offset, int matchLength,
+                                     byte[] dst, int o) {
+        int matchCode = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+        dst[o++] = (byte) (Math.min(literals, 15) << 4 | Math.min(matchCode, 15));
+        if (literals >= 15) o = writeLength(literals - 15, dst, o);
+
+        System.arraycopy(src, anchor, dst, o, literals);
+        o += literals;
+
+        if (matchLength == 0) return o;
+
+        dst[o++] = (byte) offset;
+        dst[o++] = (byte) (offset >>> 8);
+        if (matchCode >= 15) o = writeLength(matchCode - 15, dst, o);
+        return o;
+    }
+
+    private static int writeLength(int length, byte[] dst, int o) {
+        while (length >= 255) {
+            dst[o++] = (byte) 255;
+            length -= 255;
+        }
+        dst[o++] = (byte) length;
+        return o;
+    }
+
+    private static int readInt(byte[] src, int i) {
+        return (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF) << 16 | (src[i + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static IOException corrupt() {
+        return new IOException("Corrupt compressed data");
+    }
+}
@@ -13,13 +13,13 @@ public class Main {
 
         while (true) {
             System.out.print("> ");
-            String command = in.nextLine();
+            String[] words = in.nextLine().split(" ");
             String[] args = null;
 
-            if (command.split(" ").length > 1)
-                args = Arrays.copyOfRange(command.split(" "), 1, command.split(" ").length);
+            if (words.length > 1)
+                args = Arrays.copyOfRange(words, 1, words.length);
 
-            switch (Commands.commandOf(command)) {
+            switch (Commands.commandOf(words[0])) {
                 case mount:
                     if (!checkArgs(args, 1)) break;
 
@@ -32,10 +32,32 @@ public class Main {
 
                 case unmount:
                     if (!fs.isMounted()) System.out.println("Disk not mounted");
-                    else {
-                        fs.unmount();
+                    else if (fs.unmount())
                         System.out.println("Disk unmounted");
-                    }
+                    else
+                        System.out.println("Disk unmounted, but not all changes were flushed");
+                    break;
+
+                case format:
+                    if (!checkArgs(args, 2)) break;
+
+                    // format path blocks [blockSize] [filesCount] [nameLength]
+                    if (FileSystem.format(args[0], Long.parseLong(args[1]),
+                            args.length > 2 ? Integer.parseInt(args[2]) : Superblock.DEFAULT_BLOCK_SIZE,
+                            args.length > 3 ? Integer.parseInt(args[3]) : Superblock.DEFAULT_INODE_COUNT,
+                            args.length > 4 ? Integer.parseInt(args[4]) : Superblock.DEFAULT_NAME_MAX_LENGTH))
+                        System.out.println("Formatted : " + args[0]);
+                    else
+                        System.out.println("Error, disk not formatted");
+                    break;
+
+                case convert:
+                    if (!checkArgs(args, 2)) break;
+
+                    if (LegacyImageConverter.convert(args[0], args[1]))
+                        System.out.println("Converted : " + args[1]);
+                    else
+                        System.out.println("Error, disk not converted");
                     break;
 
                 case filestat:
@@ -50,7 +72,7 @@ public class Main {
 
                 case ls:
                     try {
-                        System.out.println(fs.ls());
+                        System.out.println(args == null ? fs.ls() : fs.ls(args[0]));
                     } catch (IOException e) {
                         System.out.println("IO error");
                     }
@@ -144,14 +166,142 @@ public class Main {
                 case truncate:
                     if (!checkArgs(args, 2)) break;
                     try {
-                        fs.truncate(args[0], Integer.parseInt(args[1]));
+                        fs.truncate(args[0], Long.parseLong(args[1]));
+                    } catch (IOException e) {
+                        System.out.println("IO error");
+                    }
+                    break;
+
+                case mkdir:
+                    if (!checkArgs(args, 1)) break;
+
+                    try {
+                        if (fs.mkdir(args[0]))
+                            System.out.println("Directory created");
+                        else
+                            System.out.println("Error");
+                    } catch (IOException e) {
+                        System.out.println("IO error");
+                    }
+                    break;
+
+                case rmdir:
+                    if (!checkArgs(args, 1)) break;
+
+                    try {
+                        if (fs.rmdir(args[0]))
+                            System.out.println("Directory removed");
+                        else
+                            System.out.println("Error");
+                    } catch (IOException e) {
+                        System.out.println("IO error");
+                    }
+                    break;
+
+                case clone:
+                    if (!checkArgs(args, 2)) break;
+
+                    try {
+                        if (fs.clone(args[0], args[1]))
+                            System.out.println("File cloned");
+                        else
+                            System.out.println("Error");
                     } catch (IOException e) {
                         System.out.println("IO error");
                     }
                     break;
 
+                case snapshot:
+                    if (!checkArgs(args, 1)) break;
+
+                    try {
+                        if (fs.snapshot(args[0]))
+                            System.out.println("Snapshot taken");
+                        else
+                            System.out.println("Error");
+                    } catch (IOException e) {
+                        System.out.println("IO error");
+                    }
+                    break;
+
+                case rmsnapshot:
+                    if (!checkArgs(args, 1)) break;
+
+                    try {
+                        if (fs.deleteSnapshot(args[0]))
+                            System.out.println("Snapshot removed");
+                        else
+                            System.out.println("Error");
+                    } catch (IOException e) {
+                        System.out.println("IO error");
+                    }
+                    break;
+
+                case compress:
+                    if (!checkArgs(args, 1)) break;
+
+                    try {
+                        if (fs.setCompression(args[0], true))
+                            System.out.println("File compressed");
+                        else
+                            System.out.println("Error");
+                    } catch (IOException e) {
+                        System.out.println("IO error");
+                    }
+                    break;
+
+                case fsck:
+                    try {
+                        FsckReport report = fs.fsck(args != null && args[0].equals("repair"));
+                        System.out.println(report == null ? "Disk not mounted" : report);
+                    } catch (IOException e) {
+                        System.out.println("IO error");
+                    }
+                    break;
+
+                case defrag:
+                    if (args != null && args[0].equals("stop")) {
+                        fs.stopDefragmentation();
+                        System.out.println("Defragmentation stopping");
+                    } else if (args != null && args[0].equals("status")) {
+                        DefragProgress progress = fs.getDefragProgress();
+                        System.out.println(progress == null ? "No defragmentation ran" : progress);
+                    } else if (args != null && args[0].equals("fragments")) {
+                        if (!checkArgs(args, 2)) break;
+
+                        try {
+                            long fragments = fs.getFragments(args[1]);
+                            System.out.println(fragments == -1 ? "Cant find file : " + args[1] : "Fragments : " + fragments);
+                        } catch (IOException e) {
+                            System.out.println("IO error");
+                        }
+                    } else if (fs.startDefragmentation(args == null ? 0 : Long.parseLong(args[0]) * 1024)) {
+                        System.out.println("Defragmentation started");
+                    } else {
+                        System.out.println("Can not start defragmentation");
+                    }
+                    break;
+
+                case sync:
+                    if (!fs.isMounted()) {
+                        System.out.println("Disk not mounted");
+                        break;
+                    }
+
+                    try {
+                        fs.sync();
+                        System.out.println("Changes committed");
+                    } catch (IOException e) {
+                        System.out.println("IO error");
+                    }
+                    break;
+
+                case stats:
+                    System.out.println(fs.stats());
+                    break;
+
                 case commandNotFound:
-                    System.out.println(command + ": Command not found");
+                    System.out.println(words[0] + ": Command not found");
                     break;
 
                 case q:
@@ -0,0 +1,242 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Block device backed by a memory mapped image file.
+ * The image is mapped in fixed size segments because a single
+ * MappedByteBuffer can not address more than 2GB.
+ *
+ * Only absolute accesses touch the shared segments; bulk transfers go
+ * through a view of their own, so threads never share a buffer position.
+ */
+public class MappedBlockDevice implements BlockDevice {
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    private final FileChannel channel;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private volatile long size;
+
+    private MappedBlockDevice(FileChannel channel) throws IOException {
+        this.channel = channel;
+        map(channel.size());
+    }
+
+    public static MappedBlockDevice open(String path) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new MappedBlockDevice(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates (or overwrites) an image file of the given size.
+     */
+    public static MappedBlockDevice create(String path, long size) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedBlockDevice device = new MappedBlockDevice(channel);
+            device.ensureSize(size);
+            return device;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void map(long newSize) throws IOException {
+        int count = (int) ((newSize + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+
+        for (int i = 0; i < count; i++) {
+            long start = (long) i << SEGMENT_SHIFT;
+            long length = Math.min(SEGMENT_SIZE, newSize - start);
+            if (i < segments.length && segments[i].capacity() == length)
+                mapped[i] = segments[i];
+            else {
+                mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+                mapped[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        segments = mapped;
+        size = newSize;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void ensureSize(long newSize) throws IOException {
+        if (newSize > size) {
+            force();
+            map(newSize);
+        }
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        checkBounds(position, dst.remaining());
+
+        while (dst.hasRemaining()) {
+            ByteBuffer segment = segment(position).duplicate();
+            int inSegment = offset(position);
+            int length = Math.min(dst.remaining(), segment.capacity() - inSegment);
+
+            segment.limit(inSegment + length).position(inSegment);
+            dst.put(segment);
+            position += length;
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        checkBounds(position, src.remaining());
+
+        while (src.hasRemaining()) {
+            ByteBuffer segment = segment(position).duplicate();
+            int inSegment = offset(position);
+            int length = Math.min(src.remaining(), segment.capacity() - inSegment);
+            int limit = src.limit();
+
+            src.limit(src.position() + length);
+            segment.position(inSegment);
+            segment.put(src);
+            src.limit(limit);
+            position += length;
+        }
+    }
+
+    @Override
+    public void read(long position, ByteBuffer[] dsts) throws IOException {
+        for (ByteBuffer dst : dsts) {
+            int length = dst.remaining();
+            read(position, dst);
+            position += length;
+        }
+    }
+
+    @Override
+    public void write(long position, ByteBuffer[] srcs) throws IOException {
+        for (ByteBuffer src : srcs) {
+            int length = src.remaining();
+            write(position, src);
+            position += length;
+        }
+    }
+
+    @Override
+    public byte get(long position) throws IOException {
+        checkBounds(position, 1);
+        return segment(position).get(offset(position));
+    }
+
+    @Override
+    public void put(long position, byte value) throws IOException {
+        checkBounds(position, 1);
+        segment(position).put(offset(position), value);
+    }
+
+    @Override
+    public short getShort(long position) throws IOException {
+        if (crossesSegment(position, 2))
+            return (short) readSplit(position, 2);
+        return segment(position).getShort(offset(position));
+    }
+
+    @Override
+    public void putShort(long position, short value) throws IOException {
+        if (crossesSegment(position, 2))
+            writeSplit(position, value, 2);
+        else
+            segment(position).putShort(offset(position), value);
+    }
+
+    @Override
+    public int getInt(long position) throws IOException {
+        if (crossesSegment(position, 4))
+            return (int) readSplit(position, 4);
+        return segment(position).getInt(offset(position));
+    }
+
+    @Override
+    public void putInt(long position, int value) throws IOException {
+        if (crossesSegment(position, 4))
+            writeSplit(position, value, 4);
+        else
+            segment(position).putInt(offset(position), value);
+    }
+
+    @Override
+    public long getLong(long position) throws IOException {
+        if (crossesSegment(position, 8))
+            return readSplit(position, 8);
+        return segment(position).getLong(offset(position));
+    }
+
+    @Override
+    public void putLong(long position, long value) throws IOException {
+        if (crossesSegment(position, 8))
+            writeSplit(position, value, 8);
+        else
+            segment(position).putLong(offset(position), value);
+    }
+
+    @Override
+    public void force() throws IOException {
+        for (MappedByteBuffer segment : segments)
+            segment.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        segments = new MappedByteBuffer[0];
+        size = 0;
+        channel.close();
+    }
+
+    private MappedByteBuffer segment(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)];
+    }
+
+    private static int offset(long position) {
+        return (int) (position & (SEGMENT_SIZE - 1));
+    }
+
+    private boolean crossesSegment(long position, int length) throws IOException {
+        checkBounds(position, length);
+        return offset(position) + length > SEGMENT_SIZE;
+    }
+
+    // little-endian value split over two segments, assembled byte by byte
+    private long readSplit(long position, int length) throws IOException {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--)
+            value = (value << 8) | (get(position + i) & 0xFF);
+        return value;
+    }
+
+    private void writeSplit(long position, long value, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            put(position + i, (byte) value);
+            value >>>= 8;
+        }
+    }
+
+    private void checkBounds(long position, int length) throws IOException {
+        if (position < 0 || position + length > size)
+            throw new IOException("Access out of device bounds : " + position);
+    }
+}
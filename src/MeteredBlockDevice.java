@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Counts the calls and bytes going to a device into Metrics.
+ */
+public class MeteredBlockDevice implements BlockDevice {
+    private final BlockDevice device;
+    private final Metrics metrics;
+
+    public MeteredBlockDevice(BlockDevice device, Metrics metrics) {
+        this.device = device;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public long size() {
+        return device.size();
+    }
+
+    @Override
+    public void ensureSize(long size) throws IOException {
+        device.ensureSize(size);
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        countRead(dst.remaining());
+        device.read(position, dst);
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        countWrite(src.remaining());
+        device.write(position, src);
+    }
+
+    @Override
+    public void read(long position, ByteBuffer[] dsts) throws IOException {
+        countRead(remaining(dsts));
+        device.read(position, dsts);
+    }
+
+    @Override
+    public void write(long position, ByteBuffer[] srcs) throws IOException {
+        countWrite(remaining(srcs));
+        device.write(position, srcs);
+    }
+
+    @Override
+    public byte get(long position) throws IOException {
+        countRead(1);
+        return device.get(position);
+    }
+
+    @Override
+    public void put(long position, byte value) throws IOException {
+        countWrite(1);
+        device.put(position, value);
+    }
+
+    @Override
+    public short getShort(long position) throws IOException {
+        countRead(2);
+        return device.getShort(position);
+    }
+
+    @Override
+    public void putShort(long position, short value) throws IOException {
+        countWrite(2);
+        device.putShort(position, value);
+    }
+
+    @Override
+    public int getInt(long position) throws IOException {
+        countRead(4);
+        return device.getInt(position);
+    }
+
+    @Override
+    public void putInt(long position, int value) throws IOException {
+        countWrite(4);
+        device.putInt(position, value);
+    }
+
+    @Override
+    public long getLong(long position) throws IOException {
+        countRead(8);
+        return device.getLong(position);
+    }
+
+    @Override
+    public void putLong(long position, long value) throws IOException {
+        countWrite(8);
+        device.putLong(position, value);
+    }
+
+    @Override
+    public void force() throws IOException {
+        metrics.deviceForces.incrementAndGet();
+        device.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        device.close();
+    }
+
+    private void countRead(long bytes) {
+        metrics.deviceReads.incrementAndGet();
+        metrics.deviceBytesRead.addAndGet(bytes);
+    }
+
+    private void countWrite(long bytes) {
+        metrics.deviceWrites.incrementAndGet();
+        metrics.deviceBytesWritten.addAndGet(bytes);
+    }
+
+    private static long remaining(ByteBuffer[] buffers) {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers)
+            remaining += buffer.remaining();
+        return remaining;
+    }
+}
@@ -0,0 +1,284 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of a FileSystem.
+ *
+ * Operations record themselves when they return; failures (false or -1
+ * results, exceptions) are counted as errors but still timed. Device
+ * counters are kept by a MeteredBlockDevice under the cache, so they show
+ * the I/O actually reaching the image. Block and cache gauges read the
+ * mounted image and are -1 (or 0) while nothing is mounted.
+ */
+public class Metrics implements MetricsMXBean {
+    public enum Operation {
+        mount,
+        create,
+        open,
+        read,
+        write,
+        readv,
+        writev,
+        truncate,
+        link,
+        unlink,
+        mkdir,
+        rmdir,
+        clone,
+        snapshot,
+        deleteSnapshot,
+        compress,
+        fsck
+    }
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final AtomicLongArray errors = new AtomicLongArray(Operation.values().length);
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    final AtomicLong deviceReads = new AtomicLong();
+    final AtomicLong deviceWrites = new AtomicLong();
+    final AtomicLong deviceBytesRead = new AtomicLong();
+    final AtomicLong deviceBytesWritten = new AtomicLong();
+    final AtomicLong deviceForces = new AtomicLong();
+
+    // mounted image
+    private volatile BlockAllocator allocator;
+    private volatile BlockCache cache;
+    private volatile ClusterCache clusters;
+    private volatile long totalBlocks = -1;
+    private ObjectName name;
+
+    public Metrics() {
+        for (int i = 0; i < latencies.length; i++)
+            latencies[i] = new LatencyHistogram();
+    }
+
+    /**
+     * @param start System.nanoTime() when the operation began
+     */
+    public void record(Operation operation, long start, boolean succeeded) {
+        latencies[operation.ordinal()].record(System.nanoTime() - start);
+        if (!succeeded) errors.incrementAndGet(operation.ordinal());
+    }
+
+    public void addBytesRead(long count) {
+        bytesRead.addAndGet(count);
+    }
+
+    public void addBytesWritten(long count) {
+        bytesWritten.addAndGet(count);
+    }
+
+    public LatencyHistogram getLatency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    /**
+     * Starts reporting the gauges of a mounted image and registers the MBean.
+     */
+    void attach(BlockAllocator allocator, BlockCache cache, ClusterCache clusters, long totalBlocks) {
+        this.allocator = allocator;
+        this.cache = cache;
+        this.clusters = clusters;
+        this.totalBlocks = totalBlocks;
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            name = new ObjectName("FileSystem:type=Metrics,id=" + INSTANCES.incrementAndGet());
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.out.println("Metrics are not available over JMX");
+            name = null;
+        }
+    }
+
+    void detach() {
+        allocator = null;
+        cache = null;
+        clusters = null;
+        totalBlocks = -1;
+
+        if (name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException ignored) {
+        }
+        name = null;
+    }
+
+    @Override
+    public List<OperationStats> getOperations() {
+        List<OperationStats> res = new ArrayList<OperationStats>();
+        for (Operation operation : Operation.values())
+            res.add(new OperationStats(operation.name(), errors.get(operation.ordinal()),
+                    latencies[operation.ordinal()]));
+        return res;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public long getDeviceReads() {
+        return deviceReads.get();
+    }
+
+    @Override
+    public long getDeviceWrites() {
+        return deviceWrites.get();
+    }
+
+    @Override
+    public long getDeviceBytesRead() {
+        return deviceBytesRead.get();
+    }
+
+    @Override
+    public long getDeviceBytesWritten() {
+        return deviceBytesWritten.get();
+    }
+
+    @Override
+    public long getDeviceForces() {
+        return deviceForces.get();
+    }
+
+    @Override
+    public long getTotalBlocks() {
+        return totalBlocks;
+    }
+
+    @Override
+    public long getFreeBlocks() {
+        BlockAllocator allocator = this.allocator;
+        return allocator == null ? -1 : allocator.getFreeCount();
+    }
+
+    @Override
+    public long getHeldBlocks() {
+        BlockAllocator allocator = this.allocator;
+        return allocator == null ? -1 : allocator.getHeldCount();
+    }
+
+    @Override
+    public long getReservedBlocks() {
+        BlockAllocator allocator = this.allocator;
+        return allocator == null ? -1 : allocator.getReservedCount();
+    }
+
+    @Override
+    public long getCacheHits() {
+        BlockCache cache = this.cache;
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        BlockCache cache = this.cache;
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        long hits = getCacheHits();
+        long total = hits + getCacheMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        BlockCache cache = this.cache;
+        return cache == null ? 0 : cache.getEvictions();
+    }
+
+    @Override
+    public long getCachePrefetches() {
+        BlockCache cache = this.cache;
+        return cache == null ? 0 : cache.getPrefetches();
+    }
+
+    @Override
+    public long getCacheWritebacks() {
+        BlockCache cache = this.cache;
+        return cache == null ? 0 : cache.getWritebacks();
+    }
+
+    @Override
+    public long getClusterCacheHits() {
+        ClusterCache clusters = this.clusters;
+        return clusters == null ? 0 : clusters.getHits();
+    }
+
+    @Override
+    public long getClusterCacheMisses() {
+        ClusterCache clusters = this.clusters;
+        return clusters == null ? 0 : clusters.getMisses();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i].reset();
+            errors.set(i, 0);
+        }
+        bytesRead.set(0);
+        bytesWritten.set(0);
+        deviceReads.set(0);
+        deviceWrites.set(0);
+        deviceBytesRead.set(0);
+        deviceBytesWritten.set(0);
+        deviceForces.set(0);
+    }
+
+    /**
+     * @return every metric as text, latencies in microseconds
+     */
+    public String report() {
+        StringBuilder res = new StringBuilder();
+
+        res.append(String.format("%-9s %9s %7s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "errors", "mean", "p50", "p99", "p99.9", "max"));
+        for (OperationStats stats : getOperations()) {
+            res.append(String.format("%-9s %9d %7d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    stats.getName(), stats.getCount(), stats.getErrors(), stats.getMean(),
+                    stats.getP50(), stats.getP99(), stats.getP999(), stats.getMax()));
+        }
+
+        res.append('\n');
+        res.append("Bytes read : " + getBytesRead() + ", written : " + getBytesWritten());
+        res.append('\n');
+        res.append("Device reads : " + getDeviceReads() + " (" + getDeviceBytesRead() + "B), writes : "
+                + getDeviceWrites() + " (" + getDeviceBytesWritten() + "B), forces : " + getDeviceForces());
+        res.append('\n');
+        if (totalBlocks != -1) {
+            res.append("Blocks free : " + getFreeBlocks() + " of " + getTotalBlocks()
+                    + ", held : " + getHeldBlocks() + ", reserved : " + getReservedBlocks());
+            res.append('\n');
+            res.append(String.format("Cache hits : %d, misses : %d (%.1f%%), evictions : %d, writebacks : %d, prefetches : %d",
+                    getCacheHits(), getCacheMisses(), getCacheHitRate() * 100,
+                    getCacheEvictions(), getCacheWritebacks(), getCachePrefetches()));
+            res.append('\n');
+            res.append("Clusters hits : " + getClusterCacheHits() + ", misses : " + getClusterCacheMisses());
+            res.append('\n');
+        }
+
+        return res.toString();
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.List;
+
+/**
+ * Management interface of Metrics, registered as
+ * FileSystem:type=Metrics,id=N while the file system is mounted.
+ */
+public interface MetricsMXBean {
+    List<OperationStats> getOperations();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getDeviceReads();
+
+    long getDeviceWrites();
+
+    long getDeviceBytesRead();
+
+    long getDeviceBytesWritten();
+
+    long getDeviceForces();
+
+    long getTotalBlocks();
+
+    long getFreeBlocks();
+
+    /**
+     * @return freed blocks the journal still refers to
+     */
+    long getHeldBlocks();
+
+    /**
+     * @return free blocks set aside for delayed allocations
+     */
+    long getReservedBlocks();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRate();
+
+    long getCacheEvictions();
+
+    long getCacheWritebacks();
+
+    /**
+     * @return blocks read ahead into the cache
+     */
+    long getCachePrefetches();
+
+    /**
+     * @return reads of compressed clusters found decompressed in memory
+     */
+    long getClusterCacheHits();
+
+    long getClusterCacheMisses();
+
+    /**
+     * Zeroes the counters and histograms.
+     */
+    void reset();
+}
@@ -0,0 +1,59 @@
+/**
+ * Snapshot of the calls of one FileSystem operation. Latencies are in microseconds.
+ */
+public class OperationStats {
+    private final String name;
+    private final long count;
+    private final long errors;
+    private final double mean;
+    private final double p50;
+    private final double p99;
+    private final double p999;
+    private final double max;
+
+    public OperationStats(String name, long errors, LatencyHistogram histogram) {
+        this.name = name;
+        this.count = histogram.getCount();
+        this.errors = errors;
+        this.mean = histogram.getMean() / 1000;
+        this.p50 = histogram.getPercentile(50) / 1000.0;
+        this.p99 = histogram.getPercentile(99) / 1000.0;
+        this.p999 = histogram.getPercentile(99.9) / 1000.0;
+        this.max = histogram.getMax() / 1000.0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return calls that failed or threw
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getP50() {
+        return p50;
+    }
+
+    public double getP99() {
+        return p99;
+    }
+
+    public double getP999() {
+        return p999;
+    }
+
+    public double getMax() {
+        return max;
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Sequential read detection of an opened file. Each read continuing the
+ * previous one doubles the window of blocks to keep loaded past it, up to
+ * MAX_WINDOW; any other read resets it.
+ *
+ * The device runs of the windows wait here for the loader, in an array
+ * allocated once per descriptor: one load is queued per descriptor at most,
+ * taking the runs added while it is pending too. Runs past MAX_RUNS are
+ * dropped.
+ */
+public class ReadAhead {
+    private static final int MIN_WINDOW = 4;
+    private static final int MAX_WINDOW = 256;
+    private static final int MAX_RUNS = 2 * MAX_WINDOW;
+
+    private long nextOffset;
+    private int window;
+    // file block up to which reads were already ahead
+    private long aheadEnd;
+    // file blocks [from, to) of the last window
+    private long from;
+    private long to;
+
+    // device runs to load: block, length; [head, runCount) pending
+    private long[] runs;
+    private int head;
+    private int runCount;
+    // the run the loader is at
+    private int current;
+    private boolean loading;
+    // mount the runs were mapped in
+    private int mount;
+    private Runnable loader;
+
+    /**
+     * Records a read of length bytes at offset.
+     *
+     * @return whether there are file blocks [getFrom(), getTo()) to load
+     * ahead: false if the read was not sequential or enough is already
+     * loaded past it
+     */
+    public synchronized boolean record(long offset, int length, int blockSize, long fileBlocks) {
+        boolean sequential = offset == nextOffset && length > 0;
+        nextOffset = offset + length;
+
+        if (!sequential) {
+            window = 0;
+            aheadEnd = 0;
+            return false;
+        }
+
+        long next = (nextOffset + blockSize - 1) / blockSize;
+        int requestBlocks = (length + blockSize - 1) / blockSize;
+        if (window == 0) {
+            window = Math.min(MAX_WINDOW, Math.max(MIN_WINDOW, 2 * requestBlocks));
+        } else if (aheadEnd - next > window / 2) {
+            return false;
+        } else {
+            window = Math.min(MAX_WINDOW, 2 * window);
+        }
+
+        long start = Math.max(next, aheadEnd);
+        long end = Math.min(next + window, fileBlocks);
+        if (start >= end) return false;
+
+        from = start;
+        to = end;
+        aheadEnd = end;
+        return true;
+    }
+
+    public synchronized long getFrom() {
+        return from;
+    }
+
+    public synchronized long getTo() {
+        return to;
+    }
+
+    /**
+     * Adds a device run to load.
+     *
+     * @return false if MAX_RUNS are pending already
+     */
+    public synchronized boolean addRun(long block, long length) {
+        if (runCount == MAX_RUNS) return false;
+        if (runs == null) runs = new long[2 * MAX_RUNS];
+
+        runs[2 * runCount] = block;
+        runs[2 * runCount + 1] = length;
+        runCount++;
+        return true;
+    }
+
+    /**
+     * @return whether the caller is to queue the loader: runs are pending
+     * and no load is, which is pending from then on
+     */
+    public synchronized boolean startLoad(int mount) {
+        if (loading || head == runCount) return false;
+
+        this.mount = mount;
+        loading = true;
+        return true;
+    }
+
+    /**
+     * Moves the loader to the next pending run.
+     *
+     * @return false, ending the load, if there is none
+     */
+    public synchronized boolean nextRun() {
+        if (head == runCount) {
+            endLoad();
+            return false;
+        }
+
+        current = head++;
+        return true;
+    }
+
+    public synchronized long getRunBlock() {
+        return runs[2 * current];
+    }
+
+    public synchronized long getRunLength() {
+        return runs[2 * current + 1];
+    }
+
+    /**
+     * Ends the load, dropping the runs it has not reached.
+     */
+    public synchronized void endLoad() {
+        head = 0;
+        runCount = 0;
+        loading = false;
+    }
+
+    public synchronized int getMount() {
+        return mount;
+    }
+
+    /**
+     * @return task loading the runs of this descriptor, null until set
+     */
+    public synchronized Runnable getLoader() {
+        return loader;
+    }
+
+    public synchronized void setLoader(Runnable loader) {
+        this.loader = loader;
+    }
+}
@@ -0,0 +1,241 @@
+import java.io.IOException;
+
+/**
+ * First block of a v2 image. Describes where every region of the image starts:
+ *
+ * Superblock - block 0
+ * Bitmask - one bit per block, packed into 64-bit words
+ * File Descriptors - inodeCount * DESCRIPTOR_SIZE (inode id, name length, name)
+ * IndexNodes - inodeCount * INODE_SIZE
+ * Reference counts - REFCOUNT_SIZE per block, see BlockRefs; none on older images
+ * Journal - journalBlocks blocks, none on small or older images
+ * Data blocks - up to blockCount
+ */
+public class Superblock {
+    static final int MAGIC = 0x53464245; // "EBFS"
+    static final int VERSION = 2;
+    static final int LEGACY_VERSION = 1;
+
+    static final int DEFAULT_BLOCK_SIZE = 4096;
+    static final int DEFAULT_INODE_COUNT = 9;
+    static final int DEFAULT_NAME_MAX_LENGTH = 8;
+
+    static final int MIN_BLOCK_SIZE = 512;
+    static final int NAME_MAX_LENGTH_LIMIT = 255;
+
+    static final int INODE_SIZE = 128;
+    static final int REFCOUNT_SIZE = 2;
+
+    // the journal takes 1/JOURNAL_RATIO of the image, within these bounds
+    static final int JOURNAL_RATIO = 16;
+    static final long MIN_JOURNAL_BLOCKS = 32;
+    static final long MAX_JOURNAL_BLOCKS = 8192;
+
+    // set while the image is not mounted, the free blocks count is then exact
+    static final int FLAG_CLEAN = 1;
+
+    // on-disk field offsets
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int BLOCK_SIZE_OFFSET = 8;
+    private static final int INODE_COUNT_OFFSET = 12;
+    private static final int NAME_MAX_LENGTH_OFFSET = 16;
+    private static final int FLAGS_OFFSET = 20;
+    private static final int BLOCK_COUNT_OFFSET = 24;
+    private static final int BITMASK_OFFSET = 32;
+    private static final int DESCRIPTORS_OFFSET = 40;
+    private static final int INODES_OFFSET = 48;
+    private static final int FIRST_DATA_BLOCK_OFFSET = 56;
+    private static final int JOURNAL_OFFSET = 64;
+    private static final int JOURNAL_BLOCKS_OFFSET = 72;
+    private static final int FREE_BLOCKS_OFFSET = 80;
+    private static final int REFCOUNTS_OFFSET = 88;
+
+    private int blockSize;
+    private int inodeCount;
+    private int nameMaxLength;
+    private int flags;
+    private long blockCount;
+
+    private long bitmaskPointer;
+    private long descriptorsPointer;
+    private long firstInodePointer;
+    private long refcountsPointer;
+    private long journalStart;
+    private long journalBlocks;
+    private long firstDataBlock;
+    private long freeBlocks;
+
+    private Superblock() {
+    }
+
+    /**
+     * Lays out a new image of blockCount blocks.
+     */
+    public static Superblock create(long blockCount, int blockSize, int inodeCount, int nameMaxLength) {
+        Superblock sb = new Superblock();
+        sb.blockSize = blockSize;
+        sb.inodeCount = inodeCount;
+        sb.nameMaxLength = nameMaxLength;
+        sb.blockCount = blockCount;
+
+        sb.bitmaskPointer = blockSize;
+        sb.descriptorsPointer = sb.alignToBlock(sb.bitmaskPointer + (blockCount + 63) / 64 * 8);
+        sb.firstInodePointer = sb.alignToBlock(sb.descriptorsPointer + (long) inodeCount * sb.getDescriptorSize());
+        sb.refcountsPointer = sb.alignToBlock(sb.firstInodePointer + (long) inodeCount * INODE_SIZE);
+        sb.journalStart = sb.alignToBlock(sb.refcountsPointer + blockCount * REFCOUNT_SIZE) / blockSize;
+        sb.journalBlocks = Math.min(MAX_JOURNAL_BLOCKS, blockCount / JOURNAL_RATIO);
+        if (sb.journalBlocks < MIN_JOURNAL_BLOCKS)
+            sb.journalBlocks = 0;
+        sb.firstDataBlock = sb.journalStart + sb.journalBlocks;
+        sb.freeBlocks = blockCount - sb.firstDataBlock;
+        sb.flags = FLAG_CLEAN;
+
+        return sb;
+    }
+
+    public static Superblock read(BlockDevice device) throws IOException {
+        if (detectVersion(device) != VERSION)
+            throw new IOException("Not a v2 image");
+
+        Superblock sb = new Superblock();
+        sb.blockSize = device.getInt(BLOCK_SIZE_OFFSET);
+        sb.inodeCount = device.getInt(INODE_COUNT_OFFSET);
+        sb.nameMaxLength = device.getInt(NAME_MAX_LENGTH_OFFSET);
+        sb.flags = device.getInt(FLAGS_OFFSET);
+        sb.blockCount = device.getLong(BLOCK_COUNT_OFFSET);
+        sb.bitmaskPointer = device.getLong(BITMASK_OFFSET);
+        sb.descriptorsPointer = device.getLong(DESCRIPTORS_OFFSET);
+        sb.firstInodePointer = device.getLong(INODES_OFFSET);
+        sb.firstDataBlock = device.getLong(FIRST_DATA_BLOCK_OFFSET);
+        sb.journalStart = device.getLong(JOURNAL_OFFSET);
+        sb.journalBlocks = device.getLong(JOURNAL_BLOCKS_OFFSET);
+        sb.freeBlocks = device.getLong(FREE_BLOCKS_OFFSET);
+        // zero on images older than the field
+        sb.refcountsPointer = device.getLong(REFCOUNTS_OFFSET);
+
+        return sb;
+    }
+
+    public void write(BlockDevice device) throws IOException {
+        device.putInt(MAGIC_OFFSET, MAGIC);
+        device.putInt(VERSION_OFFSET, VERSION);
+        device.putInt(BLOCK_SIZE_OFFSET, blockSize);
+        device.putInt(INODE_COUNT_OFFSET, inodeCount);
+        device.putInt(NAME_MAX_LENGTH_OFFSET, nameMaxLength);
+        device.putInt(FLAGS_OFFSET, flags);
+        device.putLong(BLOCK_COUNT_OFFSET, blockCount);
+        device.putLong(BITMASK_OFFSET, bitmaskPointer);
+        device.putLong(DESCRIPTORS_OFFSET, descriptorsPointer);
+        device.putLong(INODES_OFFSET, firstInodePointer);
+        device.putLong(FIRST_DATA_BLOCK_OFFSET, firstDataBlock);
+        device.putLong(JOURNAL_OFFSET, journalStart);
+        device.putLong(JOURNAL_BLOCKS_OFFSET, journalBlocks);
+        device.putLong(FREE_BLOCKS_OFFSET, freeBlocks);
+        device.putLong(REFCOUNTS_OFFSET, refcountsPointer);
+    }
+
+    /**
+     * @return VERSION for v2 images, LEGACY_VERSION for the old char encoded
+     * images (which start with 8 UTF-16 decimal digits of capacity), 0 otherwise
+     */
+    public static int detectVersion(BlockDevice device) throws IOException {
+        if (device.size() < 16) return 0;
+
+        if (device.getInt(MAGIC_OFFSET) == MAGIC)
+            return device.getInt(VERSION_OFFSET);
+
+        for (int i = 0; i < 8; i++) {
+            if (device.get(i * 2) != 0 || !Character.isDigit(device.get(i * 2 + 1)))
+                return 0;
+        }
+
+        return LEGACY_VERSION;
+    }
+
+    private long alignToBlock(long pointer) {
+        return (pointer + blockSize - 1) / blockSize * blockSize;
+    }
+
+    public int getDescriptorSize() {
+        // inode id (4) + name length (2) + padding (2) + name, rounded up to 8
+        return (8 + nameMaxLength + 7) / 8 * 8;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getInodeCount() {
+        return inodeCount;
+    }
+
+    public int getNameMaxLength() {
+        return nameMaxLength;
+    }
+
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    public long getBitmaskPointer() {
+        return bitmaskPointer;
+    }
+
+    public long getDescriptorsPointer() {
+        return descriptorsPointer;
+    }
+
+    public long getFirstInodePointer() {
+        return firstInodePointer;
+    }
+
+    /**
+     * @return position of the block reference counts, 0 if the image has none
+     */
+    public long getRefcountsPointer() {
+        return refcountsPointer;
+    }
+
+    public long getJournalStart() {
+        return journalStart;
+    }
+
+    /**
+     * @return size of the journal region, 0 if the image has none
+     */
+    public long getJournalBlocks() {
+        return journalBlocks;
+    }
+
+    public long getFirstDataBlock() {
+        return firstDataBlock;
+    }
+
+    /**
+     * @return whether the image was unmounted cleanly, images written before
+     * the flag existed never are
+     */
+    public boolean isClean() {
+        return (flags & FLAG_CLEAN) != 0;
+    }
+
+    /**
+     * Marks the image clean with freeBlocks free blocks, or in use.
+     */
+    public void setClean(boolean clean, long freeBlocks) {
+        flags = clean ? flags | FLAG_CLEAN : flags & ~FLAG_CLEAN;
+        this.freeBlocks = freeBlocks;
+    }
+
+    /**
+     * @return free blocks when the image was last unmounted cleanly
+     */
+    public long getFreeBlocks() {
+        return freeBlocks;
+    }
+
+    public long getDeviceSize() {
+        return blockCount * blockSize;
+    }
+}